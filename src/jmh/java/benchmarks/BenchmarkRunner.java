@@ -0,0 +1,29 @@
+package benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so allocation rates are reported
+ * next to the timings. Accepts the usual JMH command line, e.g. to only run
+ * the FAST_LINE reader on 5 tags:
+ * <pre>
+ * java -cp target/parse-lines-1.0-SNAPSHOT-jar-with-dependencies.jar benchmarks.BenchmarkRunner \
+ *   ReaderBenchmark -p reader=FAST_LINE -p tags=5
+ * </pre>
+ */
+public final class BenchmarkRunner {
+  private BenchmarkRunner() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    final Options options = new OptionsBuilder()
+      .parent(new CommandLineOptions(args))
+      .addProfiler(GCProfiler.class)
+      .build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,62 @@
+package benchmarks;
+
+import com.google.common.base.Charsets;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes files in the format of GenerateData for the benchmarks.
+ */
+final class DataFiles {
+  private DataFiles() {
+  }
+
+  /**
+   * @param lines number of lines in the file
+   * @param tags number of tags per line
+   * @param metricLength number of characters of the metric names, to vary
+   *                     the length of the lines
+   * @param gzip true to write a .gz file
+   * @return a temporary file, deleted when the JVM exits
+   */
+  static File generate(final int lines, final int tags, final int metricLength, final boolean gzip)
+    throws IOException {
+    final File file = File.createTempFile("bench-", gzip ? ".tsd.gz" : ".tsd");
+    file.deleteOnExit();
+
+    final StringBuilder metric = new StringBuilder("m");
+    while (metric.length() < metricLength) {
+      metric.append('x');
+    }
+    final Random rand = new Random(42);
+    long time = 1262304000L;
+    long value = 0;
+    try (OutputStream os = open(file, gzip)) {
+      final StringBuilder record = new StringBuilder();
+      for (int i = 0; i < lines; i++) {
+        record.setLength(0);
+        record.append(metric).append('.').append(rand.nextInt(10))
+          .append(' ').append(time++)
+          .append(' ').append(value);
+        for (int t = 0; t < tags; t++) {
+          record.append(" tag").append(t).append("=value").append(rand.nextInt(100));
+        }
+        record.append('\n');
+        os.write(record.toString().getBytes(Charsets.UTF_8));
+        value += rand.nextInt(101) - 50;
+      }
+    }
+    return file;
+  }
+
+  private static OutputStream open(final File file, final boolean gzip) throws IOException {
+    final OutputStream os = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+    return gzip ? new GZIPOutputStream(os, 1 << 16) : os;
+  }
+}
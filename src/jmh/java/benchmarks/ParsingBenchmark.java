@@ -0,0 +1,117 @@
+package benchmarks;
+
+import com.google.common.base.Charsets;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import utils.ByteSlice;
+import utils.DoubleParser;
+import utils.FastLine;
+import utils.TagSet;
+import utils.Tags;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micro-benchmarks of the parsing primitives on a single typical line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ParsingBenchmark {
+  private static final String LINE =
+    "sys.cpu.user 1262304000073 42.5 host=web01 dc=lga cpu=0 type=idle env=prod";
+  private static final String TIMESTAMP = "1262304000073";
+  private static final String VALUE = "42.5";
+  private static final String[] TAGS = {"host=web01", "dc=lga", "cpu=0", "type=idle", "env=prod"};
+
+  private final FastLine line = new FastLine();
+  private final TagSet tagSet = new TagSet();
+  private final ByteSlice slice = new ByteSlice();
+  private ByteBuffer buffer;
+  private int lineLength;
+
+  @Setup
+  public void setup() {
+    final byte[] bytes = LINE.getBytes(Charsets.UTF_8);
+    buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    lineLength = bytes.length;
+    line.tokenize(buffer, 0, lineLength);
+  }
+
+  @Benchmark
+  public long tagsParseLong() {
+    return Tags.parseLong(TIMESTAMP);
+  }
+
+  @Benchmark
+  public String[] tagsSplitString() {
+    return Tags.splitString(LINE, ' ');
+  }
+
+  @Benchmark
+  public HashMap<String, String> tagsParse() {
+    final HashMap<String, String> tags = new HashMap<>();
+    for (String tag : TAGS) {
+      Tags.parse(tags, tag);
+    }
+    return tags;
+  }
+
+  @Benchmark
+  public int tagSetAdd() {
+    tagSet.clear();
+    for (int field = 3; field < line.getSize(); field++) {
+      tagSet.add(line.getSlice(field, slice));
+    }
+    return tagSet.size();
+  }
+
+  @Benchmark
+  public int fastLineTokenize() {
+    line.tokenize(buffer, 0, lineLength);
+    return line.getSize();
+  }
+
+  @Benchmark
+  public long fastLineGetLong() {
+    return line.getLong(1);
+  }
+
+  @Benchmark
+  public double fastLineGetDouble() {
+    return line.getDouble(2);
+  }
+
+  @Benchmark
+  public double doubleParser() {
+    return DoubleParser.parseDouble(VALUE);
+  }
+
+  @Benchmark
+  public double jdkParseDouble() {
+    return Double.parseDouble(VALUE);
+  }
+
+  @Benchmark
+  public void fastLineAllFields(Blackhole bh) {
+    line.tokenize(buffer, 0, lineLength);
+    bh.consume(line.getSlice(0, slice).hashCode());
+    bh.consume(line.getLong(1));
+    bh.consume(line.getDouble(2));
+  }
+}
@@ -0,0 +1,127 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import readers.BufferedFileReader;
+import readers.BufferedOldReader;
+import readers.CharBufferFileReader;
+import readers.FastBufferedReader;
+import readers.FastLineReader;
+import readers.FileReader;
+import readers.MappedFileReader;
+import utils.DoubleParser;
+import utils.SymbolTable;
+import utils.TagSet;
+import utils.Tags;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses a whole generated file with each reader of TextImporter2, the same
+ * way TextImporter2.processAndImportLine does, without any logging.
+ * <p>
+ * Times and allocations are per file: divide by the number of lines to get
+ * them per point.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ReaderBenchmark {
+
+  @Param({"BUFFERED", "CHAR_BUFFER", "FAST_LINE", "BUFFERED_OLD", "FAST_BUFFER", "MAPPED"})
+  String reader;
+
+  @Param({"1000000"})
+  int lines;
+
+  @Param({"1", "5"})
+  int tags;
+
+  @Param({"8", "64"})
+  int metricLength;
+
+  @Param({"false", "true"})
+  boolean gzip;
+
+  @Param({"8192"})
+  int bufferSize;
+
+  private File file;
+  private final SymbolTable metrics = new SymbolTable();
+  private final TagSet tagSet = new TagSet();
+
+  @Setup(Level.Trial)
+  public void generate() throws IOException {
+    file = DataFiles.generate(lines, tags, metricLength, gzip);
+  }
+
+  @TearDown(Level.Trial)
+  public void delete() {
+    if (!file.delete()) {
+      file.deleteOnExit();
+    }
+  }
+
+  private FileReader newReader() {
+    switch (reader) {
+      case "BUFFERED":
+        return new BufferedFileReader(bufferSize);
+      case "CHAR_BUFFER":
+        return new CharBufferFileReader();
+      case "FAST_LINE":
+        return new FastLineReader();
+      case "BUFFERED_OLD":
+        return new BufferedOldReader(bufferSize);
+      case "FAST_BUFFER":
+        return new FastBufferedReader(bufferSize);
+      case "MAPPED":
+        return new MappedFileReader();
+      default:
+        throw new IllegalArgumentException("Unkown Reader " + reader);
+    }
+  }
+
+  @Benchmark
+  public long readFile() throws IOException {
+    long words = 0;
+    try (FileReader r = newReader()) {
+      r.readFile(file.getPath());
+      while (r.readln()) {
+        words += parseLine(r);
+      }
+    }
+    return words;
+  }
+
+  private long parseLine(final FileReader r) {
+    final int metric = metrics.intern(r.nextSequence());
+    final long timestamp = r.nextLong();
+    final CharSequence value = r.nextSequence();
+    final long parsed = Tags.looksLikeInteger(value)
+      ? Tags.parseLong(value)
+      : Double.doubleToRawLongBits(DoubleParser.parseDouble(value));
+    tagSet.clear();
+    long words = 3;
+    while (r.hasNext()) {
+      tagSet.add(r.nextSequence());
+      words++;
+    }
+    return words + ((metric + timestamp + parsed) & 1);
+  }
+}
@@ -1,152 +1,529 @@
-
-
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Random;
-
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.base.Preconditions;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.spi.ExplicitBooleanOptionHandler;
+import utils.BgzfOutputStream;
+import utils.LineWriter;
+
+/**
+ * Generates data points to import, as text files in the tsd format
+ * ({@code metric timestamp value tag=value ...}) or in csv, optionally
+ * compressed.
+ * <p>
+ * The shape of the data comes from a {@link Profile}: number of metrics and
+ * series, tags per series, how skewed the series are, late and duplicate
+ * points and decimal values. Options can override each of them.
+ * <p>
+ * Lines are formatted straight into a large direct buffer written with a
+ * {@link FileChannel}, without creating any object per line. The points can
+ * be split in several files generated in parallel, each from its own random
+ * stream split from -seed, so the same seed always generates the same files
+ * whatever the number of threads.
+ */
 public class GenerateData {
 
+  private static final int RANGE = 101;
+  private static final int GAP = 50;
+  /** late points are at most this many points behind */
+  private static final int MAX_LATENESS = 1000;
+  /** number of decimals of the decimal values */
+  private static final int SCALE = 2;
+  private static final int DECIMAL_UNIT = 100;
+
+  private static final byte[] PADDING = new byte[256];
+  static {
+    Arrays.fill(PADDING, (byte) 'x');
+  }
+
+  /**
+   * Shapes of the generated data, selected by name with -profile.
+   */
+  enum Profile {
+    /** a single series with one tag, in order, with integer values */
+    SIMPLE(1, 1, 1, 1, 1, 0, 0, 0, 0, true, 0),
+    /** many series, each as likely as the others */
+    UNIFORM(100, 10_000, 1, 4, 100, 0, 0, 0, 0.5, true, 0),
+    /**
+     * close to production traffic: a few series get most of the points,
+     * series have 2 to 8 tags of various lengths, 1% of the points are late
+     * and 0.1% are duplicates
+     */
+    PRODUCTION(200, 100_000, 2, 8, 10_000, 1.1, 0.01, 0.001, 0.5, false, 16),
+    /** millions of series with long tags, new ones keep showing up */
+    HIGH_CARDINALITY(1_000, 2_000_000, 4, 10, 1_000_000, 0.6, 0.001, 0, 0.5, false, 32);
+
+    final int metrics;
+    final int series;
+    final int minTags;
+    final int maxTags;
+    final int tagValues;
+    /** exponent of the Zipf distribution of the series, 0 for uniform */
+    final double skew;
+    final double late;
+    final double duplicates;
+    /** share of the series with decimal values */
+    final double decimals;
+    final boolean negatives;
+    /** maximum number of characters added to tag values */
+    final int padding;
+
+    Profile(int metrics, int series, int minTags, int maxTags, int tagValues, double skew, double late,
+            double duplicates, double decimals, boolean negatives, int padding) {
+      this.metrics = metrics;
+      this.series = series;
+      this.minTags = minTags;
+      this.maxTags = maxTags;
+      this.tagValues = tagValues;
+      this.skew = skew;
+      this.late = late;
+      this.duplicates = duplicates;
+      this.decimals = decimals;
+      this.negatives = negatives;
+      this.padding = padding;
+    }
+  }
+
+  enum Compression {
+    NONE(""), GZIP(".gz"), BGZF(".gz");
+
+    final String extension;
+
+    Compression(String extension) {
+      this.extension = extension;
+    }
+  }
+
   /** Prints usage and exits.  */
-  static void usage() {
-    System.err.println("Usage: generate metric num_days pph [csv]");
+  static void usage(CmdLineParser parser) {
+    System.err.println("Usage: generate metric num_days pph [csv] [options]");
+    parser.printUsage(System.err);
     System.exit(-1);
   }
 
   public static void main(String[] args) throws IOException {
-    if (args.length < 3)
-      usage();
+    Options options = new Options();
+    CmdLineParser parser = new CmdLineParser(options);
+
+    try {
+      parser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      usage(parser);
+    }
 
-    String metricName = args[0];
-    int numMetrics = 1;
-    int numTagK = 1;
-    int numTagV = 1;
-    int startYear = 2010;
-    int totalYears = 1;
-    int days = Integer.parseInt(args[1]);
-    int pph = Integer.parseInt(args[2]);
-    int range = 101;
-    int gap = 50;
-    boolean csv = args.length > 3 && "csv".equals(args[3]);
-
-    if (pph <= 0) {
+    if (options.pph <= 0) {
       System.err.println("pph must be a positive number");
       System.exit(-1);
     }
+    if (options.format != null && !"csv".equals(options.format)) {
+      System.err.println("unknown format: " + options.format);
+      usage(parser);
+    }
+    if (options.parts <= 0 || options.threads <= 0) {
+      System.err.println("parts and threads must be positive numbers");
+      System.exit(-1);
+    }
+    try {
+      options.resolve();
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.exit(-1);
+    }
 
-    System.out.printf("Generating %d days for metric %s with %d points per hour\n", days, metricName, pph);
+    System.out.printf("Generating %d days for metric %s with %d points per hour (profile %s, seed %d)\n",
+      options.days, options.metric, options.pph, options.profile, options.seed);
+    System.out.printf("%d metrics, %d series with %d to %d tags of %d values, skew %.2f, %.2f%% late, "
+        + "%.2f%% duplicates, %.0f%% decimal series\n", options.numMetrics, options.numSeries, options.minTags,
+      options.maxTags, options.numTagV, options.skew, options.late * 100, options.duplicates * 100,
+      options.decimals * 100);
 
-    generateYearlyFiles(metricName, numMetrics, numTagK, numTagV, startYear, totalYears, days, pph, range, gap, new Random(), csv);
+    generateFiles(options);
   }
 
-  public static void generateYearlyFiles(final String metricName, final int numMetrics, final int numTagK, final int numTagV, final int startYear, final int totalYears, final int days, final int pph, final int range, final int gap, final Random rand, final boolean csv) throws IOException {
+  public static void generateFiles(final Options options) throws IOException {
     //TODO add timezone (--tz) param to argp
     Calendar cal = Calendar.getInstance(); // use local timezone
-    cal.set(startYear, 0, 1, 0, 0, 0);
+    cal.set(options.startYear, 0, 1, 0, 0, 0);
+
+    final boolean millis = options.pph > 3600;
+    final long time = millis ? cal.getTimeInMillis() : cal.getTimeInMillis() / 1000;
+    final int time_inc = millis ? 3600000 / options.pph : 3600 / options.pph;
+    final long count = (long) options.days * 24 * options.pph;
+
+    final long startTime = System.currentTimeMillis();
+
+    // the random streams are split in order, so they don't depend on the threads
+    final SplittableRandom seeds = new SplittableRandom(options.seed);
+    final ExecutorService executor = Executors.newFixedThreadPool(Math.min(options.threads, options.parts));
+    final List<Future<Long>> parts = new ArrayList<>(options.parts);
+    for (int part = 0; part < options.parts; part++) {
+      final File file = partFile(options, part);
+      final long first = count * part / options.parts;
+      final long points = count * (part + 1) / options.parts - first;
+      final SplittableRandom rand = seeds.split();
+      parts.add(executor.submit(() -> generateFile(options, file, time + first * time_inc, time_inc, points, rand)));
+    }
 
-    String extension = csv ? ".csv" : ".tsd";
+    long bytes = 0;
+    try {
+      for (Future<Long> part : parts) {
+        bytes += part.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("generation interrupted", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
 
-    long value = rand.nextInt(range) - gap;
-    long count = 0;
+    long totalTime = Math.max(1, System.currentTimeMillis() - startTime);
+    System.out.printf("Total time to create %d data points: %dms (%d MB/s)\n", count, totalTime,
+      bytes * 1000 / totalTime >> 20);
+  }
 
-    int[] tagValues = new int[numTagK];
+  private static File partFile(final Options options, final int part) {
+    final String extension = (options.isCsv() ? ".csv" : ".tsd") + options.compression.extension;
+    if (options.parts == 1) {
+      return new File(options.directory, options.metric + extension);
+    }
+    final int width = Integer.toString(options.parts - 1).length();
+    return new File(options.directory, String.format("%s-%0" + width + "d%s", options.metric, part, extension));
+  }
+
+  /**
+   * Writes consecutive points of the series to a file.
+   * @return number of bytes written, before compression
+   */
+  private static long generateFile(final Options options, final File file, long time, final int time_inc,
+                                   final long count, final SplittableRandom rand) throws IOException {
+    final boolean csv = options.isCsv();
+    final byte[][] metricNames = new byte[options.numMetrics][];
+    for (int m = 0; m < options.numMetrics; m++) {
+      final String name = options.metric + ((options.numMetrics > 1) ? "." + m : "");
+      metricNames[m] = (csv ? '"' + name + '"' : name).getBytes(StandardCharsets.UTF_8);
+    }
+    // everything from the separator before a tag to its value id
+    final byte[][] tagPrefixes = new byte[options.maxTags][];
+    for (int v = 0; v < options.maxTags; v++) {
+      tagPrefixes[v] = ((csv ? ", \"" : " ") + "tag" + v + "=value").getBytes(StandardCharsets.UTF_8);
+    }
+    final byte[] separator = (csv ? ", " : " ").getBytes(StandardCharsets.UTF_8);
+
+    final Series series = new Series(options, rand);
+    // the last point written, repeated by duplicates
+    int last = 0;
+    long lastTime = time;
+
+    try (LineWriter out = openWriter(options, file)) {
+      for (long i = 0; i < count; i++) {
+        final int s;
+        final long t;
+        if (i > 0 && options.duplicates > 0 && rand.nextDouble() < options.duplicates) {
+          s = last;
+          t = lastTime;
+        } else {
+          s = series.next(rand);
+          t = options.late > 0 && rand.nextDouble() < options.late
+            ? time - (long) time_inc * (1 + rand.nextInt(MAX_LATENESS)) : time;
+        }
 
-    long startTime = System.currentTimeMillis();
+        out.put(metricNames[series.metric(s)])
+          .put(separator)
+          .putLong(t)
+          .put(separator);
+        // Alter the value by a range of +/- RANDOM_GAP, with decimals for decimal series
+        if (series.isDecimal(s)) {
+          out.putDecimal(series.step(s, rand.nextInt(RANGE * DECIMAL_UNIT) - GAP * DECIMAL_UNIT), SCALE);
+        } else {
+          out.putLong(series.step(s, rand.nextInt(RANGE) - GAP));
+        }
 
-    for (int year = startYear; year < startYear + totalYears; year++) {
+        final int tags = series.tags(s);
+        for (int v = 0; v < tags; v++) {
+          final int tagValue = series.tagValue(s, v);
+          out.put(tagPrefixes[v]).putLong(tagValue);
+          if (options.padding > 0) {
+            out.put(PADDING, 0, (int) Long.remainderUnsigned(mix(tagValue), options.padding + 1));
+          }
+          if (csv) {
+            out.put((byte) '"');
+          }
+        }
+        out.put((byte) '\n');
 
-      File metricFile = new File(metricName + extension);
-      OutputStream os = createOutputStream(metricFile);
+        last = s;
+        lastTime = t;
+        time += time_inc;
+      }
+      out.flush();
+      System.out.printf("%s: %d points\n", file, count);
+      return out.written();
+    }
+  }
 
-      long time = (pph > 3600) ? cal.getTimeInMillis() : cal.getTimeInMillis() / 1000;
-      int time_inc = (pph > 3600) ? 3600000 / pph : 3600 / pph;
+  private static LineWriter openWriter(final Options options, final File file) throws IOException {
+    if (options.compression == Compression.NONE) {
+      final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      return new LineWriter(channel, options.bufferSize, true);
+    }
+    final OutputStream fos = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+    final OutputStream out = options.compression == Compression.GZIP
+      ? new GZIPOutputStream(fos, 1 << 16) : new BgzfOutputStream(fos);
+    return new LineWriter(out, options.bufferSize);
+  }
 
-      for (int day = 0; day < days; day++) {
-        System.out.printf("Day %d / %d\n", day+1, days);
-        for (int hour = 0; hour < 24; hour++) {
-          for (int i = 0; i < pph; i++) {
+  /**
+   * SplitMix64 finalizer, spreading the bits of ids over a long.
+   */
+  static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
 
-            for (int v = 0; v < numTagK; v++) {
-              tagValues[v] = rand.nextInt(numTagV);
-            }
+  /**
+   * The series of a file: their metric, tags and whether their values are
+   * decimal are derived from their id and the seed, so they don't take any
+   * memory, and only their current value is kept.
+   */
+  private static final class Series {
+    private final Options options;
+    private final long salt;
+    private final long[] values;
+    private final ZipfSampler zipf;
+
+    Series(final Options options, final SplittableRandom rand) {
+      this.options = options;
+      // the series are the same in all the parts
+      this.salt = mix(options.seed);
+      this.values = new long[options.numSeries];
+      for (int s = 0; s < values.length; s++) {
+        values[s] = rand.nextInt(RANGE) - GAP;
+      }
+      this.zipf = options.skew > 0 ? new ZipfSampler(options.numSeries, options.skew) : null;
+    }
 
-            final String mname = metricName + ((numMetrics > 1) ? "." + rand.nextInt(numMetrics) : "");
+    /**
+     * @return id of the series of the next point, the lower the more likely
+     */
+    int next(final SplittableRandom rand) {
+      if (values.length == 1) {
+        return 0;
+      }
+      return zipf != null ? zipf.sample(rand) - 1 : rand.nextInt(values.length);
+    }
 
-            if (csv)
-              writeRecordCSV(os, mname, time, value, tagValues);
-            else
-              writeRecord(os, mname, time, value, tagValues);
+    private long hash(final int s, final int field) {
+      return mix(salt + s * 0x9e3779b97f4a7c15L + field);
+    }
 
-            // Alter the value by a range of +/- RANDOM_GAP
-            value += rand.nextInt(range) - gap;
+    int metric(final int s) {
+      return (int) Long.remainderUnsigned(hash(s, -1), options.numMetrics);
+    }
 
-            time+= time_inc;
+    int tags(final int s) {
+      return options.minTags
+        + (int) Long.remainderUnsigned(hash(s, -2), options.maxTags - options.minTags + 1);
+    }
 
-            count++;
-          }
-        }
-      }
+    int tagValue(final int s, final int tag) {
+      return (int) Long.remainderUnsigned(hash(s, tag), options.numTagV);
+    }
 
-      os.flush();
-      os.close();
+    boolean isDecimal(final int s) {
+      return (hash(s, -3) >>> 11) * 0x1.0p-53 < options.decimals;
+    }
 
-      cal.add(Calendar.YEAR, 1);
+    /**
+     * Moves the value of a series.
+     * @return the new value
+     */
+    long step(final int s, final long delta) {
+      long value = values[s] + delta;
+      if (!options.negatives && value < 0) {
+        value = -value;
+      }
+      values[s] = value;
+      return value;
     }
-    long totalTime = System.currentTimeMillis() - startTime;
-    //TODO display total number of data points
-    System.out.printf("Total time to create %d data points: %dms\n", count, totalTime);
   }
 
-  private static OutputStream createOutputStream(File path) throws IOException {
-    FileOutputStream fos = new FileOutputStream(path);
-    return new BufferedOutputStream(fos);
-  }
+  /**
+   * Samples ranks in [1, n] following a Zipf distribution of exponent
+   * skew, in constant time and memory, with the rejection-inversion method
+   * of Hormann and Derflinger.
+   */
+  static final class ZipfSampler {
+    private final int n;
+    private final double exponent;
+    private final double hIntegralX1;
+    private final double hIntegralN;
+    private final double s;
+
+    ZipfSampler(final int n, final double exponent) {
+      this.n = n;
+      this.exponent = exponent;
+      this.hIntegralX1 = hIntegral(1.5) - 1;
+      this.hIntegralN = hIntegral(n + 0.5);
+      this.s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+    }
 
-  private static void writeRecord(OutputStream os, String metricName, long time, long value, int[] tagValues) throws IOException {
-    StringBuffer record = new StringBuffer();
-    record.append(metricName)
-      .append(" ")
-      .append(time)
-      .append(" ")
-      .append(value);
+    int sample(final SplittableRandom rand) {
+      while (true) {
+        final double u = hIntegralN + rand.nextDouble() * (hIntegralX1 - hIntegralN);
+        final double x = hIntegralInverse(u);
+        final int k = (int) Math.max(1, Math.min(n, (long) (x + 0.5)));
+        if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+          return k;
+        }
+      }
+    }
 
-    for (int v = 0; v < tagValues.length; v++) {
-      record.append(" ")
-        .append("tag")
-        .append(v)
-        .append("=")
-        .append("value")
-        .append(tagValues[v]);
+    private double hIntegral(final double x) {
+      final double logX = Math.log(x);
+      return helper2((1 - exponent) * logX) * logX;
     }
 
-    record.append("\n");
+    private double h(final double x) {
+      return Math.exp(-exponent * Math.log(x));
+    }
 
-    os.write(record.toString().getBytes());
-  }
+    private double hIntegralInverse(final double x) {
+      final double t = Math.max(-1, x * (1 - exponent));
+      return Math.exp(helper1(t) * x);
+    }
 
-  private static void writeRecordCSV(final OutputStream os, final String metricName, final long time, final long value, final int[] tagValues) throws IOException {
-    StringBuffer record = new StringBuffer();
-    record.append('"').append(metricName).append('"')
-      .append(", ")
-      .append(time)
-      .append(", ")
-      .append(value);
+    /** log(1 + x) / x */
+    private static double helper1(final double x) {
+      return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1 - x * (0.5 - x * (1 / 3.0 - 0.25 * x));
+    }
 
-    for (int v = 0; v < tagValues.length; v++) {
-      record.append(", \"")
-        .append("tag")
-        .append(v)
-        .append("=")
-        .append("value")
-        .append(tagValues[v])
-        .append('"');
+    /** (exp(x) - 1) / x */
+    private static double helper2(final double x) {
+      return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1 + x * 0.5 * (1 + x / 3.0 * (1 + 0.25 * x));
     }
+  }
 
-    record.append("\n");
+  static class Options {
+    @Argument(index = 0, metaVar = "metric", required = true)
+    String metric;
+    @Argument(index = 1, metaVar = "num_days", required = true)
+    int days;
+    @Argument(index = 2, metaVar = "pph", required = true, usage = "points per hour")
+    int pph;
+    @Argument(index = 3, metaVar = "csv", usage = "write csv instead of tsd lines")
+    String format;
+
+    @Option(name = "-seed", usage = "seed of the random values, the same seed generates the same files")
+    long seed = new SplittableRandom().nextLong();
+    @Option(name = "-parts", usage = "number of files the points are split in, named metric-N")
+    int parts = 1;
+    @Option(name = "-threads", usage = "number of files generated in parallel")
+    int threads = Runtime.getRuntime().availableProcessors();
+    @Option(name = "-buffer", usage = "size in bytes of the output buffer of each file")
+    int bufferSize = 4 << 20;
+    @Option(name = "-year", usage = "year of the first point, starting on January 1st")
+    int startYear = 2010;
+    @Option(name = "-dir", usage = "directory of the generated files")
+    File directory = new File(".");
+    @Option(name = "-compress", usage = "GZIP, or BGZF to write gzip members that can be inflated in parallel")
+    Compression compression = Compression.NONE;
+
+    @Option(name = "-profile", usage = "shape of the data, the following options override it")
+    Profile profile = Profile.SIMPLE;
+    @Option(name = "-metrics", usage = "number of metrics")
+    Integer metrics;
+    @Option(name = "-series", usage = "number of series")
+    Integer series;
+    @Option(name = "-minTags", usage = "minimum number of tags of a series")
+    Integer minTagsOption;
+    @Option(name = "-maxTags", usage = "maximum number of tags of a series")
+    Integer maxTagsOption;
+    @Option(name = "-tagValues", usage = "number of values of each tag")
+    Integer tagValues;
+    @Option(name = "-skew", usage = "exponent of the Zipf distribution of the series, 0 for uniform")
+    Double skewOption;
+    @Option(name = "-late", usage = "share of points up to 1000 points late, in [0, 1]")
+    Double lateOption;
+    @Option(name = "-duplicates", usage = "share of points repeating the series and timestamp of the previous one")
+    Double duplicatesOption;
+    @Option(name = "-decimals", usage = "share of series with decimal values, in [0, 1]")
+    Double decimalsOption;
+    @Option(name = "-negatives", handler = ExplicitBooleanOptionHandler.class, usage = "allow negative values, true or false")
+    Boolean negativesOption;
+    @Option(name = "-padding", usage = "maximum number of characters added to tag values")
+    Integer paddingOption;
+
+    // the profile with its overrides, set by resolve()
+    int numMetrics;
+    int numSeries;
+    int minTags;
+    int maxTags;
+    int numTagV;
+    double skew;
+    double late;
+    double duplicates;
+    double decimals;
+    boolean negatives;
+    int padding;
+
+    /**
+     * Applies the options to the profile.
+     * @throws IllegalArgumentException if the result is inconsistent
+     */
+    void resolve() {
+      numMetrics = metrics != null ? metrics : profile.metrics;
+      numSeries = series != null ? series : profile.series;
+      minTags = minTagsOption != null ? minTagsOption : profile.minTags;
+      maxTags = maxTagsOption != null ? maxTagsOption : Math.max(minTags, profile.maxTags);
+      numTagV = tagValues != null ? tagValues : profile.tagValues;
+      skew = skewOption != null ? skewOption : profile.skew;
+      late = lateOption != null ? lateOption : profile.late;
+      duplicates = duplicatesOption != null ? duplicatesOption : profile.duplicates;
+      decimals = decimalsOption != null ? decimalsOption : profile.decimals;
+      negatives = negativesOption != null ? negativesOption : profile.negatives;
+      padding = paddingOption != null ? paddingOption : profile.padding;
+
+      Preconditions.checkArgument(numMetrics > 0 && numSeries > 0 && numTagV > 0,
+        "metrics, series and tagValues must be positive");
+      Preconditions.checkArgument(minTags >= 0 && minTags <= maxTags, "tags must be in [0, maxTags]");
+      Preconditions.checkArgument(skew >= 0, "skew cannot be negative");
+      Preconditions.checkArgument(padding >= 0 && padding <= PADDING.length, "padding must be in [0, %s]",
+        PADDING.length);
+      for (double share : new double[]{late, duplicates, decimals}) {
+        Preconditions.checkArgument(share >= 0 && share <= 1, "shares must be in [0, 1]");
+      }
+    }
 
-    os.write(record.toString().getBytes());
+    boolean isCsv() {
+      return "csv".equals(format);
+    }
   }
 }
@@ -11,21 +11,60 @@
 // of the GNU Lesser General Public License along with this program. If not,
 // see <http://www.gnu.org/licenses/>.
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.text.DecimalFormat;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
 
 import readers.BufferedFileReader;
 import readers.BufferedOldReader;
+import readers.CachedFileReader;
 import readers.CharBufferFileReader;
+import readers.CsvFileReader;
 import readers.FastBufferedReader;
 import readers.FastLineReader;
 import readers.FileReader;
+import readers.InputFiles;
+import readers.MappedFileReader;
+import readers.PointBatch;
+import readers.PointCache;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import sinks.BatchingSink;
+import sinks.HttpTransport;
+import sinks.LocalTsdbServer;
+import sinks.NullSink;
+import sinks.PointSink;
+import sinks.RollupSink;
+import sinks.StoreSink;
+import sinks.TelnetTransport;
+import store.Series;
+import store.SeriesStore;
+import store.TagIndex;
+import utils.DoubleParser;
+import utils.FastLine;
+import utils.ImportMetrics;
+import utils.ImportMetrics.Stage;
+import utils.InputStreams;
+import utils.LineErrors;
+import utils.Status;
+import utils.SymbolTable;
+import utils.TagSet;
 import utils.Tags;
 
 final class TextImporter2 {
@@ -35,6 +74,21 @@ final class TextImporter2 {
   private static final Runtime runtime = Runtime.getRuntime();
   private static final DecimalFormat sizeFormatter = new DecimalFormat("#,##0.#");
 
+  /** parallel imports don't split files in chunks smaller than this */
+  private static final long MIN_CHUNK_SIZE = 1 << 20;
+  /** number of points of the blocks of the point caches and of the batches they are read in, unless -batch is set */
+  private static final int DEFAULT_CACHE_BATCH = 4096;
+  /** number of lines between two updates of the shared counters, a power of 2 */
+  private static final int PUBLISH_INTERVAL = 4096;
+
+  /** counters and sampled latencies of all the imports, see -report */
+  private static final ImportMetrics METRICS = new ImportMetrics();
+  /** series of the points imported with -sink STORE */
+  private static final SeriesStore STORE = new SeriesStore();
+  /** windows rolled up, and points too late to be, with -rollups */
+  private static final LongAdder ROLLUP_WINDOWS = new LongAdder();
+  private static final LongAdder ROLLUP_LATE = new LongAdder();
+
   public static void main(String[] args) throws Exception {
     Options myOptions = new Options();
     CmdLineParser parser = new CmdLineParser(myOptions);
@@ -47,22 +101,157 @@ final class TextImporter2 {
       System.exit(-1);
     }
 
-    LOG.info("path: {}", myOptions.input);
+    final List<String> files = InputFiles.expand(myOptions.input);
+    LOG.info("path: {} ({} files)", myOptions.input, files.size());
     LOG.info("buffer size: {}", myOptions.bufferSize);
     LOG.info("reader: {}", myOptions.reader);
+    if (myOptions.reader == Options.Reader.FAST_LINE) {
+      LOG.info("line buffer: {}, max line length: {}, direct: {}", myOptions.lineBufferSize,
+        myOptions.maxLineLength, myOptions.direct);
+    }
+    LOG.info("threads: {}", myOptions.threads);
+    LOG.info("inflate threads: {}", myOptions.inflateThreads);
+    LOG.info("read ahead: {}", myOptions.readAhead);
+    LOG.info("batch size: {}", myOptions.batchSize);
+    LOG.info("cache: {}", myOptions.cache);
+    LOG.info("sink: {}", myOptions.sink);
+    if (myOptions.rollups != null) {
+      LOG.info("rollups: {} (tolerance {})", myOptions.rollups, myOptions.rollupTolerance);
+    }
+    LOG.info("on error: {}", myOptions.onError == LineErrors.Mode.QUARANTINE
+      ? "QUARANTINE to " + myOptions.quarantineFile : myOptions.onError);
+    if (myOptions.onError != LineErrors.Mode.FAIL) {
+      myOptions.lineErrors = new LineErrors(myOptions.onError, myOptions.onError == LineErrors.Mode.QUARANTINE
+        ? new BufferedOutputStream(new FileOutputStream(myOptions.quarantineFile), 1 << 16) : null, METRICS);
+    }
 
     if (myOptions.showMem) {
       runtime.gc();
     }
 
+    LocalTsdbServer server = null;
+    if ((myOptions.sink == Options.Sink.TELNET || myOptions.sink == Options.Sink.HTTP)
+      && myOptions.sinkAddress == null) {
+      server = new LocalTsdbServer(myOptions.sinkDelay);
+      myOptions.sinkAddress = server.host() + ":" + server.port();
+      LOG.info("sending points to a local stand-in TSDB on {}", myOptions.sinkAddress);
+    }
+
+    METRICS.register();
+    final Closeable reporter = myOptions.reportSeconds > 0 ? METRICS.startReporter(myOptions.reportSeconds) : null;
+
     final long start_time = System.nanoTime();
     long points = 0;
 
+    if (files.size() == 1 && myOptions.cache && myOptions.threads > 1) {
+      LOG.warn("the point cache of a file is read and written by a single thread");
+    }
+
     for (int i = 0; i < myOptions.repetitions; i++) {
-      points += importFile(myOptions);
+      if (files.size() > 1) {
+        points += importFiles(myOptions, files);
+      } else if (myOptions.threads > 1 && !myOptions.cache) {
+        points += importFileParallel(myOptions, files.get(0));
+      } else {
+        points += importFile(myOptions, files.get(0));
+      }
     }
 
+    if (reporter != null) {
+      reporter.close();
+    }
+    METRICS.log();
     displayAvgSpeedAndMemory(start_time, points, false);
+    if (server != null) {
+      LOG.info("local TSDB received {} points in {} requests ({})", server.points(), server.requests(),
+        formatSize(server.bytes()));
+      server.close();
+    }
+    if (myOptions.rollups != null) {
+      LOG.info("rollups: {} windows, {} late points left out", ROLLUP_WINDOWS.sum(), ROLLUP_LATE.sum());
+    }
+    if (myOptions.onError != LineErrors.Mode.FAIL) {
+      logLineErrors(myOptions.lineErrors);
+    }
+    if (myOptions.sink == Options.Sink.STORE) {
+      logStore();
+      logIndex(myOptions.indexQueries);
+    }
+  }
+
+  /**
+   * Logs the number of lines left out, by reason, and closes the quarantine
+   * file.
+   */
+  private static void logLineErrors(final LineErrors errors) throws IOException {
+    errors.close();
+    LOG.info("bad lines: {} left out", errors.total());
+    for (Status status : Status.values()) {
+      if (errors.count(status) > 0) {
+        LOG.info("bad lines: {} {}", errors.count(status), status.message());
+      }
+    }
+  }
+
+  /**
+   * Logs the size of {@link #STORE}, and checks that all its points can be
+   * scanned back.
+   */
+  private static void logStore() {
+    LOG.info("store: {} series, {} points in {} blocks, {} ({} bytes/point)", STORE.size(), STORE.points(),
+      STORE.blocks(), formatSize(STORE.bytes()),
+      String.format("%.2f", STORE.points() == 0 ? 0.0 : (double) STORE.bytes() / STORE.points()));
+    final long start = System.nanoTime();
+    long scanned = 0;
+    for (Series series : STORE.series()) {
+      scanned += series.scan((timestamp, isInteger, longValue, doubleValue) -> { });
+    }
+    LOG.info(String.format("store: scanned %d points in %.3fs", scanned, (System.nanoTime() - start) / 1e9));
+  }
+
+  /**
+   * Logs the size of the tag index of {@link #STORE}, and the latency of
+   * queries on the metric and tags of random series.
+   */
+  private static void logIndex(final int queries) {
+    final TagIndex index = STORE.index();
+    index.trim();
+    LOG.info("index: {} series, {} metrics, {} tags, {} ({} bytes/series)", index.size(), index.metrics(),
+      index.tags(), formatSize(index.bytes()), index.size() == 0 ? 0 : index.bytes() / index.size());
+    if (queries <= 0 || index.size() == 0) {
+      return;
+    }
+
+    // metric prefix, first and last tags of random series
+    final SplittableRandom random = new SplittableRandom(0);
+    final String[][] sample = new String[queries][];
+    for (int i = 0; i < queries; i++) {
+      final Series series = index.series(random.nextInt(index.size()));
+      final String metric = series.metric();
+      final String[] tags = series.tags();
+      sample[i] = new String[] { metric.substring(0, Math.max(1, metric.length() - 1)),
+        tags.length > 0 ? tags[0] : "", tags.length > 0 ? tags[tags.length - 1] : "" };
+    }
+    timeQueries("tag", sample, q -> index.find(q[1]).length);
+    timeQueries("tag AND tag", sample, q -> index.find(q[1], q[2]).length);
+    timeQueries("tag OR tag", sample, q -> TagIndex.or(index.find(q[1]), index.find(q[2])).length);
+    timeQueries("metric prefix", sample, q -> index.metricPrefix(q[0]).length);
+  }
+
+  private static void timeQueries(final String name, final String[][] sample, final ToIntFunction<String[]> query) {
+    // once to warm up, once timed
+    long results = 0;
+    long start = 0;
+    for (int run = 0; run < 2; run++) {
+      results = 0;
+      start = System.nanoTime();
+      for (String[] q : sample) {
+        results += query.applyAsInt(q);
+      }
+    }
+    final double micros = (System.nanoTime() - start) / 1e3 / sample.length;
+    LOG.info(String.format("index: %s in %.1fus, %.1f series on average", name, micros,
+      (double) results / sample.length));
   }
 
   private static String formatSize(long size) {
@@ -87,17 +276,62 @@ final class TextImporter2 {
   }
 
   private static FileReader newReader(Options options) {
+    final FileReader reader = createReader(options);
+    reader.setInputStreams(new InputStreams(options.inflateThreads, options.readAhead, options.ioBufferSize,
+      options.ioDepth, METRICS));
+    reader.setLineErrors(options.lineErrors);
+    return reader;
+  }
+
+  /**
+   * Creates the sink of a worker, see -sink.
+   */
+  private static PointSink newSink(Options options) throws IOException {
+    if (options.sink == Options.Sink.NULL) {
+      return NullSink.INSTANCE;
+    }
+    if (options.sink == Options.Sink.STORE) {
+      return new StoreSink(STORE);
+    }
+    final int colon = options.sinkAddress.lastIndexOf(':');
+    if (colon < 0) {
+      throw new IllegalArgumentException("-sinkAddress must be host:port, not " + options.sinkAddress);
+    }
+    final String host = options.sinkAddress.substring(0, colon);
+    final int port = Integer.parseInt(options.sinkAddress.substring(colon + 1));
+    if (options.sink == Options.Sink.TELNET) {
+      return new BatchingSink(new TelnetTransport(host, port), BatchingSink.Format.TELNET, options.sinkBatch,
+        options.sinkInFlight);
+    }
+    return new BatchingSink(new HttpTransport(host, port), BatchingSink.Format.JSON, options.sinkBatch,
+      options.sinkInFlight);
+  }
+
+  /**
+   * @return whether the reader of -reader can read byte ranges of a file
+   */
+  private static boolean supportsRanges(Options options) throws IOException {
+    try (FileReader reader = createReader(options)) {
+      return reader.supportsRanges();
+    }
+  }
+
+  private static FileReader createReader(Options options) {
     switch (options.reader) {
       case BUFFERED:
         return new BufferedFileReader(options.bufferSize);
       case CHAR_BUFFER:
         return new CharBufferFileReader();
       case FAST_LINE:
-        return new FastLineReader();
+        return new FastLineReader(options.lineBufferSize, options.maxLineLength, options.direct);
       case BUFFERED_OLD:
         return new BufferedOldReader(options.bufferSize);
       case FAST_BUFFER:
         return new FastBufferedReader(options.bufferSize);
+      case MAPPED:
+        return new MappedFileReader(options.windowSize);
+      case CSV:
+        return new CsvFileReader(options.bufferSize);
       default:
         throw new IllegalArgumentException("Unkown Reader " + options.reader);
     }
@@ -107,68 +341,463 @@ final class TextImporter2 {
    * @return number of points imported from file
    * @throws IOException
    */
-  private static long importFile(final Options options) throws IOException {
+  private static long importFile(final Options options, final String fileName) throws IOException {
 
-    final FileReader reader = newReader(options);
+    final Counts counts = new Counts();
+    final long start_time = System.nanoTime();
+
+    try (Worker worker = new Worker(options)) {
+      importFile(worker, fileName, counts);
+    }
+
+    displayAvgSpeedAndMemory(start_time, counts.points, options.showMem);
+    System.out.printf("%ntotal words read %d%ntotal points read %d%n", counts.words, counts.points);
+
+    return counts.points;
+  }
+
+  /**
+   * Imports a file with the reader of a worker, or from its
+   * {@link PointCache} with -cache, adding its points to counts.
+   */
+  private static void importFile(final Worker worker, final String fileName, final Counts counts)
+    throws IOException {
+    if (worker.options.cache) {
+      importCached(worker, fileName, counts);
+      return;
+    }
+    final long points = counts.points;
+    final FileReader reader = worker.reader();
+    try {
+      reader.readFile(fileName);
+      importLines(worker, reader, counts);
+    } catch (RuntimeException e) {
+      LOG.error("Error processing point " + (counts.points - points) + " of " + fileName);
+      throw e;
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Imports a given file to TSDB from its {@link PointCache}, after writing
+   * the cache if it doesn't exist or is stale.
+   * @throws IOException
+   */
+  private static void importCached(final Worker worker, final String fileName, final Counts counts)
+    throws IOException {
+    final Options options = worker.options;
+    final String cacheFile = PointCache.cacheFile(fileName);
+
+    if (PointCache.isValid(fileName, cacheFile)) {
+      final FileReader reader = worker.cachedReader();
+      try {
+        reader.readFile(cacheFile);
+        importLines(worker, reader, counts);
+      } finally {
+        reader.close();
+      }
+      return;
+    }
+
+    LOG.info("writing point cache {}", cacheFile);
+    // the dictionary of a cache only holds the symbols of its own points
+    final PointBatch batch = new PointBatch(options.batchSize > 0 ? options.batchSize : DEFAULT_CACHE_BATCH);
+    final long points = counts.points;
+    final FileReader reader = worker.reader();
+    try (PointCache.Writer writer = new PointCache.Writer(fileName, cacheFile)) {
+      reader.readFile(fileName);
+      while (reader.readBatch(batch) > 0) {
+        writer.write(batch);
+        worker.sink.add(batch);
+        counts.points += batch.size();
+        counts.words += batch.words();
+        METRICS.addLines(batch.size());
+        METRICS.addFields(batch.words());
+      }
+      writer.commit();
+    } catch (RuntimeException e) {
+      LOG.error("Error processing point " + (counts.points - points + batch.size()) + " of " + fileName);
+      throw e;
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Imports several files with options.threads workers, each reusing its
+   * reader and buffers across the files it imports. Files are taken largest
+   * first by the workers as they become idle, so that with enough workers
+   * the import takes about as long as its largest file.
+   * @return number of points imported from the files
+   * @throws IOException
+   */
+  private static long importFiles(final Options options, final List<String> files) throws IOException {
+    final long start_time = System.nanoTime();
+    final Queue<String> queue = new ConcurrentLinkedQueue<>(InputFiles.largestFirst(files));
+    final int workers = Math.min(options.threads, files.size());
+    final ForkJoinPool pool = new ForkJoinPool(workers);
+    final Counts total;
+
+    try {
+      final List<Future<Counts>> results = new ArrayList<>(workers);
+      for (int i = 0; i < workers; i++) {
+        results.add(pool.submit(() -> importQueue(options, queue)));
+      }
+      total = sum(results);
+    } finally {
+      pool.shutdown();
+    }
+
+    displayAvgSpeedAndMemory(start_time, total.points, options.showMem);
+    System.out.printf("%ntotal files read %d%ntotal words read %d%ntotal points read %d%n",
+      files.size(), total.words, total.points);
+
+    return total.points;
+  }
+
+  /**
+   * Imports the files of the queue until it is empty. The queue is cleared
+   * on errors, so the other workers stop after their current file.
+   */
+  private static Counts importQueue(final Options options, final Queue<String> queue) throws IOException {
+    final Counts counts = new Counts();
+    try (Worker worker = new Worker(options)) {
+      String fileName;
+      while ((fileName = queue.poll()) != null) {
+        importFile(worker, fileName, counts);
+      }
+    } catch (IOException | RuntimeException e) {
+      queue.clear();
+      throw e;
+    }
+    return counts;
+  }
+
+  /**
+   * Imports a given file to TSDB, splitting it in byte ranges imported in
+   * parallel by options.threads workers, each with its own reader.
+   * @return number of points imported from file
+   * @throws IOException
+   */
+  private static long importFileParallel(final Options options, final String fileName) throws IOException {
+    if (InputStreams.isCompressed(fileName)) {
+      LOG.warn("compressed files can't be split, importing {} on a single thread, see -inflateThreads", fileName);
+      return importFile(options, fileName);
+    }
+    if (!supportsRanges(options)) {
+      LOG.warn("reader {} can't split a file, importing {} on a single thread", options.reader, fileName);
+      return importFile(options, fileName);
+    }
 
-    long points = 0;
-    long words = 0;
     final long start_time = System.nanoTime();
+    final long size = new File(fileName).length();
+    // a few chunks per worker, so a slow chunk doesn't hold the whole import
+    final int numChunks = (int) Math.max(1, Math.min(options.threads * 4L, size / MIN_CHUNK_SIZE));
+    final ForkJoinPool pool = new ForkJoinPool(options.threads);
+    final Counts total;
+
+    try {
+      final List<Future<Counts>> chunks = new ArrayList<>(numChunks);
+      for (int i = 0; i < numChunks; i++) {
+        final long start = size * i / numChunks;
+        final long end = size * (i + 1) / numChunks;
+        chunks.add(pool.submit(() -> importChunk(options, fileName, start, end)));
+      }
+      total = sum(chunks);
+    } finally {
+      pool.shutdown();
+    }
+
+    displayAvgSpeedAndMemory(start_time, total.points, options.showMem);
+    System.out.printf("%ntotal words read %d%ntotal points read %d%n", total.words, total.points);
+
+    return total.points;
+  }
 
+  private static Counts importChunk(final Options options, final String fileName, final long start, final long end)
+    throws IOException {
+    final Counts counts = new Counts();
+    try (Worker worker = new Worker(options)) {
+      final FileReader reader = worker.reader();
+      reader.readFile(fileName, start, end);
+      importLines(worker, reader, counts);
+    } catch (RuntimeException e) {
+      LOG.error("Error processing point " + counts.points + " of chunk starting at byte " + start);
+      throw e;
+    }
+    return counts;
+  }
+
+  /**
+   * Waits for the counts of parallel workers and adds them up.
+   */
+  private static Counts sum(final List<Future<Counts>> results) throws IOException {
+    final Counts total = new Counts();
     try {
-      reader.readFile(options.input);
-      while (reader.readln()) {
-        words += processAndImportLine(reader);
+      for (Future<Counts> result : results) {
+        total.add(result.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("import interrupted", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+    return total;
+  }
 
-        points++;
+  /**
+   * Imports all the lines of a reader, one at a time, or in batches of
+   * options.batchSize points if it's positive, adding them to counts. Point
+   * caches are always read in batches: their points are already parsed, and
+   * would only be turned back into text to be read one line at a time. The
+   * counts are published to {@link #METRICS} every {@link #PUBLISH_INTERVAL}
+   * lines or so.
+   */
+  private static void importLines(final Worker worker, final FileReader reader, final Counts counts)
+    throws IOException {
+    final Counts published = new Counts();
+    published.add(counts);
+    try {
+      if (worker.options.batchSize > 0 || worker.options.cache) {
+        importBatches(reader, worker.batch(), worker.sink, counts, published);
+        return;
+      }
 
-        if (points % 1_000_000 == 0) {
-          displayAvgSpeedAndMemory(start_time, points, options.showMem);
+      final SymbolTable metrics = worker.metrics;
+      final TagSet tags = worker.tags;
+      while (true) {
+        final Status status;
+        if (!METRICS.sample(counts.points)) {
+          if (!reader.readln()) {
+            break;
+          }
+          status = processAndImportLine(reader, metrics, tags, worker.sink, counts, null);
+        } else {
+          final long start = System.nanoTime();
+          if (!reader.readln()) {
+            break;
+          }
+          METRICS.record(Stage.TOKENIZE, System.nanoTime() - start);
+          status = processAndImportLine(reader, metrics, tags, worker.sink, counts, METRICS);
+        }
+        if (status != Status.OK) {
+          reader.reject(status);
+          continue;
+        }
+        counts.points++;
+        if ((counts.points & (PUBLISH_INTERVAL - 1)) == 0) {
+          publish(counts, published);
         }
       }
     } catch (RuntimeException e) {
-      LOG.error("Error processing point " + points);
+      METRICS.addError();
       throw e;
+    } finally {
+      publish(counts, published);
     }
+  }
 
-    displayAvgSpeedAndMemory(start_time, points, options.showMem);
-    System.out.printf("%ntotal words read %d%ntotal points read %d%n", words, points);
+  private static void importBatches(final FileReader reader, final PointBatch batch, final PointSink sink,
+                                    final Counts counts, final Counts published) throws IOException {
+    try {
+      while (true) {
+        final long start = System.nanoTime();
+        if (reader.readBatch(batch) == 0) {
+          break;
+        }
+        METRICS.record(Stage.BATCH, System.nanoTime() - start);
+        sink.add(batch);
+        counts.points += batch.size();
+        counts.words += batch.words();
+        publish(counts, published);
+      }
+    } catch (RuntimeException e) {
+      // count the points parsed before the bad line
+      counts.points += batch.size();
+      throw e;
+    }
+  }
 
-    return points;
+  /**
+   * Adds to {@link #METRICS} the part of counts not published yet.
+   */
+  private static void publish(final Counts counts, final Counts published) {
+    METRICS.addLines(counts.points - published.points);
+    METRICS.addFields(counts.words - published.words);
+    published.points = counts.points;
+    published.words = counts.words;
   }
 
-  private static long processAndImportLine(final FileReader reader) {
-    long words = 0;
+  /**
+   * Parses the line just read and adds its point to the sink, adding its
+   * fields to counts.
+   * @param sampled metrics recording the latencies of the stages of this
+   *                line, or null if it isn't sampled
+   * @return {@link Status#OK}, or what is wrong with the line, which isn't
+   *         added
+   */
+  private static Status processAndImportLine(final FileReader reader, final SymbolTable metrics, final TagSet tags,
+                                             final PointSink sink, final Counts counts, final ImportMetrics sampled)
+    throws IOException {
+    long time = sampled == null ? 0 : System.nanoTime();
+    long tagsTime = 0;
 
-    final String metric = reader.next();
-    words++;
+    if (!reader.hasNext()) {
+      return Status.MISSING_FIELDS;
+    }
+    final CharSequence metric = reader.nextSequence();
     if (metric.length() <= 0) {
-      throw new RuntimeException("invalid metric: " + metric);
+      return Status.INVALID_METRIC;
+    }
+    final int metricId = metrics.intern(metric);
+    if (sampled != null) {
+      final long now = System.nanoTime();
+      tagsTime = now - time;
+      time = now;
     }
 
-    long timestamp = reader.nextLong();
-    words++;
+    if (!reader.hasNext()) {
+      return Status.MISSING_FIELDS;
+    }
+    final long timestamp = reader.tryNextLong(0);
     if (timestamp <= 0) {
-      throw new RuntimeException("invalid timestamp: " + timestamp);
+      return Status.INVALID_TIMESTAMP;
     }
 
-    final String value = reader.next();
-    words++;
+    if (!reader.hasNext()) {
+      return Status.MISSING_FIELDS;
+    }
+    final CharSequence value = reader.nextSequence();
     if (value.length() <= 0) {
-      throw new RuntimeException("invalid value: " + value);
+      return Status.INVALID_VALUE;
+    }
+    final boolean isInteger = Tags.looksLikeInteger(value);
+    final long longValue = isInteger ? Tags.tryParseLong(value, Long.MIN_VALUE) : 0;
+    final double doubleValue = isInteger ? 0 : DoubleParser.tryParseDouble(value);
+    // "NaN" looks like an integer, so NaN is never a valid value here, and
+    // neither are the infinities, like 1e400, which a TSDB doesn't accept
+    if (isInteger ? longValue == Long.MIN_VALUE && !Tags.isLongMinValue(value)
+      : Double.isNaN(doubleValue) || Double.isInfinite(doubleValue)) {
+      return Status.INVALID_VALUE;
+    }
+    if (sampled != null) {
+      final long now = System.nanoTime();
+      sampled.record(Stage.NUMBERS, now - time);
+      time = now;
     }
 
-    final HashMap<String, String> tags = new HashMap<>();
+    long words = 3;
+    tags.clear();
     while (reader.hasNext()) {
-      Tags.parse(tags, reader.next());
+      final Status status = reader.tryNextTag(tags);
+      if (status != Status.OK) {
+        return status;
+      }
       words++;
     }
+    if (sampled != null) {
+      final long now = System.nanoTime();
+      sampled.record(Stage.TAGS, tagsTime + now - time);
+      time = now;
+    }
+
+    sink.add(metrics.symbol(metricId), timestamp, isInteger, longValue, doubleValue, tags);
+    if (sampled != null) {
+      sampled.record(Stage.SINK, System.nanoTime() - time);
+    }
+
+    counts.words += words;
+    return Status.OK;
+  }
+
+  /**
+   * A reader and the buffers of the lines it parses, reused across the files
+   * imported by a thread, and the sink of its points.
+   */
+  private static final class Worker implements Closeable {
+    final Options options;
+    final SymbolTable metrics = new SymbolTable();
+    final TagSet tags = new TagSet();
+    final PointSink sink;
+    /** the sink too, if the points are rolled up */
+    private final RollupSink rollups;
+    private FileReader reader;
+    private FileReader cachedReader;
+    private PointBatch batch;
+
+    Worker(Options options) throws IOException {
+      this.options = options;
+      if (options.rollups == null) {
+        this.rollups = null;
+        this.sink = newSink(options);
+      } else {
+        this.rollups = new RollupSink(newSink(options), options.rollups.split(","),
+          RollupSink.parseSeconds(options.rollupTolerance));
+        this.sink = rollups;
+      }
+    }
+
+    FileReader reader() {
+      if (reader == null) {
+        reader = newReader(options);
+      }
+      return reader;
+    }
+
+    FileReader cachedReader() {
+      if (cachedReader == null) {
+        cachedReader = new CachedFileReader(options.windowSize);
+      }
+      return cachedReader;
+    }
+
+    PointBatch batch() {
+      if (batch == null) {
+        batch = new PointBatch(options.batchSize > 0 ? options.batchSize : DEFAULT_CACHE_BATCH);
+      }
+      return batch;
+    }
 
-    return words;
+    /**
+     * Flushes the sink, then releases the readers.
+     */
+    @Override
+    public void close() throws IOException {
+      try {
+        sink.close();
+        if (rollups != null) {
+          ROLLUP_WINDOWS.add(rollups.windows());
+          ROLLUP_LATE.add(rollups.late());
+        }
+      } finally {
+        if (reader != null) {
+          reader.close();
+        }
+        if (cachedReader != null) {
+          cachedReader.close();
+        }
+      }
+    }
+  }
+
+  /** Points and words read by a worker, merged at the end of an import. */
+  private static final class Counts {
+    long points;
+    long words;
+
+    void add(Counts other) {
+      points += other.points;
+      words += other.words;
+    }
   }
 
   private static class Options {
-    @Option(name = "-input", required = true)
+    @Option(name = "-input", required = true, usage = "comma separated files, directories, globs or @file listing them")
     String input;
     @Option(name = "-repeat")
     int repetitions = 1;
@@ -178,9 +807,61 @@ final class TextImporter2 {
     Reader reader = Reader.BUFFERED;
     @Option(name = "-memory")
     boolean showMem = false;
+    @Option(name = "-threads", usage = "number of threads parsing a single file, or several files, in parallel")
+    int threads = 1;
+    @Option(name = "-lineBuffer", usage = "initial size in bytes of the buffer of the FAST_LINE reader")
+    int lineBufferSize = FastLine.FastLineReader.DEFAULT_BUFFER_SIZE;
+    @Option(name = "-maxLineLength", usage = "length in bytes of the longest line of the FAST_LINE reader, its buffer grows up to it, longer lines are handled like -onError says")
+    int maxLineLength = FastLine.FastLineReader.DEFAULT_MAX_LINE_LENGTH;
+    @Option(name = "-direct", usage = "read uncompressed files in a direct buffer with the FAST_LINE reader, unless they are read ahead")
+    boolean direct = false;
+    @Option(name = "-window", usage = "size in bytes of the windows mapped by the MAPPED reader")
+    int windowSize = MappedFileReader.DEFAULT_WINDOW_SIZE;
+    @Option(name = "-inflateThreads", usage = "number of threads inflating .gz files in the background, 0 to inflate on the reading thread")
+    int inflateThreads = InputStreams.DEFAULT_INFLATE_THREADS;
+    @Option(name = "-readAhead", usage = "read files on a background thread while parsing")
+    boolean readAhead = false;
+    @Option(name = "-ioBuffer", usage = "size in bytes of the buffers filled by the read-ahead and inflating threads")
+    int ioBufferSize = InputStreams.DEFAULT_BUFFER_SIZE;
+    @Option(name = "-ioDepth", usage = "number of buffers filled ahead of the parsing thread")
+    int ioDepth = InputStreams.DEFAULT_DEPTH;
+    @Option(name = "-batch", usage = "number of points read at once in columnar batches, 0 to read lines one at a time")
+    int batchSize = 0;
+    @Option(name = "-cache", usage = "import from a binary cache of the parsed points, written next to the input by the first import")
+    boolean cache = false;
+    @Option(name = "-report", usage = "seconds between two logs of the import metrics, 0 to only log them at the end")
+    long reportSeconds = 10;
+
+    @Option(name = "-onError", usage = "what to do with malformed lines: FAIL the import, SKIP them, or QUARANTINE them to -quarantine")
+    LineErrors.Mode onError = LineErrors.Mode.FAIL;
+    @Option(name = "-quarantine", usage = "file the malformed lines are copied to with -onError QUARANTINE")
+    String quarantineFile = "quarantine.txt";
+    /** set from onError */
+    LineErrors lineErrors = LineErrors.FAIL;
+
+    @Option(name = "-sink", usage = "where the points go: NULL discards them, TELNET and HTTP send them to a TSDB, STORE keeps them compressed in memory")
+    Sink sink = Sink.NULL;
+    @Option(name = "-indexQueries", usage = "number of random queries timed on the tag index of the STORE sink")
+    int indexQueries = 1000;
+    @Option(name = "-rollups", usage = "comma separated intervals, like 1m,1h, of min/max/sum/count rollups added to the sink")
+    String rollups;
+    @Option(name = "-rollupTolerance", usage = "how late points may come and still be rolled up, like 30s or 5m")
+    String rollupTolerance = "1m";
+    @Option(name = "-sinkAddress", usage = "host:port of the TSDB, a local stand-in server is started if not set")
+    String sinkAddress;
+    @Option(name = "-sinkBatch", usage = "number of points per request to the TSDB")
+    int sinkBatch = BatchingSink.DEFAULT_BATCH_SIZE;
+    @Option(name = "-sinkInFlight", usage = "number of requests per thread being built or sent to the TSDB")
+    int sinkInFlight = BatchingSink.DEFAULT_IN_FLIGHT;
+    @Option(name = "-sinkDelay", usage = "milliseconds the local stand-in server spends on each request")
+    long sinkDelay = 0;
 
     private enum Reader {
-      BUFFERED, CHAR_BUFFER, FAST_LINE, BUFFERED_OLD, FAST_BUFFER
+      BUFFERED, CHAR_BUFFER, FAST_LINE, BUFFERED_OLD, FAST_BUFFER, MAPPED, CSV
+    }
+
+    private enum Sink {
+      NULL, TELNET, HTTP, STORE
     }
   }
 }
\ No newline at end of file
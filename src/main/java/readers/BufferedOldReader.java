@@ -4,17 +4,15 @@ import com.google.common.base.Charsets;
 import utils.Tags;
 
 import java.io.BufferedReader;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.zip.GZIPInputStream;
 
 public class BufferedOldReader extends FileReader {
   private BufferedReader reader;
 
   private final int bufferSize;
 
+  private String line;
   private String[] words;
   private int fieldId;
 
@@ -25,16 +23,21 @@ public class BufferedOldReader extends FileReader {
 
   @Override
   public void readFile(String fileName) throws IOException {
-    InputStream is = new FileInputStream(fileName);
-    if (fileName.endsWith(".gz")) {
-      is = new GZIPInputStream(is);
+    close();
+    reader =  new BufferedReader(new InputStreamReader(openStream(fileName), Charsets.UTF_8), bufferSize);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (reader != null) {
+      reader.close();
+      reader = null;
     }
-    reader =  new BufferedReader(new InputStreamReader(is, Charsets.UTF_8), bufferSize);
   }
 
   @Override
   public boolean readln() throws IOException {
-    String line = reader.readLine();
+    line = reader.readLine();
     if (line == null) {
       return false;
     }
@@ -44,6 +47,11 @@ public class BufferedOldReader extends FileReader {
     return true;
   }
 
+  @Override
+  public CharSequence line() {
+    return line;
+  }
+
   @Override
   public boolean hasNext() {
     return fieldId < words.length;
@@ -0,0 +1,338 @@
+package readers;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.booleans.BooleanArrays;
+import it.unimi.dsi.fastutil.bytes.ByteArrays;
+import it.unimi.dsi.fastutil.doubles.DoubleArrays;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import utils.ByteSlice;
+import utils.MappedBuffers;
+import utils.SymbolTable;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads the points of a {@link PointCache} file, decoding its blocks from
+ * mapped memory without parsing any text.
+ * <p>
+ * {@link #readBatch(PointBatch)} is the fast path: points are copied from
+ * the decoded block to the batch, with their ids translated to the symbol
+ * tables of the batch. Lines can also be read field by field, in which case
+ * timestamps, values and tags are formatted back to text, so the reader can
+ * be used wherever a text reader is expected.
+ */
+public class CachedFileReader extends FileReader {
+
+  private final int windowSize;
+
+  private FileChannel channel;
+  private long fileSize;
+  /** file offset of the dictionary, right after the last block */
+  private long blocksEnd;
+  /** file offset of the next block */
+  private long position;
+
+  private MappedByteBuffer window;
+  private long windowStart;
+
+  private ByteSlice[] metricNames;
+  private ByteSlice[] tagKeyNames;
+  private ByteSlice[] tagValueNames;
+
+  // columns of the current block
+  private int blockSize;
+  private int point;
+  private int[] metrics = IntArrays.EMPTY_ARRAY;
+  private long[] timestamps = LongArrays.EMPTY_ARRAY;
+  private boolean[] integers = BooleanArrays.EMPTY_ARRAY;
+  private long[] longValues = LongArrays.EMPTY_ARRAY;
+  private double[] doubleValues = DoubleArrays.EMPTY_ARRAY;
+  private int[] tagStart = new int[1];
+  private int[] tagKeys = IntArrays.EMPTY_ARRAY;
+  private int[] tagValues = IntArrays.EMPTY_ARRAY;
+
+  // translation of the ids of the cache to the ids of the last batch read
+  private final IdMap metricMap = new IdMap();
+  private final IdMap tagKeyMap = new IdMap();
+  private final IdMap tagValueMap = new IdMap();
+  private int[] keys = IntArrays.EMPTY_ARRAY;
+  private int[] values = IntArrays.EMPTY_ARRAY;
+
+  private int field;
+  private final ByteSlice slice = new ByteSlice();
+  private byte[] scratch = new byte[64];
+
+  public CachedFileReader() {
+    this(MappedFileReader.DEFAULT_WINDOW_SIZE);
+  }
+
+  /**
+   * @param windowSize size in bytes of the mapped windows, grown for blocks
+   *                   larger than it
+   */
+  public CachedFileReader(final int windowSize) {
+    Preconditions.checkArgument(windowSize > 0, "windowSize must be positive");
+    this.windowSize = windowSize;
+  }
+
+  @Override
+  public void readFile(String fileName) throws IOException {
+    close();
+    channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+    fileSize = channel.size();
+    if (fileSize < PointCache.HEADER_SIZE) {
+      throw new IOException("Not a point cache: " + fileName);
+    }
+    map(0, PointCache.HEADER_SIZE);
+    blocksEnd = window.getLong(PointCache.DICTIONARY);
+    if (blocksEnd < PointCache.HEADER_SIZE || blocksEnd > fileSize) {
+      throw new IOException("Corrupt point cache: " + fileName);
+    }
+
+    map(blocksEnd, fileSize - blocksEnd);
+    metricNames = PointCache.readSymbols(window);
+    tagKeyNames = PointCache.readSymbols(window);
+    tagValueNames = PointCache.readSymbols(window);
+    metricMap.reset(null, metricNames.length);
+    tagKeyMap.reset(null, tagKeyNames.length);
+    tagValueMap.reset(null, tagValueNames.length);
+
+    position = PointCache.HEADER_SIZE;
+    blockSize = 0;
+    point = 0;
+  }
+
+  /**
+   * Maps a window that contains [start, start + length) of the file.
+   */
+  private void ensureMapped(final long start, final long length) throws IOException {
+    if (window == null || start < windowStart || start + length > windowStart + window.limit()) {
+      map(start, length);
+    }
+  }
+
+  private void map(final long start, final long length) throws IOException {
+    MappedBuffers.unmap(window);
+    window = null;
+    final long size = Math.min(Math.max(windowSize, length), fileSize - start);
+    Preconditions.checkArgument(size <= Integer.MAX_VALUE, "block too large to be mapped");
+    window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+    window.order(ByteOrder.LITTLE_ENDIAN);
+    windowStart = start;
+  }
+
+  /**
+   * Decodes the next block of the file.
+   * @return false if there are no more blocks
+   */
+  private boolean nextBlock() throws IOException {
+    if (position >= blocksEnd) {
+      return false;
+    }
+    ensureMapped(position, Integer.BYTES);
+    final int length = window.getInt((int) (position - windowStart));
+    ensureMapped(position, Integer.BYTES + length);
+    window.position((int) (position - windowStart) + Integer.BYTES);
+    position += Integer.BYTES + length;
+
+    final int size = window.getInt();
+    metrics = IntArrays.ensureCapacity(metrics, size);
+    timestamps = LongArrays.ensureCapacity(timestamps, size);
+    integers = BooleanArrays.ensureCapacity(integers, size);
+    longValues = LongArrays.ensureCapacity(longValues, size);
+    doubleValues = DoubleArrays.ensureCapacity(doubleValues, size);
+    tagStart = IntArrays.ensureCapacity(tagStart, size + 1);
+
+    long timestamp = 0;
+    for (int i = 0; i < size; i++) {
+      timestamp += PointCache.unzigzag(PointCache.getVarint(window));
+      timestamps[i] = timestamp;
+    }
+    for (int i = 0; i < size; i++) {
+      metrics[i] = (int) PointCache.getVarint(window);
+    }
+    for (int i = 0; i < size; i++) {
+      final long flags = PointCache.getVarint(window);
+      integers[i] = (flags & 1) != 0;
+      tagStart[i + 1] = tagStart[i] + (int) (flags >>> 1);
+    }
+    for (int i = 0; i < size; i++) {
+      if (integers[i]) {
+        longValues[i] = PointCache.unzigzag(PointCache.getVarint(window));
+      } else {
+        doubleValues[i] = window.getDouble();
+      }
+    }
+    final int tags = tagStart[size];
+    tagKeys = IntArrays.ensureCapacity(tagKeys, tags);
+    tagValues = IntArrays.ensureCapacity(tagValues, tags);
+    for (int j = 0; j < tags; j++) {
+      tagKeys[j] = (int) PointCache.getVarint(window);
+      tagValues[j] = (int) PointCache.getVarint(window);
+    }
+
+    blockSize = size;
+    point = -1;
+    return true;
+  }
+
+  /**
+   * Moves to the next point, decoding the next block if needed.
+   * @return false at the end of the file
+   */
+  private boolean nextPoint() throws IOException {
+    while (point + 1 >= blockSize) {
+      if (!nextBlock()) {
+        return false;
+      }
+    }
+    point++;
+    return true;
+  }
+
+  @Override
+  public boolean readln() throws IOException {
+    field = 0;
+    return nextPoint();
+  }
+
+  @Override
+  public int readBatch(PointBatch batch) throws IOException {
+    batch.clear();
+    metricMap.reset(batch.metricSymbols(), metricNames.length);
+    tagKeyMap.reset(batch.tagKeySymbols(), tagKeyNames.length);
+    tagValueMap.reset(batch.tagValueSymbols(), tagValueNames.length);
+    while (!batch.isFull() && nextPoint()) {
+      final int from = tagStart[point];
+      final int to = tagStart[point + 1];
+      keys = IntArrays.ensureCapacity(keys, to - from);
+      values = IntArrays.ensureCapacity(values, to - from);
+      for (int j = from; j < to; j++) {
+        keys[j - from] = tagKeyMap.get(tagKeys[j], tagKeyNames);
+        values[j - from] = tagValueMap.get(tagValues[j], tagValueNames);
+      }
+      batch.add(metricMap.get(metrics[point], metricNames), timestamps[point], integers[point],
+        longValues[point], doubleValues[point], keys, values, 0, to - from);
+    }
+    return batch.size();
+  }
+
+  @Override
+  public boolean hasNext() {
+    return field < 3 + tagStart[point + 1] - tagStart[point];
+  }
+
+  @Override
+  public String next() {
+    return nextSequence().toString();
+  }
+
+  @Override
+  public CharSequence nextSequence() {
+    final int f = field++;
+    switch (f) {
+      case 0:
+        return metricNames[metrics[point]];
+      case 1:
+        return format(timestamps[point]);
+      case 2:
+        return integers[point] ? format(longValues[point]) : format(Double.toString(doubleValues[point]));
+      default:
+        final int tag = tagStart[point] + f - 3;
+        final ByteSlice key = tagKeyNames[tagKeys[tag]];
+        final ByteSlice value = tagValueNames[tagValues[tag]];
+        final int n = key.length() + 1 + value.length();
+        scratch = ByteArrays.grow(scratch, n);
+        key.copyTo(0, scratch, 0, key.length());
+        scratch[key.length()] = '=';
+        value.copyTo(0, scratch, key.length() + 1, value.length());
+        return slice.set(scratch, 0, n);
+    }
+  }
+
+  @Override
+  public long nextLong() {
+    final int f = field++;
+    if (f == 1) {
+      return timestamps[point];
+    }
+    if (f == 2 && integers[point]) {
+      return longValues[point];
+    }
+    throw new NumberFormatException("Field " + f + " is not an integer");
+  }
+
+  @Override
+  public double nextDouble() {
+    final int f = field++;
+    if (f != 2) {
+      throw new NumberFormatException("Field " + f + " is not a value");
+    }
+    return integers[point] ? longValues[point] : doubleValues[point];
+  }
+
+  private ByteSlice format(long v) {
+    // digits are written backwards from the end of the scratch buffer
+    int i = scratch.length;
+    final boolean negative = v < 0;
+    do {
+      scratch[--i] = (byte) ('0' + Math.abs(v % 10));
+      v /= 10;
+    } while (v != 0);
+    if (negative) {
+      scratch[--i] = '-';
+    }
+    return slice.set(scratch, i, scratch.length - i);
+  }
+
+  private ByteSlice format(final String s) {
+    scratch = ByteArrays.grow(scratch, s.length());
+    for (int i = 0; i < s.length(); i++) {
+      scratch[i] = (byte) s.charAt(i);
+    }
+    return slice.set(scratch, 0, s.length());
+  }
+
+  @Override
+  public void close() throws IOException {
+    MappedBuffers.unmap(window);
+    window = null;
+    windowStart = 0;
+    if (channel != null) {
+      channel.close();
+      channel = null;
+    }
+  }
+
+  /**
+   * Ids of the cache translated to a symbol table, interned on first use.
+   */
+  private static final class IdMap {
+    private SymbolTable table;
+    private int[] ids = IntArrays.EMPTY_ARRAY;
+
+    void reset(final SymbolTable table, final int size) {
+      if (table != this.table || ids.length != size) {
+        this.table = table;
+        ids = new int[size];
+        Arrays.fill(ids, SymbolTable.UNKNOWN);
+      }
+    }
+
+    int get(final int id, final ByteSlice[] names) {
+      int mapped = ids[id];
+      if (mapped == SymbolTable.UNKNOWN) {
+        mapped = table.intern(names[id]);
+        ids[id] = mapped;
+      }
+      return mapped;
+    }
+  }
+}
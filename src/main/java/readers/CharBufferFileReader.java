@@ -1,8 +1,9 @@
 package readers;
 
-import com.google.common.base.Splitter;
+import it.unimi.dsi.fastutil.ints.IntArrays;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import utils.ImportMetrics;
 import utils.Tags;
 
 import java.io.IOException;
@@ -13,64 +14,137 @@ import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.Iterator;
 
 public class CharBufferFileReader extends FileReader {
 
   private static final Logger LOG = LoggerFactory.getLogger(CharBufferFileReader.class);
 
   private char[] chars;
-  private int offset = 0;
-  private int index = 0;
+  private CharBuffer view;
+  private int limit;
+  private int offset;
+  // bounds of the line just read
+  private int lineStart;
+  private int lineEnd;
 
+  private int[] start = new int[16];
+  private int[] length = new int[16];
+  private int count;
+  private int field;
 
-  private Iterator<String> words;
-  private final Splitter splitter = Splitter.on(" ").trimResults();
-
+  /**
+   * Maps and decodes the whole file. With {@link ImportMetrics}, its bytes
+   * are counted and the time spent is recorded in the
+   * {@link ImportMetrics.Stage#IO_WAIT} stage.
+   */
   @Override
-  public void readFile(String fileName) {
+  public void readFile(String fileName) throws IOException {
+    close();
+    final ImportMetrics metrics = metrics();
     long t1  = System.nanoTime();
     try (FileChannel fChan = (FileChannel) Files.newByteChannel(Paths.get(fileName))) {
       long fSize = fChan.size();
       MappedByteBuffer mbb = fChan.map(FileChannel.MapMode.READ_ONLY, 0, fSize);
       mbb.order(ByteOrder.LITTLE_ENDIAN);
       CharBuffer buffer = Charset.forName("UTF-8").decode(mbb);
-      if (buffer.hasArray())
+      if (buffer.hasArray()) {
         chars = buffer.array();
-    } catch (IOException e) {
-      System.out.println(e.toString());
+        limit = buffer.limit();
+      } else {
+        chars = new char[buffer.remaining()];
+        limit = chars.length;
+        buffer.get(chars);
+      }
+      view = CharBuffer.wrap(chars);
+      if (metrics != null) {
+        metrics.bytes().add(fSize);
+      }
+    }
+    if (metrics != null) {
+      metrics.record(ImportMetrics.Stage.IO_WAIT, System.nanoTime() - t1);
     }
     LOG.info("readFile: {}", (System.nanoTime() - t1) / 1_000_000_000.0);
   }
 
   @Override
   public boolean readln() {
-    while (index < chars.length && chars[index] != '\n') index++;
-    if (index >= chars.length) {
+    if (offset >= limit) {
       return false;
     }
-    String line = new String(chars, offset, chars[index] == '\r' ? index - offset : index - offset + 1);
-    words = splitter.split(line).iterator();
+    int index = offset;
+    while (index < limit && chars[index] != '\n') index++;
+    final int end = index > offset && chars[index - 1] == '\r' ? index - 1 : index;
+
+    lineStart = offset;
+    lineEnd = end;
+    count = 0;
+    field = 0;
+    int fieldStart = offset;
+    for (int i = offset; i < end; i++) {
+      if (chars[i] == ' ') {
+        addField(fieldStart, i - fieldStart);
+        fieldStart = i + 1;
+      }
+    }
+    addField(fieldStart, end - fieldStart);
 
-    offset = index + 2;
-    index = offset;
+    offset = index + 1;
     return true;
   }
 
+  private void addField(int offset, int size) {
+    if (count == start.length) {
+      start = IntArrays.grow(start, count + 1);
+      length = IntArrays.grow(length, count + 1);
+    }
+    start[count] = offset;
+    length[count] = size;
+    count++;
+  }
+
+  @Override
+  public CharSequence line() {
+    return CharBuffer.wrap(chars, lineStart, lineEnd - lineStart);
+  }
+
   @Override
   public boolean hasNext() {
-    return words.hasNext();
+    return field < count;
   }
 
   @Override
   public String next() {
-    assert words.hasNext();
-    return words.next();
+    assert hasNext();
+    final int f = field++;
+    return new String(chars, start[f], length[f]);
+  }
+
+  @Override
+  public CharSequence nextSequence() {
+    assert hasNext();
+    final int f = field++;
+    view.limit(start[f] + length[f]).position(start[f]);
+    return view;
   }
 
   @Override
   public long nextLong() {
-    assert words.hasNext();
-    return Tags.parseLong(words.next());
+    return Tags.parseLong(nextSequence());
+  }
+
+  /**
+   * Releases the characters of the file, so that the next file is read from
+   * its start.
+   */
+  @Override
+  public void close() {
+    chars = null;
+    view = null;
+    limit = 0;
+    offset = 0;
+    lineStart = 0;
+    lineEnd = 0;
+    count = 0;
+    field = 0;
   }
-}
\ No newline at end of file
+}
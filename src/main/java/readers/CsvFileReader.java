@@ -0,0 +1,390 @@
+package readers;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.booleans.BooleanArrays;
+import it.unimi.dsi.fastutil.bytes.ByteArrays;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import utils.ByteSlice;
+import utils.DoubleParser;
+import utils.Status;
+import utils.Swar;
+import utils.Tags;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads CSV files like the ones written by GenerateData:
+ * {@code "metric", ts, value, "tag=value", ...}.
+ * <p>
+ * Fields follow RFC 4180: they may be enclosed in double quotes, in which
+ * case they can contain separators and line breaks, and a double quote is
+ * escaped by doubling it. Spaces after a separator are ignored, so both ","
+ * and ", " separate fields. Lines end with LF or CR/LF.
+ * <p>
+ * Like {@link FastLineReader}, lines are tokenized in place in a buffer that
+ * is compacted when a line crosses its end, looking for separators, quotes
+ * and line feeds 8 bytes at a time. Quoted fields are returned without their
+ * quotes, as views of the buffer. Only the fields with escaped quotes are
+ * copied, without them, to a side buffer, so the line stays raw for
+ * {@link #line()}.
+ * <p>
+ * Lines with bad quoting, like a character after a closing quote, are
+ * skipped up to the next line feed and passed to {@link #reject(Status)}.
+ * <p>
+ * A range of a file starts after the first line feed found from its start,
+ * so files read in ranges, like with several threads, must not have line
+ * breaks in quoted fields. The files of GenerateData don't.
+ */
+public class CsvFileReader extends FileReader {
+  private static final int INITIAL_FIELDS = 16;
+
+  private static final long COMMAS = Swar.broadcast(',');
+  private static final long QUOTES = Swar.broadcast('"');
+  private static final long NEWLINES = Swar.broadcast('\n');
+
+  private InputStream in;
+  private byte[] bytes;
+  private ByteBuffer buffer;
+  /** offset of the first byte not read yet */
+  private int pos;
+  /** end of the bytes read in the buffer */
+  private int limit;
+  private boolean eof;
+  /** offset in the stream of the first byte of the buffer */
+  private long base;
+  /** offset in the stream of the end of the range, no line starts after it */
+  private long end;
+
+  private int[] start = new int[INITIAL_FIELDS];
+  private int[] length = new int[INITIAL_FIELDS];
+  /** whether each field is in unescaped rather than in bytes */
+  private boolean[] escaped = new boolean[INITIAL_FIELDS];
+  private int count;
+  private int field;
+  private final ByteSlice slice = new ByteSlice();
+  private final ByteSlice lineSlice = new ByteSlice();
+  /** fields of the line with their escaped quotes removed */
+  private byte[] unescaped = new byte[64];
+  // bounds of the line just read, without its terminator
+  private int lineStart;
+  private int lineEnd;
+  /** set by tokenize for a line with bad quoting */
+  private boolean malformed;
+
+  /**
+   * @param bufferSize initial size of the buffer, grown for lines longer
+   *                   than it
+   */
+  public CsvFileReader(final int bufferSize) {
+    Preconditions.checkArgument(bufferSize > 0, "bufferSize must be positive");
+    wrap(new byte[bufferSize]);
+  }
+
+  private void wrap(final byte[] array) {
+    bytes = array;
+    buffer = ByteBuffer.wrap(array).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  @Override
+  public void readFile(String fileName) throws IOException {
+    readFile(fileName, 0, Long.MAX_VALUE);
+  }
+
+  @Override
+  public void readFile(String fileName, long start, long end) throws IOException {
+    close();
+    // the stream starts on the byte before the range, see openStream
+    in = openStream(fileName, start, end);
+    pos = 0;
+    limit = 0;
+    eof = false;
+    base = 0;
+    this.end = start > 0 ? end - start + 1 : end;
+    if (start > 0) {
+      skipLine();
+    }
+  }
+
+  @Override
+  public boolean supportsRanges() {
+    return true;
+  }
+
+  /**
+   * Skips the bytes up to and including the next line feed.
+   */
+  private void skipLine() throws IOException {
+    while (true) {
+      final int q = find(pos, NEWLINES, NEWLINES);
+      if (q >= 0) {
+        pos = q + 1;
+        return;
+      }
+      pos = limit;
+      if (eof || !fill()) {
+        eof = true;
+        return;
+      }
+    }
+  }
+
+  @Override
+  public boolean readln() throws IOException {
+    field = 0;
+    while (true) {
+      if (base + pos >= end || (pos == limit && (eof || !fill()))) {
+        count = 0;
+        return false;
+      }
+      final int next = tokenize(pos);
+      if (next < 0) {
+        // the line isn't complete, get the rest of it and start over
+        if (!fill()) {
+          eof = true;
+        }
+      } else if (malformed) {
+        pos = next;
+        count = 0;
+        reject(Status.MALFORMED_LINE);
+      } else {
+        pos = next;
+        unescape();
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Moves the bytes not read yet to the beginning of the buffer, growing it
+   * if they fill it, and reads more bytes after them.
+   * @return false at the end of the stream
+   */
+  private boolean fill() throws IOException {
+    if (pos > 0) {
+      System.arraycopy(bytes, pos, bytes, 0, limit - pos);
+      limit -= pos;
+      base += pos;
+      pos = 0;
+    }
+    if (limit == bytes.length) {
+      wrap(ByteArrays.grow(bytes, limit + 1));
+    }
+    final int n = in.read(bytes, limit, bytes.length - limit);
+    if (n <= 0) {
+      return false;
+    }
+    limit += n;
+    return true;
+  }
+
+  /**
+   * Splits the line starting at p in fields, setting {@link #malformed} if
+   * its quoting is bad, and the bounds of the line.
+   * @return offset of the next line, or -1 if the line goes on after the end
+   * of the buffer and the end of the stream isn't reached yet
+   */
+  private int tokenize(int p) {
+    count = 0;
+    malformed = false;
+    lineStart = p;
+    while (true) {
+      while (p < limit && bytes[p] == ' ') {
+        p++;
+      }
+      if (p < limit && bytes[p] == '"') {
+        // quoted field, up to the next quote that isn't doubled
+        final int contentStart = p + 1;
+        boolean doubled = false;
+        int q = contentStart;
+        while (true) {
+          q = find(q, QUOTES, QUOTES);
+          if (q < 0 && eof) {
+            return skipLine(contentStart);  // unterminated quote
+          }
+          if (q < 0 || (q + 1 == limit && !eof)) {
+            return -1;
+          }
+          if (q + 1 < limit && bytes[q + 1] == '"') {
+            doubled = true;
+            q += 2;
+          } else {
+            break;
+          }
+        }
+        addField(contentStart, q - contentStart, doubled);
+        p = q + 1;
+        while (p < limit && bytes[p] == ' ') {
+          p++;
+        }
+      } else {
+        int q = find(p, COMMAS, NEWLINES);
+        if (q < 0) {
+          if (!eof) {
+            return -1;
+          }
+          q = limit;
+        }
+        int end = q;
+        while (end > p && (bytes[end - 1] == ' ' || bytes[end - 1] == '\r')) {
+          end--;
+        }
+        addField(p, end - p, false);
+        p = q;
+      }
+
+      if (p == limit) {
+        lineEnd = p;
+        return eof ? p : -1;
+      }
+      switch (bytes[p]) {
+        case ',':
+          p++;
+          break;
+        case '\n':
+          lineEnd = p > lineStart && bytes[p - 1] == '\r' ? p - 1 : p;
+          return p + 1;
+        case '\r':
+          if (p + 1 == limit) {
+            lineEnd = p;
+            return eof ? p + 1 : -1;
+          }
+          if (bytes[p + 1] == '\n') {
+            lineEnd = p;
+            return p + 2;
+          }
+          return skipLine(p);
+        default:
+          return skipLine(p);
+      }
+    }
+  }
+
+  /**
+   * Marks the line being tokenized as malformed, up to the next line feed.
+   * @return offset of the next line, or -1 if the line feed isn't in the
+   * buffer yet
+   */
+  private int skipLine(final int p) {
+    malformed = true;
+    final int q = find(p, NEWLINES, NEWLINES);
+    if (q < 0) {
+      lineEnd = limit;
+      return eof ? limit : -1;
+    }
+    lineEnd = q > lineStart && bytes[q - 1] == '\r' ? q - 1 : q;
+    return q + 1;
+  }
+
+  /**
+   * @return offset of the first byte equal to one of the two patterns in
+   * [from, limit), or -1
+   */
+  private int find(int from, final long pattern1, final long pattern2) {
+    for (; from + Long.BYTES <= limit; from += Long.BYTES) {
+      final long word = Swar.wordAt(buffer, from);
+      final long matches = Swar.matches(word, pattern1) | Swar.matches(word, pattern2);
+      if (matches != 0) {
+        return from + Swar.firstIndex(matches);
+      }
+    }
+    final byte b1 = (byte) pattern1;
+    final byte b2 = (byte) pattern2;
+    for (; from < limit; from++) {
+      if (bytes[from] == b1 || bytes[from] == b2) {
+        return from;
+      }
+    }
+    return -1;
+  }
+
+  private void addField(final int offset, final int n, final boolean doubled) {
+    if (count == start.length) {
+      start = IntArrays.grow(start, count + 1);
+      length = IntArrays.grow(length, count + 1);
+      escaped = BooleanArrays.grow(escaped, count + 1);
+    }
+    start[count] = offset;
+    length[count] = n;
+    escaped[count] = doubled;
+    count++;
+  }
+
+  /**
+   * Copies the fields with doubled quotes to {@link #unescaped}, without the
+   * second quote of each pair.
+   */
+  private void unescape() {
+    int out = 0;
+    for (int f = 0; f < count; f++) {
+      if (!escaped[f]) {
+        continue;
+      }
+      final int from = start[f];
+      final int to = from + length[f];
+      unescaped = ByteArrays.grow(unescaped, out + length[f]);
+      start[f] = out;
+      for (int i = from; i < to; i++) {
+        unescaped[out++] = bytes[i];
+        if (bytes[i] == '"') {
+          i++;  // skip the second quote
+        }
+      }
+      length[f] = out - start[f];
+    }
+  }
+
+  /**
+   * @return the array holding a field
+   */
+  private byte[] array(final int f) {
+    return escaped[f] ? unescaped : bytes;
+  }
+
+  @Override
+  public CharSequence line() {
+    return lineSlice.set(bytes, lineStart, lineEnd - lineStart);
+  }
+
+  @Override
+  public boolean hasNext() {
+    return field < count;
+  }
+
+  @Override
+  public String next() {
+    assert hasNext();
+    final int f = field++;
+    return new String(array(f), start[f], length[f], Charsets.UTF_8);
+  }
+
+  @Override
+  public CharSequence nextSequence() {
+    assert hasNext();
+    final int f = field++;
+    return slice.set(array(f), start[f], length[f]);
+  }
+
+  @Override
+  public long nextLong() {
+    return Tags.parseLong(nextSequence());
+  }
+
+  @Override
+  public double nextDouble() {
+    assert hasNext();
+    final int f = field++;
+    return DoubleParser.parseDouble(array(f), start[f], length[f]);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (in != null) {
+      in.close();
+      in = null;
+    }
+  }
+}
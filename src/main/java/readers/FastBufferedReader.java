@@ -1,105 +1,146 @@
 package readers;
 
-import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
+import utils.ByteSlice;
+import utils.FastLine;
 import utils.MyFastBufferedInputStream;
-import utils.Tags;
+import utils.MyFastBufferedInputStream.LineTerminator;
+import utils.Status;
+import utils.TagSet;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.EnumSet;
+
+/**
+ * Reads lines in place in the buffer of a {@link MyFastBufferedInputStream}.
+ * <p>
+ * {@link MyFastBufferedInputStream#nextLine(EnumSet)} keeps each line
+ * contiguous in the buffer, moving a line that crosses the end of the buffer
+ * to its beginning before refilling it, and growing the buffer for lines
+ * longer than it. Lines are then tokenized straight from the buffer, so the
+ * buffer size only bounds the size of the reads, not the size of the lines.
+ */
 public class FastBufferedReader extends FileReader {
 
-  private final byte[] bytes;
-  private int pos;
-  private int avail;
-
+  private final EnumSet<LineTerminator> terminators;
 
-  private String[] words;
+  private byte[] bytes;
+  private ByteBuffer buffer;
+  private final FastLine line = new FastLine();
+  private final ByteSlice slice = new ByteSlice();
+  private final ByteSlice lineSlice = new ByteSlice();
   private int fieldId;
 
   private MyFastBufferedInputStream reader;
 
   public FastBufferedReader(final int bufferSize) {
-    Preconditions.checkArgument(bufferSize > 0, "bufferSize cannot be negative");
-    this.bytes = new byte[bufferSize];
+    this(bufferSize, MyFastBufferedInputStream.ALL_TERMINATORS);
+  }
+
+  /**
+   * @param bufferSize initial size of the buffer, grown as needed
+   * @param terminators line terminators to recognize
+   */
+  public FastBufferedReader(final int bufferSize, final EnumSet<LineTerminator> terminators) {
+    Preconditions.checkArgument(bufferSize > 0, "bufferSize must be positive");
+    Preconditions.checkArgument(!terminators.isEmpty(), "at least one line terminator is needed");
+    this.terminators = EnumSet.copyOf(terminators);
+    wrap(new byte[bufferSize]);
+  }
+
+  private void wrap(final byte[] array) {
+    bytes = array;
+    buffer = ByteBuffer.wrap(array).order(ByteOrder.LITTLE_ENDIAN);
   }
 
   @Override
   public void readFile(String fileName) throws IOException {
-    final InputStream in = new FileInputStream(fileName);
-    reader = new MyFastBufferedInputStream(in, bytes);
+    close();
+    reader = new MyFastBufferedInputStream(openStream(fileName), bytes);
   }
 
   @Override
-  public boolean readln() throws IOException {
-    int length = 0;
-    //TODO when we reach the end of the buffer we need to move the current line to the beginning of the buffer
-    int b = -1;
-    do {
-      if (avail == 0) {
-        avail = reader.readBuffer();
-        pos = 0;
-      }
-      if (pos < avail) {
-        b = bytes[pos++];
-        avail--;
-      }
-    } while(b != '\n' && b != -1);
-    while ( (b = bytes[pos++]) != -1 && b != '\n') {
-      length++;
-      if (pos == bytes.length) {
-        reader.readBuffer();
-      }
+  public void close() throws IOException {
+    if (reader != null) {
+      reader.close();
+      reader = null;
     }
+  }
 
-    if (length == 0) {
+  @Override
+  public boolean readln() throws IOException {
+    fieldId = 0;
+    final int length = reader.nextLine(terminators);
+    if (length < 0) {
       return false;
     }
-
-    words = splitString(bytes, pos, length, ' ');
-    fieldId = 0;
-    pos += length + 1; // +1 for the new_line byte
-
+    if (reader.buffer() != bytes) {
+      // the stream grew its buffer for a long line, keep it for the next files
+      wrap(reader.buffer());
+    }
+    final int start = reader.lineStart();
+    line.tokenize(buffer, start, start + length);
     return true;
   }
 
-  private static String[] splitString(final byte[] bytes, final int offset, final int length, final char c) {
-    int num_substrings = 1;
-    for (int i = 0; i < length; i++) {
-      if (bytes[offset + i] == c) {
-        num_substrings++;
-      }
-    }
-
-    final String[] result = new String[num_substrings];
-    int start = 0;  // starting index in chars of the current substring.
-    int pos = 0;    // current index in chars.
-    int i = 0;      // number of the current substring.
-    for (; pos < length; pos++) {
-      if (bytes[offset + pos] == c) {
-        result[i++] = new String(bytes, offset + start, pos - start, Charsets.UTF_8);
-        start = pos + 1;
+  @Override
+  public int readBatch(PointBatch batch) throws IOException {
+    batch.clear();
+    while (!batch.isFull() && readln()) {
+      final Status status = batch.tryAdd(line);
+      if (status != Status.OK) {
+        reject(status);
       }
     }
-    result[i] = new String(bytes, offset + start, pos - start, Charsets.UTF_8);
-    return result;
+    return batch.size();
   }
 
   @Override
   public boolean hasNext() {
-    return fieldId < words.length;
+    return fieldId < line.getSize();
   }
 
   @Override
   public String next() {
     assert hasNext();
-    return words[fieldId++];
+    return line.getString(fieldId++);
+  }
+
+  @Override
+  public CharSequence nextSequence() {
+    assert hasNext();
+    return line.getSlice(fieldId++, slice);
   }
 
   @Override
   public long nextLong() {
-    return Tags.parseLong(next());
+    assert hasNext();
+    return line.getLong(fieldId++);
+  }
+
+  @Override
+  public long tryNextLong(long invalid) {
+    assert hasNext();
+    return line.tryGetLong(fieldId++, invalid);
+  }
+
+  @Override
+  public Status tryNextTag(TagSet tags) {
+    assert hasNext();
+    final int f = fieldId++;
+    return tags.tryAdd(line.getSlice(f, slice), line.getTagSeparator(f));
+  }
+
+  @Override
+  public CharSequence line() {
+    return line.getLine(lineSlice);
+  }
+
+  @Override
+  public double nextDouble() {
+    assert hasNext();
+    return line.getDouble(fieldId++);
   }
 }
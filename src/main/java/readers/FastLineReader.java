@@ -1,26 +1,80 @@
 package readers;
 
+import utils.ByteSlice;
 import utils.FastLine;
+import utils.Status;
+import utils.TagSet;
 
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
 
+/**
+ * Reads lines with a {@link FastLine.FastLineReader}, in a heap buffer by
+ * default, or in a direct buffer filled straight from the file channel of
+ * uncompressed files that aren't read ahead.
+ * <p>
+ * Lines longer than the maximum length are skipped and passed to
+ * {@link #reject(Status)}, cut to that length.
+ */
 public class FastLineReader extends FileReader {
 
-  private FastLine.FastLineReader reader;
+  private final FastLine.FastLineReader reader;
+  private final boolean direct;
   private FastLine line;
   private int field;
+  private final ByteSlice slice = new ByteSlice();
+  private final ByteSlice lineSlice = new ByteSlice();
+
+  public FastLineReader() {
+    this(FastLine.FastLineReader.DEFAULT_BUFFER_SIZE, FastLine.FastLineReader.DEFAULT_MAX_LINE_LENGTH, false);
+  }
+
+  /**
+   * @param bufferSize initial size of the buffer, reused across files
+   * @param maxLineLength length of the longest line, the buffer grows up to it
+   * @param direct true to read in a direct buffer
+   */
+  public FastLineReader(final int bufferSize, final int maxLineLength, final boolean direct) {
+    this.reader = new FastLine.FastLineReader(bufferSize, maxLineLength, direct);
+    this.direct = direct;
+  }
 
   @Override
   public void readFile(String fileName) throws IOException {
-    reader = new FastLine.FastLineReader(new FileInputStream(fileName));
+    readFile(fileName, 0, Long.MAX_VALUE);
+  }
+
+  @Override
+  public void readFile(String fileName, long start, long end) throws IOException {
+    close();
+    // the file is opened on the byte before the range, see openStream
+    final long limit = start > 0 ? end - start + 1 : end;
+    final ReadableByteChannel channel = direct ? openChannel(fileName, start, end) : null;
+    if (channel != null) {
+      reader.reset(channel, limit);
+    } else {
+      reader.reset(openStream(fileName, start, end), limit);
+    }
+    if (start > 0) {
+      reader.skipLine();
+    }
+  }
+
+  @Override
+  public boolean supportsRanges() {
+    return true;
   }
 
   @Override
   public boolean readln() throws IOException {
     field = 0;
-    line = reader.read();
-    return line != null;
+    while ((line = reader.read()) != null) {
+      if (!reader.isTruncated()) {
+        return true;
+      }
+      reject(Status.LINE_TOO_LONG);
+    }
+    return false;
   }
 
   @Override
@@ -29,6 +83,44 @@ public class FastLineReader extends FileReader {
 //    return Tags.parseLong(line.getString(field++));
   }
 
+  @Override
+  public long tryNextLong(long invalid) {
+    return line.tryGetLong(field++, invalid);
+  }
+
+  @Override
+  public Status tryNextTag(TagSet tags) {
+    final int f = field++;
+    return tags.tryAdd(line.getSlice(f, slice), line.getTagSeparator(f));
+  }
+
+  @Override
+  public CharSequence line() {
+    return line.getLine(lineSlice);
+  }
+
+  @Override
+  public double nextDouble() {
+    return line.getDouble(field++);
+  }
+
+  @Override
+  public CharSequence nextSequence() {
+    return line.getSlice(field++, slice);
+  }
+
+  @Override
+  public int readBatch(PointBatch batch) throws IOException {
+    batch.clear();
+    while (!batch.isFull() && readln()) {
+      final Status status = batch.tryAdd(line);
+      if (status != Status.OK) {
+        reject(status);
+      }
+    }
+    return batch.size();
+  }
+
   @Override
   public boolean hasNext() {
     return field < line.getSize();
@@ -38,4 +130,9 @@ public class FastLineReader extends FileReader {
   public String next() {
     return line.getString(field++);
   }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
 }
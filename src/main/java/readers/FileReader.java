@@ -1,15 +1,181 @@
 package readers;
 
+import com.google.common.base.Preconditions;
+import utils.DoubleParser;
+import utils.ImportMetrics;
+import utils.InputStreams;
+import utils.LineErrors;
+import utils.Status;
+import utils.TagSet;
+import utils.Tags;
+
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Iterator;
 
-public abstract class FileReader implements Iterator<String> {
+public abstract class FileReader implements Iterator<String>, Closeable {
+  private InputStreams inputStreams = InputStreams.DEFAULT;
+  private LineErrors lineErrors = LineErrors.FAIL;
+
   public abstract void readFile(String fileName) throws IOException;
 
+  /**
+   * Reads the part of a file made of the lines that start in [start, end).
+   * <p>
+   * Ranges don't need to be aligned on lines: the line that starts before
+   * start is skipped and the line that starts before end is read up to its
+   * end. Splitting a file in adjacent ranges thus reads each line exactly
+   * once.
+   * @throws UnsupportedOperationException if {@link #supportsRanges()} is false
+   */
+  public void readFile(String fileName, long start, long end) throws IOException {
+    throw new UnsupportedOperationException(getClass().getSimpleName() + " can't read a range of a file");
+  }
+
+  /**
+   * @return true if {@link #readFile(String, long, long)} is supported
+   */
+  public boolean supportsRanges() {
+    return false;
+  }
+
+  /**
+   * Sets how the readers that go through {@link #openStream(String)} open,
+   * read ahead and decompress their files.
+   */
+  public void setInputStreams(InputStreams inputStreams) {
+    this.inputStreams = Preconditions.checkNotNull(inputStreams);
+  }
+
+  /**
+   * Sets what {@link #readBatch(PointBatch)} does with the lines that can't
+   * be parsed, failing on the first one by default.
+   */
+  public void setLineErrors(LineErrors lineErrors) {
+    this.lineErrors = Preconditions.checkNotNull(lineErrors);
+  }
+
+  /**
+   * Passes the line just read, which can't be parsed, to the
+   * {@link LineErrors} of this reader.
+   * @throws IllegalArgumentException if they fail on bad lines
+   */
+  public void reject(Status status) throws IOException {
+    lineErrors.reject(status, line());
+  }
+
+  /**
+   * Opens a file, decompressing it if its name ends with ".gz".
+   */
+  protected InputStream openStream(String fileName) throws IOException {
+    return inputStreams.open(fileName);
+  }
+
+  /**
+   * Opens a file to read the lines that start in [start, end), from the byte
+   * before start if start isn't 0, see {@link InputStreams#open(String, long, long)}.
+   * @throws UnsupportedOperationException if the file is compressed and
+   * start isn't 0
+   */
+  protected InputStream openStream(String fileName, long start, long end) throws IOException {
+    return inputStreams.open(fileName, start, end);
+  }
+
+  /**
+   * Opens an uncompressed file as a channel, like
+   * {@link #openStream(String, long, long)}.
+   * @return the channel, or null if the file must be opened with
+   * {@link #openStream(String, long, long)}
+   */
+  protected ReadableByteChannel openChannel(String fileName, long start, long end) throws IOException {
+    return inputStreams.openChannel(fileName, start, end);
+  }
+
+  /**
+   * @return the metrics in which the readers that don't go through
+   * {@link #openStream(String)} count the bytes they read, or null
+   */
+  protected ImportMetrics metrics() {
+    return inputStreams.metrics();
+  }
+
   public abstract boolean readln() throws IOException;
 
+  /**
+   * Returns the raw line just read, without its line terminator, for it to
+   * be reported or quarantined when it can't be parsed. Like
+   * {@link #nextSequence()}, it may be a view only valid until the next call
+   * to {@link #readln()}.
+   * @return the line, or null if the reader doesn't keep it
+   */
+  public CharSequence line() {
+    return null;
+  }
+
+  /**
+   * Replaces the content of the batch with the points of the next lines,
+   * until the batch is full or the file ends. Lines that can't be parsed
+   * are passed to {@link #reject(Status)}.
+   * @return number of points read, 0 at the end of the file
+   */
+  public int readBatch(PointBatch batch) throws IOException {
+    batch.clear();
+    while (!batch.isFull() && readln()) {
+      final Status status = batch.tryAdd(this);
+      if (status != Status.OK) {
+        reject(status);
+      }
+    }
+    return batch.size();
+  }
+
   public abstract long nextLong();
 
+  /**
+   * Parses the next field as a long without throwing an exception, see
+   * {@link Tags#tryParseLong(CharSequence, long)}.
+   * @return the value, or invalid if it's malformed
+   */
+  public long tryNextLong(long invalid) {
+    return Tags.tryParseLong(nextSequence(), invalid);
+  }
+
+  /**
+   * Adds the next field to a set of tags, see
+   * {@link TagSet#tryAdd(CharSequence)}.
+   */
+  public Status tryNextTag(TagSet tags) {
+    return tags.tryAdd(nextSequence());
+  }
+
+  /**
+   * Parses the next field as a double, see {@link DoubleParser}.
+   */
+  public double nextDouble() {
+    return DoubleParser.parseDouble(nextSequence());
+  }
+
+  /**
+   * Returns the next field without creating a {@link String} if the reader
+   * can avoid it. The returned sequence may be a view into the reader's
+   * buffers, reused by the following calls: it is only valid until the next
+   * call to {@link #nextSequence()} or {@link #readln()}, call
+   * {@link Object#toString()} on it to keep it.
+   */
+  public CharSequence nextSequence() {
+    return next();
+  }
+
+  /**
+   * Releases the file opened by the last call to readFile(). The reader can
+   * be used again on another file.
+   */
+  @Override
+  public void close() throws IOException {
+  }
+
   @Override
   public void remove() {
     throw new UnsupportedOperationException("FileReader.remove() not supported");
@@ -0,0 +1,162 @@
+package readers;
+
+import com.google.common.base.CharMatcher;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Expands the input of an import to the files to read.
+ * <p>
+ * An input is a comma separated list of:
+ * <ul>
+ * <li>files,
+ * <li>directories, standing for all the files under them, except hidden
+ * files and {@link PointCache point caches},
+ * <li>globs like {@code logs/2016-*}{@code /*.tsd.gz}, in the syntax of
+ * {@link java.nio.file.FileSystem#getPathMatcher(String)}, matched against
+ * the files under the directory before the first wildcard. Commas between
+ * braces are part of the glob,
+ * <li>{@code @list}, a file with one input per line. Blank lines and lines
+ * starting with '#' are ignored.
+ * </ul>
+ * A file listed several times is only read once.
+ */
+public final class InputFiles {
+  private static final CharMatcher WILDCARDS = CharMatcher.anyOf("*?[{");
+
+  private InputFiles() {
+  }
+
+  /**
+   * @return the files of the input, in the order they are listed
+   * @throws FileNotFoundException if a file, or a directory or glob without
+   * any file, is listed
+   */
+  public static List<String> expand(final String input) throws IOException {
+    final Set<String> files = new LinkedHashSet<>();
+    for (String part : split(input)) {
+      add(part, files);
+    }
+    return new ArrayList<>(files);
+  }
+
+  /**
+   * Sorts files by decreasing size, so that workers taking files in this
+   * order don't start a large file after everything else is done.
+   */
+  public static List<String> largestFirst(final List<String> files) throws IOException {
+    final Map<String, Long> sizes = new HashMap<>(files.size() * 2);
+    for (String file : files) {
+      sizes.put(file, Files.size(Paths.get(file)));
+    }
+    final List<String> sorted = new ArrayList<>(files);
+    sorted.sort((a, b) -> Long.compare(sizes.get(b), sizes.get(a)));
+    return sorted;
+  }
+
+  /**
+   * Splits on the commas that are not inside braces.
+   */
+  private static List<String> split(final String input) {
+    final List<String> parts = new ArrayList<>();
+    int depth = 0;
+    int start = 0;
+    for (int i = 0; i <= input.length(); i++) {
+      final char c = i < input.length() ? input.charAt(i) : ',';
+      if (c == '{') {
+        depth++;
+      } else if (c == '}') {
+        depth = Math.max(0, depth - 1);
+      } else if (c == ',' && depth == 0) {
+        final String part = input.substring(start, i).trim();
+        if (!part.isEmpty()) {
+          parts.add(part);
+        }
+        start = i + 1;
+      }
+    }
+    return parts;
+  }
+
+  private static void add(final String part, final Set<String> files) throws IOException {
+    if (part.startsWith("@")) {
+      for (String line : Files.readAllLines(Paths.get(part.substring(1)), StandardCharsets.UTF_8)) {
+        final String listed = line.trim();
+        if (!listed.isEmpty() && !listed.startsWith("#")) {
+          add(listed, files);
+        }
+      }
+      return;
+    }
+
+    final Path path = Paths.get(part);
+    if (WILDCARDS.matchesAnyOf(part) && !Files.exists(path)) {
+      addMatches(path, files);
+    } else if (Files.isDirectory(path)) {
+      addAll(path, files);
+    } else if (Files.isRegularFile(path)) {
+      files.add(part);
+    } else {
+      throw new FileNotFoundException(part);
+    }
+  }
+
+  private static void addAll(final Path directory, final Set<String> files) throws IOException {
+    final int before = files.size();
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.filter(InputFiles::isData).sorted().forEach(p -> files.add(p.toString()));
+    }
+    if (files.size() == before) {
+      throw new FileNotFoundException("No file in " + directory);
+    }
+  }
+
+  private static void addMatches(final Path glob, final Set<String> files) throws IOException {
+    // walk the directory before the first wildcard, as deep as the glob goes
+    Path base = glob.isAbsolute() ? glob.getRoot() : Paths.get("");
+    int depth = glob.getNameCount();
+    for (Path name : glob) {
+      if (WILDCARDS.matchesAnyOf(name.toString())) {
+        break;
+      }
+      base = base.resolve(name);
+      depth--;
+    }
+    if (glob.toString().contains("**")) {
+      depth = Integer.MAX_VALUE;
+    }
+
+    final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+    final List<String> matches = new ArrayList<>();
+    if (Files.isDirectory(base.toString().isEmpty() ? Paths.get(".") : base)) {
+      try (Stream<Path> paths = Files.walk(base, depth)) {
+        paths.filter(p -> matcher.matches(p) && isData(p)).forEach(p -> matches.add(p.toString()));
+      }
+    }
+    if (matches.isEmpty()) {
+      throw new FileNotFoundException("No file matches " + glob);
+    }
+    Collections.sort(matches);
+    files.addAll(matches);
+  }
+
+  private static boolean isData(final Path path) {
+    final String name = path.getFileName().toString();
+    return Files.isRegularFile(path) && !name.startsWith(".") && !name.endsWith(PointCache.EXTENSION);
+  }
+}
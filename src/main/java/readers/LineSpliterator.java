@@ -0,0 +1,142 @@
+package readers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Splits the lines of an uncompressed file in byte ranges, each read by its
+ * own {@link FileReader}.
+ * <p>
+ * The elements are the readers themselves, positioned on a line: like with
+ * {@link FileReader#nextSequence()}, the fields have to be consumed inside
+ * the action, as the reader moves to the next line right after it returns.
+ * <pre>
+ * long metrics = LineSpliterator.stream(fileName, FastLineReader::new, true)
+ *   .map(reader -&gt; reader.next())
+ *   .distinct()
+ *   .count();
+ * </pre>
+ * Splitting only computes new ranges, the alignment of ranges on lines is
+ * done by {@link FileReader#readFile(String, long, long)} when a range starts
+ * being read. Each range closes its reader once all its lines are consumed.
+ */
+public final class LineSpliterator implements Spliterator<FileReader> {
+
+  /** ranges are not split below this size */
+  public static final long DEFAULT_MIN_SPLIT = 1 << 20;
+
+  private final String fileName;
+  private final Supplier<? extends FileReader> factory;
+  private final long minSplit;
+  private long start;
+  private long end;
+  private FileReader reader;
+
+  /**
+   * @param factory creates a new reader for each range, readers must support
+   *                {@link FileReader#readFile(String, long, long)}
+   */
+  public LineSpliterator(final String fileName, final Supplier<? extends FileReader> factory,
+                         final long start, final long end, final long minSplit) {
+    this.fileName = fileName;
+    this.factory = factory;
+    this.start = start;
+    this.end = end;
+    this.minSplit = Math.max(1, minSplit);
+  }
+
+  /**
+   * Streams all the lines of the given file.
+   */
+  public static Stream<FileReader> stream(final String fileName, final Supplier<? extends FileReader> factory,
+                                          final boolean parallel) throws IOException {
+    final long size = Files.size(Paths.get(fileName));
+    return StreamSupport.stream(new LineSpliterator(fileName, factory, 0, size, DEFAULT_MIN_SPLIT), parallel);
+  }
+
+  @Override
+  public boolean tryAdvance(final Consumer<? super FileReader> action) {
+    try {
+      if (reader == null) {
+        if (start >= end) {
+          return false;
+        }
+        open();
+      }
+      if (reader.readln()) {
+        action.accept(reader);
+        return true;
+      }
+      release();
+      return false;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public void forEachRemaining(final Consumer<? super FileReader> action) {
+    try {
+      if (reader == null) {
+        if (start >= end) {
+          return;
+        }
+        open();
+      }
+      while (reader.readln()) {
+        action.accept(reader);
+      }
+      release();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void open() throws IOException {
+    final FileReader r = factory.get();
+    if (!r.supportsRanges()) {
+      throw new UnsupportedOperationException(r.getClass().getSimpleName() + " can't read a range of a file");
+    }
+    r.readFile(fileName, start, end);
+    reader = r;
+  }
+
+  private void release() throws IOException {
+    reader.close();
+    reader = null;
+    // the range is done, make sure it won't be opened again
+    start = end;
+  }
+
+  @Override
+  public Spliterator<FileReader> trySplit() {
+    if (reader != null || end - start < 2 * minSplit) {
+      return null;
+    }
+    final long mid = start + (end - start) / 2;
+    final LineSpliterator prefix = new LineSpliterator(fileName, factory, start, mid, minSplit);
+    start = mid;
+    return prefix;
+  }
+
+  /**
+   * @return the number of bytes in the range, the number of lines isn't known
+   * in advance
+   */
+  @Override
+  public long estimateSize() {
+    return end - start;
+  }
+
+  @Override
+  public int characteristics() {
+    return ORDERED | NONNULL;
+  }
+}
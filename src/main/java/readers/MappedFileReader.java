@@ -0,0 +1,261 @@
+package readers;
+
+import com.google.common.base.Preconditions;
+import utils.ByteSlice;
+import utils.FastLine;
+import utils.ImportMetrics;
+import utils.MappedBuffers;
+import utils.Status;
+import utils.TagSet;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a file of any size through a window of mapped memory that slides
+ * along the file.
+ * <p>
+ * Lines are tokenized straight from the mapped bytes, nothing is decoded
+ * unless a {@link String} is asked for. When a line crosses the end of the
+ * window, the next window is mapped starting at the beginning of that line,
+ * so lines are always contiguous. Windows are unmapped as soon as the reader
+ * leaves them, see {@link MappedBuffers}; as a consequence the sequences
+ * returned by {@link #nextSequence()} must not be used after the next call
+ * to {@link #readln()}. A line longer than the window is rejected as
+ * {@link Status#LINE_TOO_LONG}, with the part of it that fit in the window,
+ * and the reader skips to the next line.
+ * <p>
+ * With {@link ImportMetrics}, the bytes of the range read are counted as the
+ * reader leaves each window, and mapping a window is recorded in the
+ * {@link ImportMetrics.Stage#IO_WAIT} stage. The page faults of the reads
+ * from the window aren't measured.
+ */
+public class MappedFileReader extends FileReader {
+
+  public static final int DEFAULT_WINDOW_SIZE = 256 << 20;
+
+  private final int windowSize;
+
+  private FileChannel channel;
+  private long fileSize;
+  private long end;
+
+  private MappedByteBuffer window;
+  /** file offset of the first byte of the window */
+  private long windowStart;
+  /** file offset up to which the bytes read were counted */
+  private long counted;
+  private ImportMetrics metrics;
+
+  private final FastLine line = new FastLine();
+  private final ByteSlice slice = new ByteSlice();
+  private final ByteSlice lineSlice = new ByteSlice();
+  private int field;
+  /** whether the last line read was cut at the end of the window */
+  private boolean truncated;
+
+  public MappedFileReader() {
+    this(DEFAULT_WINDOW_SIZE);
+  }
+
+  /**
+   * @param windowSize size in bytes of the mapped windows, longer lines are
+   *                   rejected
+   */
+  public MappedFileReader(final int windowSize) {
+    Preconditions.checkArgument(windowSize > 0, "windowSize must be positive");
+    this.windowSize = windowSize;
+  }
+
+  @Override
+  public void readFile(String fileName) throws IOException {
+    readFile(fileName, 0, Long.MAX_VALUE);
+  }
+
+  @Override
+  public void readFile(String fileName, long start, long end) throws IOException {
+    close();
+    channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+    fileSize = channel.size();
+    this.end = Math.min(end, fileSize);
+    counted = start;
+    metrics = metrics();
+    truncated = false;
+    if (start > 0) {
+      // start on the byte before the range, so a line starting exactly at
+      // start isn't mistaken for the end of the previous one, which is
+      // skipped without being rejected: it belongs to the previous range
+      map(start - 1);
+      readLine();
+    } else {
+      map(0);
+    }
+  }
+
+  @Override
+  public boolean supportsRanges() {
+    return true;
+  }
+
+  private void map(final long position) throws IOException {
+    count(position);
+    MappedBuffers.unmap(window);
+    window = null;
+    final long time = metrics == null ? 0 : System.nanoTime();
+    window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(windowSize, fileSize - position));
+    if (metrics != null) {
+      metrics.record(ImportMetrics.Stage.IO_WAIT, System.nanoTime() - time);
+    }
+    window.order(ByteOrder.LITTLE_ENDIAN);
+    windowStart = position;
+  }
+
+  /**
+   * Counts the bytes of the range read up to the given file offset.
+   */
+  private void count(final long position) {
+    final long to = Math.min(position, end);
+    if (metrics != null && to > counted) {
+      metrics.bytes().add(to - counted);
+      counted = to;
+    }
+  }
+
+  @Override
+  public boolean readln() throws IOException {
+    field = 0;
+    while (readLine()) {
+      if (!truncated) {
+        return true;
+      }
+      reject(Status.LINE_TOO_LONG);
+    }
+    return false;
+  }
+
+  /**
+   * Reads the next line of the range. A line that fills the window is cut
+   * at the end of the window, see {@link #truncated}, and the rest of it is
+   * skipped by the next call.
+   * @return false at the end of the range
+   */
+  private boolean readLine() throws IOException {
+    if (truncated) {
+      truncated = false;
+      skipRestOfLine();
+    }
+    while (true) {
+      final long lineStart = windowStart + window.position();
+      if (lineStart >= end) {
+        count(end);
+        return false;
+      }
+      if (line.readFrom(window)) {
+        return true;
+      }
+      if (windowStart + window.limit() == fileSize) {
+        // last line of the file isn't terminated by a '\n'
+        line.tokenize(window, window.position(), window.limit());
+        window.position(window.limit());
+        return true;
+      }
+      if (window.position() == 0) {
+        line.tokenize(window, 0, window.limit());
+        window.position(window.limit());
+        truncated = true;
+        return true;
+      }
+      map(lineStart);
+    }
+  }
+
+  /**
+   * Moves past the next '\n', mapping the following windows as needed.
+   */
+  private void skipRestOfLine() throws IOException {
+    while (true) {
+      for (int i = window.position(); i < window.limit(); i++) {
+        if (window.get(i) == '\n') {
+          window.position(i + 1);
+          return;
+        }
+      }
+      window.position(window.limit());
+      final long next = windowStart + window.limit();
+      if (next == fileSize) {
+        return;
+      }
+      map(next);
+    }
+  }
+
+  @Override
+  public int readBatch(PointBatch batch) throws IOException {
+    batch.clear();
+    while (!batch.isFull() && readln()) {
+      final Status status = batch.tryAdd(line);
+      if (status != Status.OK) {
+        reject(status);
+      }
+    }
+    return batch.size();
+  }
+
+  @Override
+  public boolean hasNext() {
+    return field < line.getSize();
+  }
+
+  @Override
+  public String next() {
+    return line.getString(field++);
+  }
+
+  @Override
+  public CharSequence nextSequence() {
+    return line.getSlice(field++, slice);
+  }
+
+  @Override
+  public long nextLong() {
+    return line.getLong(field++);
+  }
+
+  @Override
+  public long tryNextLong(long invalid) {
+    return line.tryGetLong(field++, invalid);
+  }
+
+  @Override
+  public Status tryNextTag(TagSet tags) {
+    final int f = field++;
+    return tags.tryAdd(line.getSlice(f, slice), line.getTagSeparator(f));
+  }
+
+  @Override
+  public CharSequence line() {
+    return line.getLine(lineSlice);
+  }
+
+  @Override
+  public double nextDouble() {
+    return line.getDouble(field++);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (window != null) {
+      count(windowStart + window.position());
+    }
+    MappedBuffers.unmap(window);
+    window = null;
+    if (channel != null) {
+      channel.close();
+      channel = null;
+    }
+  }
+}
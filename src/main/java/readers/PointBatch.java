@@ -0,0 +1,441 @@
+package readers;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.bytes.ByteArrays;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import utils.ByteSlice;
+import utils.DoubleParser;
+import utils.FastLine;
+import utils.Status;
+import utils.SymbolTable;
+import utils.TagSet;
+import utils.Tags;
+
+/**
+ * A block of points stored in reusable columnar arrays, filled by
+ * {@link FileReader#readBatch(PointBatch)}.
+ * <p>
+ * Point i has the metric metric(i), the timestamp timestamps()[i] and either
+ * the value longValues()[i] if integers()[i], or doubleValues()[i]. Its
+ * tags, sorted by key, are the pairs (tagKey(j), tagValue(j)) for j in
+ * [tagStart()[i], tagStart()[i + 1]).
+ * <p>
+ * Tags, and metrics read from a {@link FastLine}, are only copied to the batch:
+ * interning them costs a hash lookup per symbol, for sinks that don't need
+ * ids. Their ids in the symbol tables of the batch, that are kept from one
+ * batch to the next, are only looked up when metrics(), tagKeys() or
+ * tagValues() are first asked for, like by the point cache.
+ * <p>
+ * Lines are validated like a line read field by field: a malformed line
+ * isn't added to the batch, and the try methods return what is wrong with it
+ * instead of throwing an exception.
+ */
+public final class PointBatch {
+  private final int capacity;
+  private int size;
+
+  /** ids of the metrics, -1 for the metrics in text that aren't interned yet */
+  private final int[] metrics;
+  private final int[] metricOffsets;
+  private final int[] metricLengths;
+  private final long[] timestamps;
+  private final boolean[] integers;
+  private final long[] longValues;
+  private final double[] doubleValues;
+  /** offsets of the tags of each point in tagKeys and tagValues, size + 1 entries */
+  private final int[] tagStart;
+  /** ids of the tags, -1 for the tags in text that aren't interned yet */
+  private int[] tagKeys;
+  private int[] tagValues;
+  /** metrics and tags, key then value, that aren't interned yet */
+  private byte[] text;
+  private int textUsed;
+  private int[] tagOffsets;
+  private int[] tagKeyLengths;
+  private int[] tagValueLengths;
+  /** whether some metrics or tags have no ids yet */
+  private boolean uninterned;
+
+  private final SymbolTable metricSymbols;
+  private final SymbolTable tagKeySymbols;
+  private final SymbolTable tagValueSymbols;
+
+  private final TagSet tags = new TagSet();
+  private final ByteSlice slice = new ByteSlice();
+
+  public PointBatch(final int capacity) {
+    this(capacity, new SymbolTable(), new SymbolTable(), new SymbolTable());
+  }
+
+  /**
+   * @param capacity maximum number of points in the batch
+   * @param metricSymbols table of the metric ids
+   * @param tagKeySymbols table of the tag key ids
+   * @param tagValueSymbols table of the tag value ids
+   */
+  public PointBatch(final int capacity, final SymbolTable metricSymbols, final SymbolTable tagKeySymbols,
+                    final SymbolTable tagValueSymbols) {
+    Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+    this.capacity = capacity;
+    this.metrics = new int[capacity];
+    this.metricOffsets = new int[capacity];
+    this.metricLengths = new int[capacity];
+    this.timestamps = new long[capacity];
+    this.integers = new boolean[capacity];
+    this.longValues = new long[capacity];
+    this.doubleValues = new double[capacity];
+    this.tagStart = new int[capacity + 1];
+    this.tagKeys = new int[capacity * 4];
+    this.tagValues = new int[capacity * 4];
+    this.text = new byte[capacity * 32];
+    this.tagOffsets = new int[capacity * 4];
+    this.tagKeyLengths = new int[capacity * 4];
+    this.tagValueLengths = new int[capacity * 4];
+    this.metricSymbols = metricSymbols;
+    this.tagKeySymbols = tagKeySymbols;
+    this.tagValueSymbols = tagValueSymbols;
+  }
+
+  /**
+   * @return number of points in the batch
+   */
+  public int size() {
+    return size;
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  public boolean isFull() {
+    return size == capacity;
+  }
+
+  /**
+   * @return number of fields of the lines of the batch
+   */
+  public long words() {
+    return 3L * size + tagStart[size];
+  }
+
+  /**
+   * @return the ids of the metrics of the points, interning the ones read
+   * from text
+   */
+  public int[] metrics() {
+    intern();
+    return metrics;
+  }
+
+  /**
+   * @return the metric of the p-th point, in the given slice or in the symbol
+   * table, without interning it
+   */
+  public ByteSlice metric(final int p, final ByteSlice into) {
+    return metrics[p] >= 0 ? metricSymbols.symbol(metrics[p]) : into.set(text, metricOffsets[p], metricLengths[p]);
+  }
+
+  public long[] timestamps() {
+    return timestamps;
+  }
+
+  public boolean[] integers() {
+    return integers;
+  }
+
+  public long[] longValues() {
+    return longValues;
+  }
+
+  public double[] doubleValues() {
+    return doubleValues;
+  }
+
+  /**
+   * @return offsets of the tags of each point, size() + 1 entries
+   */
+  public int[] tagStart() {
+    return tagStart;
+  }
+
+  /**
+   * @return the ids of the tag keys of all the points, interning the ones
+   * read from text. The array is replaced when it grows.
+   */
+  public int[] tagKeys() {
+    intern();
+    return tagKeys;
+  }
+
+  /**
+   * @return the ids of the tag values of all the points, interning the ones
+   * read from text. The array is replaced when it grows.
+   */
+  public int[] tagValues() {
+    intern();
+    return tagValues;
+  }
+
+  /**
+   * @return the key of the j-th tag of the batch, in the given slice or in
+   * the symbol table, without interning it
+   */
+  public ByteSlice tagKey(final int j, final ByteSlice into) {
+    return tagKeys[j] >= 0 ? tagKeySymbols.symbol(tagKeys[j])
+      : into.set(text, tagOffsets[j], tagKeyLengths[j]);
+  }
+
+  /**
+   * @return the value of the j-th tag of the batch, in the given slice or in
+   * the symbol table, without interning it
+   */
+  public ByteSlice tagValue(final int j, final ByteSlice into) {
+    return tagValues[j] >= 0 ? tagValueSymbols.symbol(tagValues[j])
+      : into.set(text, tagOffsets[j] + tagKeyLengths[j], tagValueLengths[j]);
+  }
+
+  public SymbolTable metricSymbols() {
+    return metricSymbols;
+  }
+
+  public SymbolTable tagKeySymbols() {
+    return tagKeySymbols;
+  }
+
+  public SymbolTable tagValueSymbols() {
+    return tagValueSymbols;
+  }
+
+  /**
+   * Removes all the points, keeping the arrays and the symbol tables.
+   */
+  public void clear() {
+    size = 0;
+    textUsed = 0;
+    uninterned = false;
+  }
+
+  /**
+   * Adds the point of the line just read by the given reader.
+   * @throws IllegalArgumentException if the line is malformed
+   */
+  public void add(final FileReader reader) {
+    final Status status = tryAdd(reader);
+    if (status != Status.OK) {
+      final CharSequence line = reader.line();
+      throw new IllegalArgumentException(line == null ? status.message() : status.message() + ": " + line);
+    }
+  }
+
+  /**
+   * Adds the point of the line just read by the given reader, without
+   * throwing an exception if it's malformed.
+   * @return {@link Status#OK}, or what is wrong with the line, which isn't
+   * added
+   */
+  public Status tryAdd(final FileReader reader) {
+    checkNotFull();
+    if (!reader.hasNext()) {
+      return Status.MISSING_FIELDS;
+    }
+    final CharSequence metric = reader.nextSequence();
+    if (metric.length() <= 0) {
+      return Status.INVALID_METRIC;
+    }
+    // the reader may reuse the sequence for the next fields
+    final int metricId = metricSymbols.intern(metric);
+    if (!reader.hasNext()) {
+      return Status.MISSING_FIELDS;
+    }
+    final long timestamp = reader.tryNextLong(0);
+    if (timestamp <= 0) {
+      return Status.INVALID_TIMESTAMP;
+    }
+    if (!reader.hasNext()) {
+      return Status.MISSING_FIELDS;
+    }
+    if (!trySetValue(reader.nextSequence())) {
+      return Status.INVALID_VALUE;
+    }
+    tags.clear();
+    while (reader.hasNext()) {
+      final Status status = reader.tryNextTag(tags);
+      if (status != Status.OK) {
+        return status;
+      }
+    }
+    metrics[size] = metricId;
+    timestamps[size] = timestamp;
+    addTags();
+    return Status.OK;
+  }
+
+  /**
+   * Adds the point of a tokenized line, without going through a reader.
+   * @throws IllegalArgumentException if the line is malformed
+   */
+  public void add(final FastLine line) {
+    final Status status = tryAdd(line);
+    if (status != Status.OK) {
+      throw new IllegalArgumentException(status.message() + ": " + line.getLine(slice));
+    }
+  }
+
+  /**
+   * Adds the point of a tokenized line, without throwing an exception if
+   * it's malformed.
+   * @return {@link Status#OK}, or what is wrong with the line, which isn't
+   * added
+   */
+  public Status tryAdd(final FastLine line) {
+    checkNotFull();
+    if (line.getSlice(0, slice).length() <= 0) {
+      return Status.INVALID_METRIC;
+    }
+    final int fields = line.getSize();
+    if (fields < 3) {
+      return Status.MISSING_FIELDS;
+    }
+    final long timestamp = line.tryGetLong(1, 0);
+    if (timestamp <= 0) {
+      return Status.INVALID_TIMESTAMP;
+    }
+    if (!trySetValue(line.getSlice(2, slice))) {
+      return Status.INVALID_VALUE;
+    }
+    tags.clear();
+    for (int i = 3; i < fields; i++) {
+      final Status status = tags.tryAdd(line.getSlice(i, slice), line.getTagSeparator(i));
+      if (status != Status.OK) {
+        return status;
+      }
+    }
+    final ByteSlice metric = line.getSlice(0, slice);
+    text = ByteArrays.grow(text, textUsed + metric.length());
+    metric.copyTo(0, text, textUsed, metric.length());
+    metrics[size] = -1;
+    metricOffsets[size] = textUsed;
+    metricLengths[size] = metric.length();
+    textUsed += metric.length();
+    uninterned = true;
+    timestamps[size] = timestamp;
+    addTags();
+    return Status.OK;
+  }
+
+  /**
+   * Adds a point already parsed, whose tags are the pairs (keys[j],
+   * values[j]) for j in [from, to), sorted by key.
+   */
+  void add(final int metric, final long timestamp, final boolean integer, final long longValue,
+           final double doubleValue, final int[] keys, final int[] values, final int from, final int to) {
+    checkNotFull();
+    metrics[size] = metric;
+    timestamps[size] = timestamp;
+    integers[size] = integer;
+    longValues[size] = longValue;
+    doubleValues[size] = doubleValue;
+    final int start = tagStart[size];
+    final int end = start + to - from;
+    growTags(end);
+    System.arraycopy(keys, from, tagKeys, start, to - from);
+    System.arraycopy(values, from, tagValues, start, to - from);
+    tagStart[++size] = end;
+  }
+
+  private void checkNotFull() {
+    if (size == capacity) {
+      throw new IllegalStateException("batch is full");
+    }
+  }
+
+  /**
+   * Parses the value of the point being added.
+   * @return false if it's malformed
+   */
+  private boolean trySetValue(final CharSequence value) {
+    if (value.length() <= 0) {
+      return false;
+    }
+    if (Tags.looksLikeInteger(value)) {
+      final long v = Tags.tryParseLong(value, Long.MIN_VALUE);
+      if (v == Long.MIN_VALUE && !Tags.isLongMinValue(value)) {
+        return false;
+      }
+      integers[size] = true;
+      longValues[size] = v;
+      doubleValues[size] = 0;
+    } else {
+      // "NaN" looks like an integer, so NaN is never a valid value here, and
+      // neither are the infinities, like 1e400, which a TSDB doesn't accept
+      final double d = DoubleParser.tryParseDouble(value);
+      if (Double.isNaN(d) || Double.isInfinite(d)) {
+        return false;
+      }
+      integers[size] = false;
+      longValues[size] = 0;
+      doubleValues[size] = d;
+    }
+    return true;
+  }
+
+  /**
+   * Copies the parsed tags and commits the point.
+   */
+  private void addTags() {
+    final int start = tagStart[size];
+    final int end = start + tags.size();
+    growTags(end);
+    for (int i = 0; i < tags.size(); i++) {
+      final ByteSlice key = tags.key(i, slice);
+      final int kLength = key.length();
+      text = ByteArrays.grow(text, textUsed + kLength);
+      key.copyTo(0, text, textUsed, kLength);
+      final ByteSlice value = tags.value(i, slice);
+      final int vLength = value.length();
+      text = ByteArrays.grow(text, textUsed + kLength + vLength);
+      value.copyTo(0, text, textUsed + kLength, vLength);
+      tagKeys[start + i] = -1;
+      tagValues[start + i] = -1;
+      tagOffsets[start + i] = textUsed;
+      tagKeyLengths[start + i] = kLength;
+      tagValueLengths[start + i] = vLength;
+      textUsed += kLength + vLength;
+    }
+    uninterned |= end > start;
+    tagStart[++size] = end;
+  }
+
+  private void growTags(final int n) {
+    if (n > tagKeys.length) {
+      tagKeys = IntArrays.grow(tagKeys, n);
+      tagValues = IntArrays.grow(tagValues, n);
+      tagOffsets = IntArrays.grow(tagOffsets, n);
+      tagKeyLengths = IntArrays.grow(tagKeyLengths, n);
+      tagValueLengths = IntArrays.grow(tagValueLengths, n);
+    }
+  }
+
+  /**
+   * Looks up the ids of the metrics and tags read from text since the last
+   * call.
+   */
+  private void intern() {
+    if (!uninterned) {
+      return;
+    }
+    for (int p = 0; p < size; p++) {
+      if (metrics[p] < 0) {
+        metrics[p] = metricSymbols.intern(slice.set(text, metricOffsets[p], metricLengths[p]));
+      }
+    }
+    for (int j = 0; j < tagStart[size]; j++) {
+      if (tagKeys[j] < 0) {
+        tagKeys[j] = tagKeySymbols.intern(slice.set(text, tagOffsets[j], tagKeyLengths[j]));
+        tagValues[j] = tagValueSymbols.intern(slice.set(text, tagOffsets[j] + tagKeyLengths[j],
+          tagValueLengths[j]));
+      }
+    }
+    uninterned = false;
+  }
+}
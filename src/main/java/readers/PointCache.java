@@ -0,0 +1,327 @@
+package readers;
+
+import com.google.common.base.Preconditions;
+import utils.ByteSlice;
+import utils.SymbolTable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Binary cache of the points parsed from a text file, read back by
+ * {@link CachedFileReader} without parsing any text.
+ * <p>
+ * A cache file, all little-endian, is made of:
+ * <ul>
+ * <li>a header of {@link #HEADER_SIZE} bytes: magic, version, the size, last
+ * modification time and {@linkplain #checksum(FileChannel) checksum} of the
+ * source file, the offset of the dictionary and the number of points and
+ * words of the source.
+ * <li>blocks of points, one per {@link PointBatch} written: the byte length
+ * of the rest of the block, the number of points, then the columns of the
+ * block one after the other, all as varints: timestamps as zigzag deltas,
+ * metric ids, for each point its number of tags and whether its value is an
+ * integer, the values (zigzag varints for integers, 8 bytes for doubles),
+ * and the tag key and value ids.
+ * <li>the dictionary: the metrics, tag keys and tag values, each as a count
+ * followed by the length and bytes of each symbol, in id order.
+ * </ul>
+ * The header is written last, so a cache whose writing was interrupted is
+ * never valid.
+ */
+public final class PointCache {
+  public static final String EXTENSION = ".points";
+  public static final int HEADER_SIZE = 64;
+
+  private static final long MAGIC = 0x31484341435354L;  // "TSCACH1"
+  private static final int VERSION = 1;
+  private static final int SAMPLE_SIZE = 1 << 16;
+
+  /** offsets of the header fields */
+  static final int SOURCE_SIZE = 16;
+  static final int SOURCE_MTIME = 24;
+  static final int SOURCE_CHECKSUM = 32;
+  static final int DICTIONARY = 40;
+  static final int POINTS = 48;
+  static final int WORDS = 56;
+
+  private PointCache() {
+  }
+
+  /**
+   * @return name of the cache of a source file
+   */
+  public static String cacheFile(final String source) {
+    return source + EXTENSION;
+  }
+
+  /**
+   * @return true if the cache exists, is complete, and was written from the
+   * source file as it is now
+   */
+  public static boolean isValid(final String source, final String cache) throws IOException {
+    final Path cachePath = Paths.get(cache);
+    if (!Files.isRegularFile(cachePath) || Files.size(cachePath) < HEADER_SIZE) {
+      return false;
+    }
+    final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    try (FileChannel channel = FileChannel.open(cachePath, StandardOpenOption.READ)) {
+      while (header.hasRemaining() && channel.read(header) >= 0) {
+        // read the whole header
+      }
+    }
+    final Path sourcePath = Paths.get(source);
+    if (header.getLong(0) != MAGIC || header.getInt(8) != VERSION
+      || header.getLong(SOURCE_SIZE) != Files.size(sourcePath)
+      || header.getLong(SOURCE_MTIME) != Files.getLastModifiedTime(sourcePath).toMillis()) {
+      return false;
+    }
+    try (FileChannel channel = FileChannel.open(sourcePath, StandardOpenOption.READ)) {
+      return header.getLong(SOURCE_CHECKSUM) == checksum(channel);
+    }
+  }
+
+  /**
+   * Checksum of a file, computed on samples of its beginning, middle and
+   * end so it stays cheap on large files: together with the size and the
+   * modification time it detects files that were replaced or rewritten, not
+   * every change of a byte.
+   */
+  static long checksum(final FileChannel channel) throws IOException {
+    final long size = channel.size();
+    final CRC32 crc = new CRC32();
+    final ByteBuffer sample = ByteBuffer.allocate(SAMPLE_SIZE);
+    final long[] positions = {0, Math.max(0, size / 2 - SAMPLE_SIZE / 2), Math.max(0, size - SAMPLE_SIZE)};
+    for (long position : positions) {
+      sample.clear();
+      while (sample.hasRemaining() && channel.read(sample, position + sample.position()) > 0) {
+        // read the whole sample
+      }
+      sample.flip();
+      crc.update(sample.array(), 0, sample.limit());
+    }
+    return crc.getValue() ^ size;
+  }
+
+  static void putVarint(final ByteBuffer out, long v) {
+    while ((v & ~0x7FL) != 0) {
+      out.put((byte) ((v & 0x7F) | 0x80));
+      v >>>= 7;
+    }
+    out.put((byte) v);
+  }
+
+  static long getVarint(final ByteBuffer in) {
+    long v = 0;
+    for (int shift = 0; ; shift += 7) {
+      final byte b = in.get();
+      v |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return v;
+      }
+    }
+  }
+
+  static long zigzag(final long v) {
+    return (v << 1) ^ (v >> 63);
+  }
+
+  static long unzigzag(final long v) {
+    return (v >>> 1) ^ -(v & 1);
+  }
+
+  /**
+   * Writes a cache from the batches of points parsed from a source file.
+   * <p>
+   * The file is written next to its final name and renamed by
+   * {@link #close()}, after {@link #commit()} was called. The symbol
+   * tables of the batches must not evict symbols.
+   */
+  public static final class Writer implements Closeable {
+    private static final int MAX_VARINT = 10;
+
+    private final Path target;
+    private final Path temp;
+    private final FileChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private ByteBuffer block = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+    private SymbolTable metrics;
+    private SymbolTable tagKeys;
+    private SymbolTable tagValues;
+    private long points;
+    private long words;
+    private boolean committed;
+
+    /**
+     * @param source the text file being parsed
+     * @param cache name of the cache to write
+     */
+    public Writer(final String source, final String cache) throws IOException {
+      final Path sourcePath = Paths.get(source);
+      this.target = Paths.get(cache);
+      this.temp = Paths.get(cache + ".tmp");
+      this.channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+      header.putLong(0, MAGIC);
+      header.putInt(8, VERSION);
+      header.putLong(SOURCE_SIZE, Files.size(sourcePath));
+      header.putLong(SOURCE_MTIME, Files.getLastModifiedTime(sourcePath).toMillis());
+      try (FileChannel sourceChannel = FileChannel.open(sourcePath, StandardOpenOption.READ)) {
+        header.putLong(SOURCE_CHECKSUM, checksum(sourceChannel));
+      }
+      // the real header is written by commit()
+      writeFully(ByteBuffer.allocate(HEADER_SIZE));
+    }
+
+    /**
+     * Appends the points of a batch to the cache.
+     */
+    public void write(final PointBatch batch) throws IOException {
+      Preconditions.checkState(!committed, "cache already committed");
+      if (metrics == null) {
+        metrics = batch.metricSymbols();
+        tagKeys = batch.tagKeySymbols();
+        tagValues = batch.tagValueSymbols();
+      }
+      Preconditions.checkArgument(batch.metricSymbols() == metrics && batch.tagKeySymbols() == tagKeys
+        && batch.tagValueSymbols() == tagValues, "all the batches must share the same symbol tables");
+
+      final int size = batch.size();
+      final int[] tagStart = batch.tagStart();
+      ensureCapacity(8 + (long) size * (5 * MAX_VARINT) + (long) tagStart[size] * 2 * MAX_VARINT);
+      block.clear();
+      block.putInt(0);
+      block.putInt(size);
+      long previous = 0;
+      final long[] timestamps = batch.timestamps();
+      for (int i = 0; i < size; i++) {
+        putVarint(block, zigzag(timestamps[i] - previous));
+        previous = timestamps[i];
+      }
+      final int[] metricIds = batch.metrics();
+      for (int i = 0; i < size; i++) {
+        putVarint(block, metricIds[i]);
+      }
+      final boolean[] integers = batch.integers();
+      for (int i = 0; i < size; i++) {
+        putVarint(block, (long) (tagStart[i + 1] - tagStart[i]) << 1 | (integers[i] ? 1 : 0));
+      }
+      final long[] longValues = batch.longValues();
+      final double[] doubleValues = batch.doubleValues();
+      for (int i = 0; i < size; i++) {
+        if (integers[i]) {
+          putVarint(block, zigzag(longValues[i]));
+        } else {
+          block.putDouble(doubleValues[i]);
+        }
+      }
+      final int[] keys = batch.tagKeys();
+      final int[] values = batch.tagValues();
+      for (int j = 0; j < tagStart[size]; j++) {
+        putVarint(block, keys[j]);
+        putVarint(block, values[j]);
+      }
+      block.putInt(0, block.position() - 4);
+      block.flip();
+      writeFully(block);
+
+      points += size;
+      words += batch.words();
+    }
+
+    private void ensureCapacity(final long capacity) {
+      Preconditions.checkArgument(capacity <= Integer.MAX_VALUE, "batch too large for a cache block");
+      if (block.capacity() < capacity) {
+        block = ByteBuffer.allocate((int) Math.max(capacity, 2L * block.capacity())).order(ByteOrder.LITTLE_ENDIAN);
+      }
+    }
+
+    private void writeFully(final ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+
+    /**
+     * Writes the dictionary and the header, once all the points are written.
+     * The cache replaces any previous one when closed.
+     */
+    public void commit() throws IOException {
+      Preconditions.checkState(!committed, "cache already committed");
+      header.putLong(DICTIONARY, channel.position());
+      header.putLong(POINTS, points);
+      header.putLong(WORDS, words);
+      for (SymbolTable table : new SymbolTable[]{metrics, tagKeys, tagValues}) {
+        writeSymbols(table);
+      }
+      channel.force(false);
+      header.clear();
+      channel.write(header, 0);
+      committed = true;
+    }
+
+    private void writeSymbols(final SymbolTable table) throws IOException {
+      final int size = table == null ? 0 : table.size();
+      ensureCapacity(MAX_VARINT);
+      block.clear();
+      putVarint(block, size);
+      block.flip();
+      writeFully(block);
+      for (int id = 0; id < size; id++) {
+        final ByteSlice symbol = table.symbol(id);
+        ensureCapacity(MAX_VARINT + symbol.length());
+        block.clear();
+        putVarint(block, symbol.length());
+        final byte[] bytes = block.array();
+        symbol.copyTo(0, bytes, block.position(), symbol.length());
+        block.position(block.position() + symbol.length());
+        block.flip();
+        writeFully(block);
+      }
+    }
+
+    /**
+     * @return number of points written so far
+     */
+    public long points() {
+      return points;
+    }
+
+    /**
+     * Moves the cache to its final name if it was committed, deletes it
+     * otherwise.
+     */
+    @Override
+    public void close() throws IOException {
+      channel.close();
+      if (committed) {
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } else {
+        Files.deleteIfExists(temp);
+      }
+    }
+  }
+
+  /**
+   * Reads the symbols of one table of the dictionary.
+   */
+  static ByteSlice[] readSymbols(final ByteBuffer in) {
+    final ByteSlice[] symbols = new ByteSlice[(int) getVarint(in)];
+    for (int id = 0; id < symbols.length; id++) {
+      final byte[] bytes = new byte[(int) getVarint(in)];
+      in.get(bytes);
+      symbols[id] = new ByteSlice(bytes, 0, bytes.length);
+    }
+    return symbols;
+  }
+}
@@ -0,0 +1,258 @@
+package sinks;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import readers.PointBatch;
+import utils.ByteSlice;
+import utils.SymbolTable;
+import utils.TagSet;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sends points to a TSDB in bulk requests, built in reusable buffers.
+ * <p>
+ * Points are encoded in the {@link Format} of the transport as they are
+ * added, in a payload sent once it holds batchSize points. At most
+ * maxInFlight payloads exist: they are either being filled or being sent by
+ * a pool of maxInFlight threads. When all of them are in flight,
+ * {@link #add} waits for one to come back, which slows the import down to
+ * the pace of the TSDB instead of buffering without bounds.
+ * <p>
+ * A failed send fails the following call to {@link #add}, {@link #flush()}
+ * or {@link #close()}.
+ * <p>
+ * Neither the telnet nor the JSON API accept NaN or infinite values, so
+ * {@link #add} throws an {@link IllegalArgumentException} for them, before
+ * anything of the point is encoded.
+ */
+public final class BatchingSink implements PointSink {
+  public static final int DEFAULT_BATCH_SIZE = 5000;
+  public static final int DEFAULT_IN_FLIGHT = 4;
+
+  /** Encodings of the payloads. */
+  public enum Format {
+    /** lines of the telnet put command */
+    TELNET,
+    /** JSON array of the /api/put endpoint */
+    JSON
+  }
+
+  private static final AtomicInteger THREAD_ID = new AtomicInteger();
+  private static final byte[] PUT = "put ".getBytes(Charsets.UTF_8);
+  private static final byte[] METRIC = "{\"metric\":".getBytes(Charsets.UTF_8);
+  private static final byte[] TIMESTAMP = ",\"timestamp\":".getBytes(Charsets.UTF_8);
+  private static final byte[] VALUE = ",\"value\":".getBytes(Charsets.UTF_8);
+  private static final byte[] TAGS = ",\"tags\":{".getBytes(Charsets.UTF_8);
+
+  private final Transport transport;
+  private final Format format;
+  private final int batchSize;
+  private final int maxInFlight;
+  private final BlockingQueue<Payload> free;
+  private final ExecutorService senders;
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+  private Payload current;
+  private final ByteSlice metricSlice = new ByteSlice();
+  private final ByteSlice key = new ByteSlice();
+  private final ByteSlice value = new ByteSlice();
+  private boolean closed;
+
+  /**
+   * @param transport closed with the sink
+   * @param batchSize number of points per request
+   * @param maxInFlight number of payloads being filled or sent
+   */
+  public BatchingSink(final Transport transport, final Format format, final int batchSize, final int maxInFlight) {
+    Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+    Preconditions.checkArgument(maxInFlight > 0, "maxInFlight must be positive");
+    this.transport = transport;
+    this.format = format;
+    this.batchSize = batchSize;
+    this.maxInFlight = maxInFlight;
+    this.free = new ArrayBlockingQueue<>(maxInFlight);
+    for (int i = 0; i < maxInFlight; i++) {
+      free.add(new Payload(batchSize * 64));
+    }
+    this.senders = Executors.newFixedThreadPool(maxInFlight, r -> {
+      final Thread t = new Thread(r, "sink-" + THREAD_ID.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  @Override
+  public void add(final ByteSlice metric, final long timestamp, final boolean isInteger, final long longValue,
+                  final double doubleValue, final TagSet tags) throws IOException {
+    final Payload payload = startPoint(metric, timestamp, isInteger, longValue, doubleValue);
+    for (int i = 0; i < tags.size(); i++) {
+      addTag(payload, i, tags.key(i, key), tags.value(i, value));
+    }
+    endPoint(payload);
+  }
+
+  @Override
+  public void add(final PointBatch batch) throws IOException {
+    final int[] tagStart = batch.tagStart();
+    for (int p = 0; p < batch.size(); p++) {
+      final Payload payload = startPoint(batch.metric(p, metricSlice), batch.timestamps()[p],
+        batch.integers()[p], batch.longValues()[p], batch.doubleValues()[p]);
+      for (int j = tagStart[p]; j < tagStart[p + 1]; j++) {
+        addTag(payload, j - tagStart[p], batch.tagKey(j, key), batch.tagValue(j, value));
+      }
+      endPoint(payload);
+    }
+  }
+
+  private Payload startPoint(final ByteSlice metric, final long timestamp, final boolean isInteger,
+                             final long longValue, final double doubleValue) throws IOException {
+    if (!isInteger && (Double.isNaN(doubleValue) || Double.isInfinite(doubleValue))) {
+      throw new IllegalArgumentException("can't send the value " + doubleValue + " of " + metric);
+    }
+    if (current == null) {
+      current = take();
+    }
+    final Payload payload = current;
+    if (format == Format.TELNET) {
+      payload.put(PUT).put(metric).put((byte) ' ').putLong(timestamp).put((byte) ' ')
+        .putValue(isInteger, longValue, doubleValue);
+    } else {
+      payload.put(payload.points == 0 ? (byte) '[' : (byte) ',')
+        .put(METRIC).putJsonString(metric)
+        .put(TIMESTAMP).putLong(timestamp)
+        .put(VALUE).putValue(isInteger, longValue, doubleValue)
+        .put(TAGS);
+    }
+    return payload;
+  }
+
+  private void addTag(final Payload payload, final int index, final ByteSlice key, final ByteSlice value) {
+    if (format == Format.TELNET) {
+      payload.put((byte) ' ').put(key).put((byte) '=').put(value);
+    } else {
+      if (index > 0) {
+        payload.put((byte) ',');
+      }
+      payload.putJsonString(key).put((byte) ':').putJsonString(value);
+    }
+  }
+
+  private void endPoint(final Payload payload) throws IOException {
+    if (format == Format.TELNET) {
+      payload.put((byte) '\n');
+    } else {
+      // end of the tags and of the point
+      payload.put((byte) '}').put((byte) '}');
+    }
+    if (++payload.points == batchSize) {
+      send();
+    }
+  }
+
+  /**
+   * Waits for a free payload.
+   */
+  private Payload take() throws IOException {
+    checkFailure();
+    try {
+      return free.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+
+  /**
+   * Hands the current payload to the senders.
+   */
+  private void send() throws IOException {
+    final Payload payload = current;
+    current = null;
+    if (format == Format.JSON) {
+      payload.put((byte) ']');
+    }
+    senders.execute(() -> {
+      try {
+        if (failure.get() == null) {
+          transport.send(payload.bytes, payload.length);
+        }
+      } catch (Throwable e) {
+        failure.compareAndSet(null, e);
+      } finally {
+        payload.clear();
+        free.add(payload);
+      }
+    });
+  }
+
+  private void checkFailure() throws IOException {
+    final Throwable e = failure.get();
+    if (e != null) {
+      if (e instanceof IOException) {
+        throw new IOException("sending points failed", e);
+      }
+      throw new RuntimeException("sending points failed", e);
+    }
+  }
+
+  /**
+   * Sends the current payload and waits for all the payloads in flight to
+   * be sent.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (current != null) {
+      if (current.points > 0) {
+        send();
+      } else {
+        free.add(current);
+        current = null;
+      }
+    }
+    // all the payloads are back once they were all taken
+    final Payload[] payloads = new Payload[maxInFlight];
+    try {
+      for (int i = 0; i < maxInFlight; i++) {
+        payloads[i] = free.take();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } finally {
+      for (Payload payload : payloads) {
+        if (payload != null) {
+          free.add(payload);
+        }
+      }
+    }
+    checkFailure();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      flush();
+    } finally {
+      senders.shutdown();
+      try {
+        senders.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      transport.close();
+    }
+  }
+}
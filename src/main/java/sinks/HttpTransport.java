@@ -0,0 +1,61 @@
+package sinks;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Posts JSON arrays of points to the {@code /api/put} endpoint of a TSDB.
+ * <p>
+ * Each send is a request, acknowledged by the response status. Connections
+ * are kept alive and reused by {@link HttpURLConnection}, one per thread
+ * sending at the same time.
+ */
+public final class HttpTransport implements Transport {
+  private static final int MAX_ERROR_LENGTH = 1024;
+
+  private final URL url;
+
+  public HttpTransport(final String host, final int port) throws IOException {
+    url = new URL("http", host, port, "/api/put");
+  }
+
+  @Override
+  public void send(final byte[] payload, final int length) throws IOException {
+    final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestMethod("POST");
+    connection.setRequestProperty("Content-Type", "application/json");
+    connection.setDoOutput(true);
+    connection.setFixedLengthStreamingMode(length);
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(payload, 0, length);
+    }
+    final int status = connection.getResponseCode();
+    if (status / 100 != 2) {
+      throw new IOException("POST " + url + " failed with status " + status + ": " + readError(connection));
+    }
+    // the response must be read to the end for the connection to be reused
+    try (InputStream in = connection.getInputStream()) {
+      ByteStreams.copy(in, ByteStreams.nullOutputStream());
+    }
+  }
+
+  private static String readError(final HttpURLConnection connection) throws IOException {
+    try (InputStream in = connection.getErrorStream()) {
+      if (in == null) {
+        return "";
+      }
+      final byte[] error = ByteStreams.toByteArray(ByteStreams.limit(in, MAX_ERROR_LENGTH));
+      return new String(error, Charsets.UTF_8);
+    }
+  }
+
+  @Override
+  public void close() {
+  }
+}
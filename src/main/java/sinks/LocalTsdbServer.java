@@ -0,0 +1,239 @@
+package sinks;
+
+import com.google.common.base.Charsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An in-process stand-in for a TSDB, that accepts points on a local port
+ * and only counts them, to exercise the sinks without a real server.
+ * <p>
+ * Each connection is served by its own thread and speaks either protocol,
+ * depending on its first bytes: HTTP requests to {@code /api/put}, answered
+ * with 204 once their JSON body is read, or telnet {@code put} lines. An
+ * optional delay per HTTP request, or per telnet payload read, simulates a
+ * slow server.
+ */
+public final class LocalTsdbServer implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(LocalTsdbServer.class);
+  private static final AtomicInteger THREAD_ID = new AtomicInteger();
+  private static final byte[] NO_CONTENT = "HTTP/1.1 204 No Content\r\n\r\n".getBytes(Charsets.US_ASCII);
+  private static final byte[] BAD_REQUEST =
+    "HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(Charsets.US_ASCII);
+
+  private final ServerSocket server;
+  private final long delayMillis;
+  private final LongAdder points = new LongAdder();
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder bytes = new LongAdder();
+  private volatile boolean closed;
+
+  /**
+   * Starts a server on an ephemeral port of the loopback interface.
+   * @param delayMillis time spent on each request before answering it
+   */
+  public LocalTsdbServer(final long delayMillis) throws IOException {
+    this.delayMillis = delayMillis;
+    server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    startThread("tsdb-accept", this::accept);
+  }
+
+  private static void startThread(final String name, final Runnable runnable) {
+    final Thread t = new Thread(runnable, name + "-" + THREAD_ID.incrementAndGet());
+    t.setDaemon(true);
+    t.start();
+  }
+
+  public String host() {
+    return server.getInetAddress().getHostAddress();
+  }
+
+  public int port() {
+    return server.getLocalPort();
+  }
+
+  /**
+   * @return number of points received so far
+   */
+  public long points() {
+    return points.sum();
+  }
+
+  /**
+   * @return number of HTTP requests, or telnet payloads read, so far
+   */
+  public long requests() {
+    return requests.sum();
+  }
+
+  public long bytes() {
+    return bytes.sum();
+  }
+
+  private void accept() {
+    while (!closed) {
+      try {
+        final Socket socket = server.accept();
+        startThread("tsdb-connection", () -> serve(socket));
+      } catch (IOException e) {
+        if (!closed) {
+          LOG.warn("accept failed", e);
+        }
+      }
+    }
+  }
+
+  private void serve(final Socket socket) {
+    try (Socket s = socket;
+         InputStream in = new BufferedInputStream(s.getInputStream(), 1 << 16);
+         OutputStream out = s.getOutputStream()) {
+      in.mark(4);
+      final byte[] start = new byte[4];
+      final int n = in.read(start);
+      in.reset();
+      if (n == 4 && new String(start, Charsets.US_ASCII).equals("POST")) {
+        serveHttp(in, out);
+      } else {
+        serveTelnet(in);
+      }
+    } catch (SocketException | EOFException e) {
+      // connection closed by the client
+    } catch (IOException | InterruptedException e) {
+      if (!closed) {
+        LOG.warn("connection failed", e);
+      }
+    }
+  }
+
+  /**
+   * Counts the lines starting with "put ".
+   */
+  private void serveTelnet(final InputStream in) throws IOException, InterruptedException {
+    final byte[] buffer = new byte[1 << 16];
+    boolean lineStart = true;
+    int n;
+    while ((n = in.read(buffer)) > 0) {
+      long count = 0;
+      for (int i = 0; i < n; i++) {
+        if (lineStart && buffer[i] == 'p') {
+          count++;
+        }
+        lineStart = buffer[i] == '\n';
+      }
+      points.add(count);
+      requests.increment();
+      bytes.add(n);
+      pause();
+    }
+  }
+
+  private void serveHttp(final InputStream in, final OutputStream out) throws IOException, InterruptedException {
+    final byte[] buffer = new byte[1 << 16];
+    while (true) {
+      final String requestLine = readLine(in);
+      if (requestLine == null) {
+        return;
+      }
+      long length = -1;
+      String header;
+      while ((header = readLine(in)) != null && !header.isEmpty()) {
+        final String lower = header.toLowerCase(Locale.ROOT);
+        if (lower.startsWith("content-length:")) {
+          length = Long.parseLong(lower.substring("content-length:".length()).trim());
+        }
+      }
+      if (!requestLine.startsWith("POST /api/put") || length < 0) {
+        out.write(BAD_REQUEST);
+        return;
+      }
+      points.add(countObjects(in, length, buffer));
+      requests.increment();
+      bytes.add(length);
+      pause();
+      out.write(NO_CONTENT);
+      out.flush();
+    }
+  }
+
+  /**
+   * Reads a JSON array of length bytes.
+   * @return number of objects in the array
+   */
+  private static long countObjects(final InputStream in, long length, final byte[] buffer) throws IOException {
+    long count = 0;
+    int depth = 0;
+    boolean inString = false;
+    boolean escaped = false;
+    while (length > 0) {
+      final int n = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+      if (n < 0) {
+        throw new EOFException();
+      }
+      length -= n;
+      for (int i = 0; i < n; i++) {
+        final byte b = buffer[i];
+        if (inString) {
+          if (escaped) {
+            escaped = false;
+          } else if (b == '\\') {
+            escaped = true;
+          } else if (b == '"') {
+            inString = false;
+          }
+        } else if (b == '"') {
+          inString = true;
+        } else if (b == '{' || b == '[') {
+          if (b == '{' && depth == 1) {
+            count++;
+          }
+          depth++;
+        } else if (b == '}' || b == ']') {
+          depth--;
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the next CRLF terminated line, or null at the end of the stream
+   */
+  private static String readLine(final InputStream in) throws IOException {
+    final StringBuilder line = new StringBuilder();
+    int b;
+    while ((b = in.read()) >= 0) {
+      if (b == '\n') {
+        final int end = line.length();
+        return end > 0 && line.charAt(end - 1) == '\r' ? line.substring(0, end - 1) : line.toString();
+      }
+      line.append((char) b);
+    }
+    return line.length() == 0 ? null : line.toString();
+  }
+
+  private void pause() throws InterruptedException {
+    if (delayMillis > 0) {
+      Thread.sleep(delayMillis);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    server.close();
+  }
+}
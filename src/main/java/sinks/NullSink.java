@@ -0,0 +1,32 @@
+package sinks;
+
+import readers.PointBatch;
+import utils.ByteSlice;
+import utils.TagSet;
+
+/**
+ * Discards the points, to measure the import alone.
+ */
+public final class NullSink implements PointSink {
+  public static final NullSink INSTANCE = new NullSink();
+
+  private NullSink() {
+  }
+
+  @Override
+  public void add(ByteSlice metric, long timestamp, boolean isInteger, long longValue, double doubleValue,
+                  TagSet tags) {
+  }
+
+  @Override
+  public void add(PointBatch batch) {
+  }
+
+  @Override
+  public void flush() {
+  }
+
+  @Override
+  public void close() {
+  }
+}
@@ -0,0 +1,118 @@
+package sinks;
+
+import com.google.common.base.Charsets;
+import it.unimi.dsi.fastutil.bytes.ByteArrays;
+import utils.ByteSlice;
+import utils.DoubleWriter;
+
+/**
+ * The body of a request to a TSDB, encoded in a byte array that grows as
+ * needed and is reused from one request to the next.
+ */
+final class Payload {
+  private static final byte[] HEX = "0123456789abcdef".getBytes(Charsets.UTF_8);
+  private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(Charsets.UTF_8);
+
+  byte[] bytes;
+  int length;
+  /** number of points in the payload */
+  int points;
+
+  Payload(final int initialSize) {
+    bytes = new byte[initialSize];
+  }
+
+  void clear() {
+    length = 0;
+    points = 0;
+  }
+
+  private void ensureRoom(final int n) {
+    bytes = ByteArrays.grow(bytes, length + n);
+  }
+
+  Payload put(final byte b) {
+    ensureRoom(1);
+    bytes[length++] = b;
+    return this;
+  }
+
+  Payload put(final byte[] b) {
+    ensureRoom(b.length);
+    System.arraycopy(b, 0, bytes, length, b.length);
+    length += b.length;
+    return this;
+  }
+
+  Payload put(final ByteSlice slice) {
+    final int n = slice.length();
+    ensureRoom(n);
+    slice.copyTo(0, bytes, length, n);
+    length += n;
+    return this;
+  }
+
+  Payload putLong(long v) {
+    if (v == Long.MIN_VALUE) {
+      return put(MIN_LONG);
+    }
+    ensureRoom(20);
+    if (v < 0) {
+      bytes[length++] = '-';
+      v = -v;
+    }
+    // digits are written backwards from the end of the number
+    int end = length;
+    long rest = v;
+    do {
+      end++;
+      rest /= 10;
+    } while (rest != 0);
+    int i = end;
+    do {
+      bytes[--i] = (byte) ('0' + v % 10);
+      v /= 10;
+    } while (v != 0);
+    length = end;
+    return this;
+  }
+
+  /**
+   * Writes a value, doubles with {@link DoubleWriter}.
+   * @throws IllegalArgumentException if the double is NaN or infinite
+   */
+  Payload putValue(final boolean isInteger, final long longValue, final double doubleValue) {
+    if (isInteger) {
+      return putLong(longValue);
+    }
+    ensureRoom(DoubleWriter.MAX_LENGTH);
+    length = DoubleWriter.write(doubleValue, bytes, length);
+    return this;
+  }
+
+  /**
+   * Writes a slice of UTF-8 bytes as a JSON string, quotes included.
+   */
+  Payload putJsonString(final ByteSlice slice) {
+    final int n = slice.length();
+    ensureRoom(n + 2);
+    bytes[length++] = '"';
+    for (int i = 0; i < n; i++) {
+      final byte b = slice.byteAt(i);
+      if (b == '"' || b == '\\') {
+        put((byte) '\\').put(b);
+      } else if (b >= 0 && b < 0x20) {
+        ensureRoom(6);
+        bytes[length++] = '\\';
+        bytes[length++] = 'u';
+        bytes[length++] = '0';
+        bytes[length++] = '0';
+        bytes[length++] = HEX[b >> 4];
+        bytes[length++] = HEX[b & 0xF];
+      } else {
+        put(b);
+      }
+    }
+    return put((byte) '"');
+  }
+}
@@ -0,0 +1,41 @@
+package sinks;
+
+import readers.PointBatch;
+import utils.ByteSlice;
+import utils.TagSet;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Where the points of an import go once parsed.
+ * <p>
+ * Sinks receive views of the buffers of the import: the metric, tags and
+ * batch are only valid during the call, a sink copies whatever it keeps.
+ * Sinks are not thread-safe, each thread of an import has its own.
+ */
+public interface PointSink extends Closeable {
+
+  /**
+   * Adds a point. Its value is longValue if isInteger, doubleValue
+   * otherwise.
+   */
+  void add(ByteSlice metric, long timestamp, boolean isInteger, long longValue, double doubleValue, TagSet tags)
+    throws IOException;
+
+  /**
+   * Adds all the points of a batch.
+   */
+  void add(PointBatch batch) throws IOException;
+
+  /**
+   * Returns once all the points added so far are delivered.
+   */
+  void flush() throws IOException;
+
+  /**
+   * Flushes the sink and releases its resources.
+   */
+  @Override
+  void close() throws IOException;
+}
@@ -0,0 +1,466 @@
+package sinks;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.bytes.ByteArrays;
+import it.unimi.dsi.fastutil.doubles.DoubleArrays;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectRBTreeMap;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import readers.PointBatch;
+import store.Series;
+import utils.ByteSlice;
+import utils.TagSet;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Passes the points to the sink it wraps, and adds to it the min, max, sum
+ * and count of the points of each series in windows of fixed intervals,
+ * like 1 minute and 1 hour, computed as the points go by.
+ * <p>
+ * The rollups of a series are points of the metric suffixed with the
+ * interval and the aggregate, like {@code sys.cpu.1m.max}, with the tags of
+ * the series, at the start of their window. Timestamps in milliseconds are
+ * aggregated, and rolled up, in seconds.
+ * <p>
+ * The accumulators of the open windows of an interval are kept in parallel
+ * primitive arrays, found by window and series in a
+ * {@link Long2IntOpenHashMap}, and listed by window in a tree so finished
+ * windows are found without going through all of them. The last window of
+ * each series is also kept aside, so points in order skip the map. The key
+ * of each series is split in its metric and tags once, when the series is
+ * first seen, so adding rollups doesn't allocate.
+ * <p>
+ * A window is finished, and its rollups added, once a point of any series is
+ * more than the tolerance past its end: later points of the window are
+ * counted in {@link #late()} and left out of the rollups. The windows still
+ * open are finished on {@link #close()}.
+ * <p>
+ * The rollups are partial when the points of a series in a window are split
+ * across sinks, like with several threads importing the chunks of a file.
+ * They still combine, as the min of the mins, the sum of the sums and so on.
+ */
+public final class RollupSink implements PointSink {
+  private static final long MILLISECONDS = 0xFFFFFFFF00000000L;
+  private static final byte[][] AGGREGATES = {
+    ".min".getBytes(Charsets.UTF_8), ".max".getBytes(Charsets.UTF_8), ".sum".getBytes(Charsets.UTF_8),
+    ".count".getBytes(Charsets.UTF_8) };
+  private static final int MAX_AGGREGATE_LENGTH = 6;
+
+  private final PointSink sink;
+  private final long tolerance;
+  private final Interval[] intervals;
+  private final SeriesKey keys = new SeriesKey();
+  private final Object2IntOpenHashMap<ByteSlice> ids = new Object2IntOpenHashMap<>();
+  private final ObjectArrayList<ByteSlice> series = new ObjectArrayList<>();
+  /** the end of the metric of each series, then the end and '=' of each of its tags, in its key */
+  private final IntArrayList splits = new IntArrayList();
+  /** start of the splits of each series, and their end */
+  private final IntArrayList splitStart = IntArrayList.wrap(new int[]{0});
+  private int lastId = -1;
+  private long watermark = Long.MIN_VALUE;
+  private long windows;
+  private long late;
+
+  // buffers of the rollups being added
+  private final ByteSlice metric = new ByteSlice();
+  private byte[] metricBuffer = new byte[64];
+  private final TagSet tags = new TagSet();
+  private final ByteSlice tag = new ByteSlice();
+
+  /**
+   * @param sink receives the points and their rollups, closed with this sink
+   * @param intervals labels of the intervals, like "1m" or "1h", see {@link #parseSeconds}
+   * @param tolerance number of seconds points may come after a later point
+   *                  and still be rolled up
+   */
+  public RollupSink(final PointSink sink, final String[] intervals, final long tolerance) {
+    Preconditions.checkArgument(intervals.length > 0, "no interval");
+    Preconditions.checkArgument(tolerance >= 0, "tolerance must not be negative");
+    this.sink = sink;
+    this.tolerance = tolerance;
+    this.intervals = new Interval[intervals.length];
+    for (int i = 0; i < intervals.length; i++) {
+      this.intervals[i] = new Interval(intervals[i]);
+    }
+    ids.defaultReturnValue(-1);
+  }
+
+  /**
+   * Parses a duration made of a number and a unit: s, m, h or d.
+   * @return the duration in seconds
+   * @throws IllegalArgumentException if it's malformed
+   */
+  public static long parseSeconds(final String duration) {
+    final String d = duration.trim();
+    Preconditions.checkArgument(d.length() > 1, "invalid duration: %s", duration);
+    final long unit;
+    switch (d.charAt(d.length() - 1)) {
+      case 's':
+        unit = 1;
+        break;
+      case 'm':
+        unit = 60;
+        break;
+      case 'h':
+        unit = 3600;
+        break;
+      case 'd':
+        unit = 86400;
+        break;
+      default:
+        throw new IllegalArgumentException("invalid duration, expected a unit of s, m, h or d: " + duration);
+    }
+    final long n;
+    try {
+      n = Long.parseLong(d.substring(0, d.length() - 1));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("invalid duration: " + duration, e);
+    }
+    Preconditions.checkArgument(n >= 0, "invalid duration: %s", duration);
+    return n * unit;
+  }
+
+  /**
+   * @return number of windows rolled up so far, for all the intervals
+   */
+  public long windows() {
+    return windows;
+  }
+
+  /**
+   * @return number of points left out of the rollups of an interval, for
+   *         coming too late after their window was finished
+   */
+  public long late() {
+    return late;
+  }
+
+  @Override
+  public void add(final ByteSlice metric, final long timestamp, final boolean isInteger, final long longValue,
+                  final double doubleValue, final TagSet tags) throws IOException {
+    sink.add(metric, timestamp, isInteger, longValue, doubleValue, tags);
+    // points often come in runs of the same series, whose key needn't be built
+    if (lastId >= 0 && keys.matches(series.get(lastId), metric, tags)) {
+      aggregate(lastId, timestamp, isInteger, longValue, doubleValue);
+    } else {
+      aggregate(keys.of(metric, tags), timestamp, isInteger, longValue, doubleValue);
+    }
+  }
+
+  @Override
+  public void add(final PointBatch batch) throws IOException {
+    sink.add(batch);
+    for (int p = 0; p < batch.size(); p++) {
+      aggregate(keys.of(batch, p), batch.timestamps()[p], batch.integers()[p], batch.longValues()[p],
+        batch.doubleValues()[p]);
+    }
+  }
+
+  private void aggregate(final ByteSlice key, final long timestamp, final boolean isInteger, final long longValue,
+                         final double doubleValue) throws IOException {
+    int id = lastId;
+    if (id < 0 || !key.equals(series.get(id))) {
+      id = ids.getInt(key);
+      if (id < 0) {
+        id = series.size();
+        final ByteSlice copy = key.copy();
+        series.add(copy);
+        ids.put(copy, id);
+        split(copy);
+      }
+      lastId = id;
+    }
+    aggregate(id, timestamp, isInteger, longValue, doubleValue);
+  }
+
+  private void aggregate(final int id, long timestamp, final boolean isInteger, final long longValue,
+                         final double doubleValue) throws IOException {
+    if ((timestamp & MILLISECONDS) != 0) {
+      timestamp /= 1000;
+    }
+    for (Interval interval : intervals) {
+      interval.add(id, timestamp, isInteger, longValue, doubleValue);
+    }
+    if (timestamp > watermark) {
+      watermark = timestamp;
+      for (Interval interval : intervals) {
+        if (watermark - tolerance >= interval.nextFinish) {
+          interval.finish(Math.floorDiv(watermark - tolerance, interval.seconds));
+        }
+      }
+    }
+  }
+
+  /**
+   * Flushes the sink, without finishing the open windows.
+   */
+  @Override
+  public void flush() throws IOException {
+    sink.flush();
+  }
+
+  /**
+   * Adds the rollups of all the open windows, then closes the sink.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      for (Interval interval : intervals) {
+        interval.finish(Long.MAX_VALUE);
+      }
+    } finally {
+      sink.close();
+    }
+  }
+
+  /**
+   * Adds to {@link #splits} the offsets of the metric and tags of the key of
+   * a new series.
+   */
+  private void split(final ByteSlice key) {
+    int end = key.indexOf(Series.SEPARATOR);
+    if (end < 0) {
+      end = key.length();
+    }
+    splits.add(end);
+    while (end < key.length()) {
+      int next = end + 1;
+      int separator = -1;
+      while (next < key.length() && key.byteAt(next) != Series.SEPARATOR) {
+        if (separator < 0 && key.byteAt(next) == '=') {
+          separator = next;
+        }
+        next++;
+      }
+      splits.add(next);
+      splits.add(separator);
+      end = next;
+    }
+    splitStart.add(splits.size());
+  }
+
+  /**
+   * Sets {@link #tags} to the tags of a series, and the start of
+   * {@link #metricBuffer} to its metric followed by the suffix.
+   * @return length of the metric and suffix
+   */
+  private int startRollups(final int id, final byte[] suffix) {
+    final ByteSlice key = series.get(id);
+    final int from = splitStart.getInt(id);
+    final int to = splitStart.getInt(id + 1);
+    final int end = splits.getInt(from);
+    final int length = end + suffix.length;
+    metricBuffer = ByteArrays.grow(metricBuffer, length + MAX_AGGREGATE_LENGTH);
+    key.copyTo(0, metricBuffer, 0, end);
+    System.arraycopy(suffix, 0, metricBuffer, end, suffix.length);
+
+    tags.clear();
+    int tagStart = end + 1;
+    for (int i = from + 1; i < to; i += 2) {
+      final int tagEnd = splits.getInt(i);
+      tags.tryAdd(key.slice(tagStart, tagEnd, tag), splits.getInt(i + 1) - tagStart);
+      tagStart = tagEnd + 1;
+    }
+    return length;
+  }
+
+  /**
+   * Adds a rollup of the series set up by {@link #startRollups}.
+   */
+  private void addRollup(final int length, final byte[] aggregate, final long timestamp, final boolean isInteger,
+                         final long longValue, final double doubleValue) throws IOException {
+    System.arraycopy(aggregate, 0, metricBuffer, length, aggregate.length);
+    sink.add(metric.set(metricBuffer, 0, length + aggregate.length), timestamp, isInteger, longValue, doubleValue,
+      tags);
+  }
+
+  /**
+   * The open windows of an interval, and their accumulators.
+   */
+  private final class Interval {
+    final long seconds;
+    final byte[] suffix;
+
+    /** slot of the accumulator of each open window, by window << 32 | series */
+    private final Long2IntOpenHashMap slots = new Long2IntOpenHashMap();
+    /** slots of the open windows, by window */
+    private final Long2ObjectRBTreeMap<IntArrayList> open = new Long2ObjectRBTreeMap<>();
+    private final ObjectArrayList<IntArrayList> spareLists = new ObjectArrayList<>();
+    private final IntArrayList free = new IntArrayList();
+    private int used;
+    private int[] seriesIds = new int[64];
+    private long[] count = new long[64];
+    private boolean[] integers = new boolean[64];
+    private long[] longMin = new long[64];
+    private long[] longMax = new long[64];
+    private long[] longSum = new long[64];
+    private double[] min = new double[64];
+    private double[] max = new double[64];
+    private double[] sum = new double[64];
+
+    // last window of each series and its slot, or Long.MIN_VALUE
+    private long[] lastWindow = new long[64];
+    private int[] lastSlot = new int[64];
+
+    /** windows before this one are finished */
+    private long finished = Long.MIN_VALUE;
+    /** time at which the window {@link #finished} is */
+    long nextFinish = Long.MIN_VALUE;
+    // bounds of the window of the last point, to skip most divisions
+    private long current = Long.MIN_VALUE;
+    private long currentStart = Long.MAX_VALUE;
+    private long currentEnd = Long.MIN_VALUE;
+
+    Interval(final String label) {
+      seconds = parseSeconds(label);
+      Preconditions.checkArgument(seconds > 0, "invalid interval: %s", label);
+      suffix = ("." + label.trim()).getBytes(Charsets.UTF_8);
+      slots.defaultReturnValue(-1);
+      Arrays.fill(lastWindow, Long.MIN_VALUE);
+    }
+
+    void add(final int id, final long timestamp, final boolean isInteger, final long longValue,
+             final double doubleValue) {
+      final long window;
+      if (timestamp >= currentStart && timestamp < currentEnd) {
+        window = current;
+      } else {
+        window = Math.floorDiv(timestamp, seconds);
+        current = window;
+        currentStart = window * seconds;
+        currentEnd = currentStart + seconds;
+      }
+      if (window < finished) {
+        late++;
+        return;
+      }
+      int slot;
+      if (id < lastWindow.length && lastWindow[id] == window) {
+        slot = lastSlot[id];
+      } else {
+        Preconditions.checkArgument(window >>> 32 == 0, "timestamp out of range: %s", timestamp);
+        final long key = window << 32 | id;
+        slot = slots.get(key);
+        if (slot < 0) {
+          slot = open(id, window);
+          slots.put(key, slot);
+        }
+        if (id >= lastWindow.length) {
+          final int n = lastWindow.length;
+          lastWindow = LongArrays.grow(lastWindow, id + 1);
+          Arrays.fill(lastWindow, n, lastWindow.length, Long.MIN_VALUE);
+          lastSlot = IntArrays.grow(lastSlot, id + 1);
+        }
+        lastWindow[id] = window;
+        lastSlot[id] = slot;
+      }
+
+      if (count[slot]++ == 0) {
+        integers[slot] = isInteger;
+        if (isInteger) {
+          longMin[slot] = longMax[slot] = longSum[slot] = longValue;
+        } else {
+          min[slot] = max[slot] = sum[slot] = doubleValue;
+        }
+        return;
+      }
+      if (isInteger && integers[slot]) {
+        longMin[slot] = Math.min(longMin[slot], longValue);
+        longMax[slot] = Math.max(longMax[slot], longValue);
+        longSum[slot] += longValue;
+        return;
+      }
+      if (integers[slot]) {
+        // a double in a window of integers, aggregated as doubles from now on
+        integers[slot] = false;
+        min[slot] = longMin[slot];
+        max[slot] = longMax[slot];
+        sum[slot] = longSum[slot];
+      }
+      final double value = isInteger ? longValue : doubleValue;
+      min[slot] = Math.min(min[slot], value);
+      max[slot] = Math.max(max[slot], value);
+      sum[slot] += value;
+    }
+
+    /**
+     * @return a free slot for the accumulator of a new window
+     */
+    private int open(final int id, final long window) {
+      final int slot;
+      if (!free.isEmpty()) {
+        slot = free.popInt();
+      } else {
+        slot = used++;
+        if (slot == count.length) {
+          seriesIds = IntArrays.grow(seriesIds, used);
+          count = LongArrays.grow(count, used);
+          integers = Arrays.copyOf(integers, count.length);
+          longMin = LongArrays.grow(longMin, used);
+          longMax = LongArrays.grow(longMax, used);
+          longSum = LongArrays.grow(longSum, used);
+          min = DoubleArrays.grow(min, used);
+          max = DoubleArrays.grow(max, used);
+          sum = DoubleArrays.grow(sum, used);
+        }
+      }
+      seriesIds[slot] = id;
+      count[slot] = 0;
+      IntArrayList windowSlots = open.get(window);
+      if (windowSlots == null) {
+        windowSlots = spareLists.isEmpty() ? new IntArrayList() : spareLists.pop();
+        open.put(window, windowSlots);
+      }
+      windowSlots.add(slot);
+      return slot;
+    }
+
+    /**
+     * Adds the rollups of the windows before the given one, and frees their
+     * accumulators.
+     */
+    void finish(final long before) throws IOException {
+      if (before <= finished) {
+        return;
+      }
+      finished = before;
+      nextFinish = before == Long.MAX_VALUE ? Long.MAX_VALUE : (before + 1) * seconds;
+      while (!open.isEmpty() && open.firstLongKey() < before) {
+        final long window = open.firstLongKey();
+        final IntArrayList windowSlots = open.remove(window);
+        final long timestamp = window * seconds;
+        for (int i = 0; i < windowSlots.size(); i++) {
+          final int slot = windowSlots.getInt(i);
+          final int id = seriesIds[slot];
+          final int length = startRollups(id, suffix);
+          if (integers[slot]) {
+            addRollup(length, AGGREGATES[0], timestamp, true, longMin[slot], 0);
+            addRollup(length, AGGREGATES[1], timestamp, true, longMax[slot], 0);
+            addRollup(length, AGGREGATES[2], timestamp, true, longSum[slot], 0);
+          } else {
+            addRollup(length, AGGREGATES[0], timestamp, false, 0, min[slot]);
+            addRollup(length, AGGREGATES[1], timestamp, false, 0, max[slot]);
+            addRollup(length, AGGREGATES[2], timestamp, false, 0, sum[slot]);
+          }
+          addRollup(length, AGGREGATES[3], timestamp, true, count[slot], 0);
+          windows++;
+
+          slots.remove(window << 32 | id);
+          free.add(slot);
+          if (lastWindow[id] == window) {
+            lastWindow[id] = Long.MIN_VALUE;
+          }
+        }
+        windowSlots.clear();
+        spareLists.add(windowSlots);
+      }
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package sinks;
+
+import it.unimi.dsi.fastutil.bytes.ByteArrays;
+import readers.PointBatch;
+import store.Series;
+import utils.ByteSlice;
+import utils.TagSet;
+
+/**
+ * Builds the key of the series of a point, see {@link Series}, in a reusable
+ * buffer: the metric followed by the tags, already sorted by key.
+ */
+final class SeriesKey {
+  private final ByteSlice key = new ByteSlice();
+  private final ByteSlice metricSlice = new ByteSlice();
+  private final ByteSlice tagKey = new ByteSlice();
+  private final ByteSlice tagValue = new ByteSlice();
+  private byte[] buffer = new byte[256];
+  private int length;
+
+  /**
+   * @return the key, valid until the next call
+   */
+  ByteSlice of(final ByteSlice metric, final TagSet tags) {
+    length = 0;
+    put(metric);
+    for (int i = 0; i < tags.size(); i++) {
+      putTag(tags.key(i, tagKey), tags.value(i, tagValue));
+    }
+    return key.set(buffer, 0, length);
+  }
+
+  /**
+   * @return the key of the p-th point of the batch, valid until the next call
+   */
+  ByteSlice of(final PointBatch batch, final int p) {
+    final int[] tagStart = batch.tagStart();
+    length = 0;
+    put(batch.metric(p, metricSlice));
+    for (int j = tagStart[p]; j < tagStart[p + 1]; j++) {
+      putTag(batch.tagKey(j, tagKey), batch.tagValue(j, tagValue));
+    }
+    return key.set(buffer, 0, length);
+  }
+
+  /**
+   * @return whether key is the key of the series of metric and tags, found
+   *         without copying them
+   */
+  boolean matches(final ByteSlice key, final ByteSlice metric, final TagSet tags) {
+    int position = matches(key, 0, metric);
+    for (int i = 0; i < tags.size() && position >= 0; i++) {
+      if (position == key.length() || key.byteAt(position) != Series.SEPARATOR) {
+        return false;
+      }
+      position = matches(key, position + 1, tags.key(i, tagKey));
+      if (position < 0 || position == key.length() || key.byteAt(position) != '=') {
+        return false;
+      }
+      position = matches(key, position + 1, tags.value(i, tagValue));
+    }
+    return position == key.length();
+  }
+
+  /**
+   * @return the position in key after part if key has part at position, -1 otherwise
+   */
+  private static int matches(final ByteSlice key, final int position, final ByteSlice part) {
+    return key.regionMatches(position, part) ? position + part.length() : -1;
+  }
+
+  private void putTag(final ByteSlice k, final ByteSlice v) {
+    buffer = ByteArrays.grow(buffer, length + k.length() + v.length() + 2);
+    buffer[length++] = Series.SEPARATOR;
+    put(k);
+    buffer[length++] = '=';
+    put(v);
+  }
+
+  private void put(final ByteSlice slice) {
+    buffer = ByteArrays.grow(buffer, length + slice.length());
+    slice.copyTo(0, buffer, length, slice.length());
+    length += slice.length();
+  }
+}
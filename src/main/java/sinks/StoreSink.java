@@ -0,0 +1,49 @@
+package sinks;
+
+import readers.PointBatch;
+import store.SeriesStore;
+import utils.ByteSlice;
+import utils.TagSet;
+
+/**
+ * Keeps the points in a {@link SeriesStore}, through an appender of its own.
+ * <p>
+ * The key of the series of each point is built in a reusable buffer, from
+ * the metric and the tags already sorted by key, so adding a point to a
+ * series the sink already saw doesn't allocate.
+ */
+public final class StoreSink implements PointSink {
+  private final SeriesStore.Appender appender;
+  private final SeriesKey key = new SeriesKey();
+
+  public StoreSink(final SeriesStore store) {
+    this.appender = store.appender();
+  }
+
+  @Override
+  public void add(final ByteSlice metric, final long timestamp, final boolean isInteger, final long longValue,
+                  final double doubleValue, final TagSet tags) {
+    appender.append(key.of(metric, tags), timestamp, isInteger, longValue, doubleValue);
+  }
+
+  @Override
+  public void add(final PointBatch batch) {
+    for (int p = 0; p < batch.size(); p++) {
+      appender.append(key.of(batch, p), batch.timestamps()[p], batch.integers()[p], batch.longValues()[p],
+        batch.doubleValues()[p]);
+    }
+  }
+
+  /**
+   * Publishes the blocks being filled to the store.
+   */
+  @Override
+  public void flush() {
+    appender.flush();
+  }
+
+  @Override
+  public void close() {
+    flush();
+  }
+}
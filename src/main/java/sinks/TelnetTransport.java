@@ -0,0 +1,57 @@
+package sinks;
+
+import com.google.common.base.Charsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Sends {@code put} lines over a single connection to the telnet interface of
+ * a TSDB.
+ * <p>
+ * The telnet interface doesn't acknowledge points: a send returns once the
+ * payload is written to the socket, and the errors the server writes back
+ * are logged by a background thread.
+ */
+public final class TelnetTransport implements Transport {
+  private static final Logger LOG = LoggerFactory.getLogger(TelnetTransport.class);
+
+  private final Socket socket;
+  private final OutputStream out;
+
+  public TelnetTransport(final String host, final int port) throws IOException {
+    socket = new Socket();
+    socket.connect(new InetSocketAddress(host, port));
+    out = socket.getOutputStream();
+    final Thread errors = new Thread(this::logErrors, "telnet-" + host + ":" + port);
+    errors.setDaemon(true);
+    errors.start();
+  }
+
+  private void logErrors() {
+    try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), Charsets.UTF_8))) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        LOG.warn("TSDB error: {}", line);
+      }
+    } catch (IOException e) {
+      // closed
+    }
+  }
+
+  @Override
+  public synchronized void send(final byte[] payload, final int length) throws IOException {
+    out.write(payload, 0, length);
+  }
+
+  @Override
+  public void close() throws IOException {
+    socket.close();
+  }
+}
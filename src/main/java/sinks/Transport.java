@@ -0,0 +1,17 @@
+package sinks;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Delivers the payloads built by a {@link BatchingSink}. Sends may be called
+ * by several threads at once.
+ */
+public interface Transport extends Closeable {
+
+  /**
+   * Sends a payload, returning once the server accepted it.
+   * @throws IOException if it couldn't be delivered
+   */
+  void send(byte[] payload, int length) throws IOException;
+}
@@ -0,0 +1,36 @@
+package store;
+
+/**
+ * Reads the bits written by a {@link BitOutput}.
+ */
+final class BitInput {
+  private final long[] words;
+  private int position;
+
+  BitInput(final long[] words) {
+    this.words = words;
+  }
+
+  boolean readBit() {
+    return read(1) != 0;
+  }
+
+  /**
+   * @return the next n bits, n in [1, 64]
+   */
+  long read(final int n) {
+    final int index = position >>> 6;
+    final int free = 64 - (position & 63);
+    long value;
+    if (n <= free) {
+      value = words[index] >>> (free - n);
+    } else {
+      value = (words[index] << (n - free)) | (words[index + 1] >>> (64 - (n - free)));
+    }
+    if (n < 64) {
+      value &= (1L << n) - 1;
+    }
+    position += n;
+    return value;
+  }
+}
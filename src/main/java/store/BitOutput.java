@@ -0,0 +1,61 @@
+package store;
+
+import it.unimi.dsi.fastutil.longs.LongArrays;
+
+import java.util.Arrays;
+
+/**
+ * Packs bits, most significant first, in an array of longs that grows as
+ * needed and is reused from one block to the next.
+ */
+final class BitOutput {
+  private long[] words;
+  private int bits;
+
+  BitOutput(final int initialWords) {
+    words = new long[Math.max(2, initialWords)];
+  }
+
+  /**
+   * @return number of bits written
+   */
+  int bits() {
+    return bits;
+  }
+
+  void clear() {
+    Arrays.fill(words, 0, (bits + 63) >>> 6, 0);
+    bits = 0;
+  }
+
+  void writeBit(final boolean bit) {
+    write(bit ? 1 : 0, 1);
+  }
+
+  /**
+   * Writes the n lowest bits of value, n in [1, 64].
+   */
+  void write(long value, final int n) {
+    final int index = bits >>> 6;
+    // one more word than needed, so both branches below can write
+    words = LongArrays.grow(words, index + 2);
+    if (n < 64) {
+      value &= (1L << n) - 1;
+    }
+    final int free = 64 - (bits & 63);
+    if (n <= free) {
+      words[index] |= value << (free - n);
+    } else {
+      words[index] |= value >>> (n - free);
+      words[index + 1] |= value << (64 - (n - free));
+    }
+    bits += n;
+  }
+
+  /**
+   * @return a copy of the words written so far
+   */
+  long[] toArray() {
+    return Arrays.copyOf(words, (bits + 63) >>> 6);
+  }
+}
@@ -0,0 +1,154 @@
+package store;
+
+/**
+ * An immutable run of consecutive points of a series, compressed as in
+ * Facebook's Gorilla.
+ * <p>
+ * The first point is written in full. Each following timestamp is encoded
+ * by the difference between its delta to the previous timestamp and the
+ * previous delta, which is 0, and takes a single bit, for points at a regular
+ * interval. Double values are XORed with the previous value, and only the
+ * bits that differ are written. The points of a block are either all
+ * integers or all doubles, integers being encoded by their delta to the
+ * previous value like timestamps.
+ * <p>
+ * Blocks are built by a {@link BlockEncoder} and published to their
+ * {@link Series} once full.
+ */
+public final class Block {
+  private final long[] bits;
+  private final int count;
+  private final boolean integers;
+  private final long minTimestamp;
+  private final long maxTimestamp;
+
+  Block(final long[] bits, final int count, final boolean integers, final long minTimestamp,
+        final long maxTimestamp) {
+    this.bits = bits;
+    this.count = count;
+    this.integers = integers;
+    this.minTimestamp = minTimestamp;
+    this.maxTimestamp = maxTimestamp;
+  }
+
+  /**
+   * @return number of points in the block
+   */
+  public int count() {
+    return count;
+  }
+
+  public boolean integers() {
+    return integers;
+  }
+
+  public long minTimestamp() {
+    return minTimestamp;
+  }
+
+  public long maxTimestamp() {
+    return maxTimestamp;
+  }
+
+  /**
+   * @return size in bytes of the encoded points
+   */
+  public int bytes() {
+    return bits.length * 8;
+  }
+
+  /**
+   * Decodes the points of the block, in the order they were added, and
+   * passes those whose timestamp is in [from, to] to the visitor.
+   * @return number of points visited
+   */
+  public int scan(final long from, final long to, final PointVisitor visitor) {
+    if (from > maxTimestamp || to < minTimestamp) {
+      return 0;
+    }
+    final BitInput in = new BitInput(bits);
+    int visited = 0;
+    long timestamp = 0;
+    long delta = 0;
+    long value = 0;
+    int leading = 0;
+    int trailing = 0;
+    for (int i = 0; i < count; i++) {
+      if (i == 0) {
+        timestamp = in.read(64);
+        value = in.read(64);
+      } else {
+        delta += unzigzag(readVar(in));
+        timestamp += delta;
+        if (integers) {
+          value += unzigzag(readVar(in));
+        } else if (in.readBit()) {
+          if (in.readBit()) {
+            leading = (int) in.read(5);
+            trailing = 64 - leading - ((int) in.read(6) + 1);
+          }
+          value ^= in.read(64 - leading - trailing) << trailing;
+        }
+      }
+      if (timestamp >= from && timestamp <= to) {
+        if (integers) {
+          visitor.point(timestamp, true, value, 0);
+        } else {
+          visitor.point(timestamp, false, 0, Double.longBitsToDouble(value));
+        }
+        visited++;
+      }
+    }
+    return visited;
+  }
+
+  static long zigzag(final long n) {
+    return (n << 1) ^ (n >> 63);
+  }
+
+  static long unzigzag(final long n) {
+    return (n >>> 1) ^ -(n & 1);
+  }
+
+  /**
+   * Writes an unsigned value with a prefix of 1 to 5 bits telling its width:
+   * 0 takes 1 bit, values below 2^7, 2^9, 2^12 and 2^32 take 9, 12, 16 and
+   * 37 bits, others 69.
+   */
+  static void writeVar(final BitOutput out, final long n) {
+    if (n == 0) {
+      out.write(0b0, 1);
+    } else if (n >>> 7 == 0) {
+      out.write(0b10, 2);
+      out.write(n, 7);
+    } else if (n >>> 9 == 0) {
+      out.write(0b110, 3);
+      out.write(n, 9);
+    } else if (n >>> 12 == 0) {
+      out.write(0b1110, 4);
+      out.write(n, 12);
+    } else if (n >>> 32 == 0) {
+      out.write(0b11110, 5);
+      out.write(n, 32);
+    } else {
+      out.write(0b11111, 5);
+      out.write(n, 64);
+    }
+  }
+
+  static long readVar(final BitInput in) {
+    if (!in.readBit()) {
+      return 0;
+    }
+    if (!in.readBit()) {
+      return in.read(7);
+    }
+    if (!in.readBit()) {
+      return in.read(9);
+    }
+    if (!in.readBit()) {
+      return in.read(12);
+    }
+    return in.read(in.readBit() ? 64 : 32);
+  }
+}
@@ -0,0 +1,98 @@
+package store;
+
+/**
+ * Encodes the points of the block being filled for a series, see
+ * {@link Block} for the format. An encoder only allocates to grow its buffer
+ * and, when sealing a block, the copy of its bits.
+ * <p>
+ * This class is not thread-safe, each thread appending to a series has its
+ * own encoder.
+ */
+final class BlockEncoder {
+  private final BitOutput out = new BitOutput(2);
+  private int count;
+  private boolean integers;
+  private long minTimestamp;
+  private long maxTimestamp;
+
+  private long timestamp;
+  private long delta;
+  private long value;
+  private int leading;
+  private int trailing;
+
+  /**
+   * @return number of points in the block
+   */
+  int count() {
+    return count;
+  }
+
+  /**
+   * @return whether a point of this type can be added to the block
+   */
+  boolean accepts(final boolean isInteger) {
+    return count == 0 || integers == isInteger;
+  }
+
+  void add(final long timestamp, final boolean isInteger, final long longValue, final double doubleValue) {
+    final long bits = isInteger ? longValue : Double.doubleToRawLongBits(doubleValue);
+    if (count == 0) {
+      integers = isInteger;
+      minTimestamp = timestamp;
+      maxTimestamp = timestamp;
+      out.write(timestamp, 64);
+      out.write(bits, 64);
+      delta = 0;
+      leading = -1;
+    } else {
+      final long newDelta = timestamp - this.timestamp;
+      Block.writeVar(out, Block.zigzag(newDelta - delta));
+      delta = newDelta;
+      if (isInteger) {
+        Block.writeVar(out, Block.zigzag(bits - value));
+      } else {
+        addXor(bits ^ value);
+      }
+      minTimestamp = Math.min(minTimestamp, timestamp);
+      maxTimestamp = Math.max(maxTimestamp, timestamp);
+    }
+    this.timestamp = timestamp;
+    value = bits;
+    count++;
+  }
+
+  /**
+   * Writes the bits that differ from the previous value, in the window of
+   * the previous value if they fit, or with a new window.
+   */
+  private void addXor(final long xor) {
+    if (xor == 0) {
+      out.writeBit(false);
+      return;
+    }
+    out.writeBit(true);
+    final int newLeading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+    final int newTrailing = Long.numberOfTrailingZeros(xor);
+    if (leading >= 0 && newLeading >= leading && newTrailing >= trailing) {
+      out.writeBit(false);
+    } else {
+      leading = newLeading;
+      trailing = newTrailing;
+      out.writeBit(true);
+      out.write(leading, 5);
+      out.write(64 - leading - trailing - 1, 6);
+    }
+    out.write(xor >>> trailing, 64 - leading - trailing);
+  }
+
+  /**
+   * @return a block of the points added since the last seal, and starts a new one
+   */
+  Block seal() {
+    final Block block = new Block(out.toArray(), count, integers, minTimestamp, maxTimestamp);
+    out.clear();
+    count = 0;
+    return block;
+  }
+}
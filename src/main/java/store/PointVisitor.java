@@ -0,0 +1,13 @@
+package store;
+
+/**
+ * Receives the points of a scan.
+ */
+public interface PointVisitor {
+
+  /**
+   * Visits a point. Its value is longValue if isInteger, doubleValue
+   * otherwise.
+   */
+  void point(long timestamp, boolean isInteger, long longValue, double doubleValue);
+}
@@ -0,0 +1,100 @@
+package store;
+
+import utils.ByteSlice;
+import utils.Tags;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The points of a metric with a given set of tags, held as a list of
+ * compressed {@link Block}s.
+ * <p>
+ * Series are identified by a key made of the metric followed by its tags,
+ * sorted by key, each preceded by {@link #SEPARATOR}, see
+ * {@link SeriesStore.Appender}. Blocks are appended without locking by the
+ * threads filling the series, and can be scanned while they do so. A scan
+ * only sees the blocks sealed so far, each thread's blocks in the order that
+ * thread added their points.
+ */
+public final class Series {
+  /** separates the metric and tags in the key of a series */
+  public static final byte SEPARATOR = 0;
+
+  private final int id;
+  private final ByteSlice key;
+  private final Queue<Block> blocks = new ConcurrentLinkedQueue<>();
+
+  Series(final int id, final ByteSlice key) {
+    this.id = id;
+    this.key = key;
+  }
+
+  /**
+   * @return the id of the series in its store, see {@link TagIndex}
+   */
+  public int id() {
+    return id;
+  }
+
+  public ByteSlice key() {
+    return key;
+  }
+
+  /**
+   * @return the metric of the series
+   */
+  public String metric() {
+    final int end = key.indexOf(SEPARATOR);
+    return (end < 0 ? key : key.subSequence(0, end)).toString();
+  }
+
+  /**
+   * @return the "key=value" tags of the series, sorted by key
+   */
+  public String[] tags() {
+    final String[] parts = Tags.splitString(key.toString(), (char) SEPARATOR);
+    return Arrays.copyOfRange(parts, 1, parts.length);
+  }
+
+  void add(final Block block) {
+    blocks.add(block);
+  }
+
+  /**
+   * @return the blocks sealed so far
+   */
+  public Iterable<Block> blocks() {
+    return blocks;
+  }
+
+  /**
+   * Passes all the points of the series to the visitor.
+   * @return number of points visited
+   */
+  public long scan(final PointVisitor visitor) {
+    return scan(Long.MIN_VALUE, Long.MAX_VALUE, visitor);
+  }
+
+  /**
+   * Passes the points of the series whose timestamp is in [from, to] to the
+   * visitor, skipping the blocks that have none.
+   * @return number of points visited
+   */
+  public long scan(final long from, final long to, final PointVisitor visitor) {
+    long visited = 0;
+    for (Block block : blocks) {
+      visited += block.scan(from, to, visitor);
+    }
+    return visited;
+  }
+
+  /**
+   * @return the metric and tags of the series, like a telnet put line
+   */
+  @Override
+  public String toString() {
+    return key.toString().replace((char) SEPARATOR, ' ');
+  }
+}
@@ -0,0 +1,299 @@
+package store;
+
+import com.google.common.base.Charsets;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import utils.ByteSlice;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An inverted index of the series of a {@link SeriesStore}, from each
+ * "key=value" tag and each metric to the ids of its series.
+ * <p>
+ * Series ids are dense and given in the order series are created, so the
+ * posting lists, appended to as series are added, stay sorted without ever
+ * being sorted. Queries combine them with {@link #and(int[], int[])} and
+ * {@link #or(int[], int[])}, which return sorted arrays too.
+ * <p>
+ * Most tags of high cardinality only have one series: their id is kept in
+ * the map of the tags instead of in a list of its own, and their key is a
+ * view of the key of the series.
+ * <p>
+ * The index is only updated when a series is created, never for points of
+ * existing series. Its methods are synchronized, so it can be queried while
+ * series are added.
+ */
+public final class TagIndex {
+  private static final int[] NONE = new int[0];
+  /** estimated size in bytes of an entry of the tags map, with its key */
+  private static final int TAG_OVERHEAD = 48;
+  /** estimated size in bytes of a posting list, without its ids */
+  private static final int LIST_OVERHEAD = 48;
+  /** estimated size in bytes of a metric and its entry, without its chars */
+  private static final int METRIC_OVERHEAD = 120;
+
+  private final ObjectArrayList<Series> series = new ObjectArrayList<>();
+  /** id of the only series of a tag, or -(index in lists + 1) if it has several */
+  private final Object2IntOpenHashMap<ByteSlice> tags = new Object2IntOpenHashMap<>();
+  private final ObjectArrayList<IntArrayList> lists = new ObjectArrayList<>();
+  private final TreeMap<String, IntArrayList> metrics = new TreeMap<>();
+
+  public TagIndex() {
+    tags.defaultReturnValue(Integer.MIN_VALUE);
+  }
+
+  /**
+   * Creates a series with the next id and indexes it.
+   */
+  synchronized Series add(final ByteSlice key) {
+    final int id = series.size();
+    final Series s = new Series(id, key);
+    series.add(s);
+
+    final String metric = s.metric();
+    IntArrayList ids = metrics.get(metric);
+    if (ids == null) {
+      ids = new IntArrayList(1);
+      metrics.put(metric, ids);
+    }
+    ids.add(id);
+
+    int start = key.indexOf(Series.SEPARATOR);
+    while (start >= 0) {
+      int end = start + 1;
+      while (end < key.length() && key.byteAt(end) != Series.SEPARATOR) {
+        end++;
+      }
+      addTag(key.slice(start + 1, end), id);
+      start = end < key.length() ? end : -1;
+    }
+    return s;
+  }
+
+  private void addTag(final ByteSlice tag, final int id) {
+    final int value = tags.getInt(tag);
+    if (value == tags.defaultReturnValue()) {
+      tags.put(tag, id);
+    } else if (value >= 0) {
+      final IntArrayList ids = new IntArrayList(2);
+      ids.add(value);
+      ids.add(id);
+      lists.add(ids);
+      tags.put(tag, -lists.size());
+    } else {
+      lists.get(-value - 1).add(id);
+    }
+  }
+
+  /**
+   * @return number of series
+   */
+  public synchronized int size() {
+    return series.size();
+  }
+
+  /**
+   * @return the series with the given id
+   */
+  public synchronized Series series(final int id) {
+    return series.get(id);
+  }
+
+  /**
+   * @return number of distinct "key=value" tags
+   */
+  public synchronized int tags() {
+    return tags.size();
+  }
+
+  /**
+   * @return number of tags with more than one series
+   */
+  public synchronized int lists() {
+    return lists.size();
+  }
+
+  /**
+   * @return number of distinct metrics
+   */
+  public synchronized int metrics() {
+    return metrics.size();
+  }
+
+  /**
+   * @return sorted ids of the series with the given tag
+   */
+  public synchronized int[] get(final String key, final String value) {
+    final IntArrayList ids = postings(key + '=' + value);
+    return ids == null ? NONE : ids.toIntArray();
+  }
+
+  /**
+   * @return the series of the "key=value" tag, or null if there are none
+   */
+  private IntArrayList postings(final String keyValue) {
+    final byte[] tag = keyValue.getBytes(Charsets.UTF_8);
+    final int value = tags.getInt(new ByteSlice(tag, 0, tag.length));
+    if (value == tags.defaultReturnValue()) {
+      return null;
+    }
+    return value >= 0 ? IntArrayList.wrap(new int[] { value }) : lists.get(-value - 1);
+  }
+
+  /**
+   * @return sorted ids of the series with all the given "key=value" tags
+   */
+  public synchronized int[] find(final String... keyValues) {
+    if (keyValues.length == 0) {
+      return NONE;
+    }
+    final IntArrayList[] postings = new IntArrayList[keyValues.length];
+    for (int i = 0; i < keyValues.length; i++) {
+      postings[i] = postings(keyValues[i]);
+      if (postings[i] == null) {
+        return NONE;
+      }
+    }
+    // smallest first, the intersection only gets smaller
+    Arrays.sort(postings, (a, b) -> Integer.compare(a.size(), b.size()));
+    int[] ids = postings[0].toIntArray();
+    for (int i = 1; i < postings.length && ids.length > 0; i++) {
+      ids = and(ids, postings[i].elements(), postings[i].size());
+    }
+    return ids;
+  }
+
+  /**
+   * @return sorted ids of the series of the given metric
+   */
+  public synchronized int[] metric(final String metric) {
+    final IntArrayList ids = metrics.get(metric);
+    return ids == null ? NONE : ids.toIntArray();
+  }
+
+  /**
+   * @return sorted ids of the series of all the metrics starting with prefix
+   */
+  public synchronized int[] metricPrefix(final String prefix) {
+    // the lists are disjoint, a series has a single metric: they are merged
+    // in a bitmap of all the ids, read back in order
+    final long[] bitmap = new long[(series.size() + 63) >>> 6];
+    int n = 0;
+    for (Map.Entry<String, IntArrayList> e : metrics.tailMap(prefix).entrySet()) {
+      if (!e.getKey().startsWith(prefix)) {
+        break;
+      }
+      final IntArrayList ids = e.getValue();
+      for (int i = 0; i < ids.size(); i++) {
+        final int id = ids.getInt(i);
+        bitmap[id >>> 6] |= 1L << id;
+      }
+      n += ids.size();
+    }
+    final int[] result = new int[n];
+    int r = 0;
+    for (int w = 0; w < bitmap.length && r < n; w++) {
+      long word = bitmap[w];
+      while (word != 0) {
+        result[r++] = (w << 6) + Long.numberOfTrailingZeros(word);
+        word &= word - 1;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Trims the posting lists to their size, once the series are added.
+   */
+  public synchronized void trim() {
+    series.trim();
+    lists.trim();
+    for (IntArrayList ids : lists) {
+      ids.trim();
+    }
+    for (IntArrayList ids : metrics.values()) {
+      ids.trim();
+    }
+  }
+
+  /**
+   * @return estimated size in bytes of the index, without the series
+   */
+  public synchronized long bytes() {
+    // the hash map has between 2 and 4 slots of a pointer and an int per tag
+    long bytes = series.size() * 8L + tags.size() * (TAG_OVERHEAD + 2 * 12L) + lists.size() * 8L;
+    for (IntArrayList ids : lists) {
+      bytes += LIST_OVERHEAD + ids.elements().length * 4L;
+    }
+    for (Map.Entry<String, IntArrayList> e : metrics.entrySet()) {
+      bytes += METRIC_OVERHEAD + e.getKey().length() * 2L + e.getValue().elements().length * 4L;
+    }
+    return bytes;
+  }
+
+  /**
+   * @return the ids in both sorted arrays
+   */
+  public static int[] and(final int[] a, final int[] b) {
+    return a.length <= b.length ? and(a, b, b.length) : and(b, a, a.length);
+  }
+
+  /**
+   * Intersects a with the first bLength ids of b, galloping through b to the
+   * next id of a, which skips most of b when a is much smaller.
+   */
+  private static int[] and(final int[] a, final int[] b, final int bLength) {
+    final int[] result = new int[Math.min(a.length, bLength)];
+    int n = 0;
+    int j = 0;
+    for (int i = 0; i < a.length && j < bLength; i++) {
+      final int id = a[i];
+      int step = 1;
+      int high = j;
+      while (high < bLength && b[high] < id) {
+        j = high + 1;
+        high += step;
+        step <<= 1;
+      }
+      j = Arrays.binarySearch(b, j, Math.min(high + 1, bLength), id);
+      if (j >= 0) {
+        result[n++] = id;
+        j++;
+      } else {
+        j = -j - 1;
+      }
+    }
+    return n == result.length ? result : Arrays.copyOf(result, n);
+  }
+
+  /**
+   * @return the ids in either sorted array
+   */
+  public static int[] or(final int[] a, final int[] b) {
+    final int[] result = new int[a.length + b.length];
+    int n = 0;
+    int i = 0;
+    int j = 0;
+    while (i < a.length && j < b.length) {
+      if (a[i] < b[j]) {
+        result[n++] = a[i++];
+      } else if (a[i] > b[j]) {
+        result[n++] = b[j++];
+      } else {
+        result[n++] = a[i++];
+        j++;
+      }
+    }
+    while (i < a.length) {
+      result[n++] = a[i++];
+    }
+    while (j < b.length) {
+      result[n++] = b[j++];
+    }
+    return n == result.length ? result : Arrays.copyOf(result, n);
+  }
+}
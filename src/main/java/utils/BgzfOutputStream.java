@@ -0,0 +1,137 @@
+package utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a stream in the BGZF format of bgzip: a series of gzip members
+ * of at most 64 KB, each recording its compressed size in a "BC" extra
+ * field, followed by an empty member marking the end of the file.
+ * <p>
+ * Any gzip reader can read the result, and {@link ParallelGzipInputStream}
+ * inflates its members in parallel.
+ */
+public final class BgzfOutputStream extends FilterOutputStream {
+  /** uncompressed bytes per member, so that even incompressible data fits in 64 KB */
+  private static final int BLOCK_SIZE = 0xff00;
+  private static final int MAX_MEMBER = 1 << 16;
+  private static final int HEADER = 18;
+  private static final int TRAILER = 8;
+
+  private final byte[] block = new byte[BLOCK_SIZE];
+  private final byte[] member = new byte[MAX_MEMBER];
+  private final Deflater deflater;
+  private final CRC32 crc = new CRC32();
+  private int size;
+  private boolean closed;
+
+  public BgzfOutputStream(final OutputStream out) {
+    this(out, Deflater.DEFAULT_COMPRESSION);
+  }
+
+  public BgzfOutputStream(final OutputStream out, final int level) {
+    super(out);
+    deflater = new Deflater(level, true);
+  }
+
+  @Override
+  public void write(final int b) throws IOException {
+    if (size == BLOCK_SIZE) {
+      writeMember();
+    }
+    block[size++] = (byte) b;
+  }
+
+  @Override
+  public void write(final byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (size == BLOCK_SIZE) {
+        writeMember();
+      }
+      final int n = Math.min(len, BLOCK_SIZE - size);
+      System.arraycopy(b, off, block, size, n);
+      size += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Compresses the buffered bytes to a member, even if there are none.
+   */
+  private void writeMember() throws IOException {
+    deflater.reset();
+    deflater.setInput(block, 0, size);
+    deflater.finish();
+    int length = HEADER;
+    while (!deflater.finished()) {
+      length += deflater.deflate(member, length, MAX_MEMBER - TRAILER - length);
+    }
+    crc.reset();
+    crc.update(block, 0, size);
+
+    member[0] = 31;
+    member[1] = (byte) 139;
+    member[2] = 8;          // deflate
+    member[3] = 4;          // FEXTRA
+    member[4] = member[5] = member[6] = member[7] = 0;  // no modification time
+    member[8] = 0;
+    member[9] = (byte) 255; // unknown OS
+    writeShort(10, 6);      // length of the extra field
+    member[12] = 'B';
+    member[13] = 'C';
+    writeShort(14, 2);
+    writeShort(16, length + TRAILER - 1);
+    writeInt(length, (int) crc.getValue());
+    writeInt(length + 4, size);
+    out.write(member, 0, length + TRAILER);
+    size = 0;
+  }
+
+  private void writeShort(final int offset, final int v) {
+    member[offset] = (byte) v;
+    member[offset + 1] = (byte) (v >>> 8);
+  }
+
+  private void writeInt(final int offset, final int v) {
+    writeShort(offset, v);
+    writeShort(offset + 2, v >>> 16);
+  }
+
+  /**
+   * Writes the buffered bytes as a member. Flushing often makes members
+   * small and compresses badly.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (size > 0) {
+      writeMember();
+    }
+    out.flush();
+  }
+
+  /**
+   * Writes the last member and the end of file marker, and closes the
+   * underlying stream.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      if (size > 0) {
+        writeMember();
+      }
+      writeMember();
+      out.flush();
+    } finally {
+      deflater.end();
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,257 @@
+package utils;
+
+import com.google.common.base.Charsets;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable view over a range of bytes, usually a field of a line still
+ * sitting in a reader's buffer.
+ * <p>
+ * As a {@link CharSequence} each byte is seen as one char, which is exact for
+ * ASCII content. {@link #toString()} decodes the bytes as UTF-8 and is the
+ * only method that allocates. {@link #hashCode()} and {@link #equals(Object)}
+ * depend on the content of the slice, so a slice can be used to look up keys
+ * in hash maps as long as it isn't modified while stored in one: use
+ * {@link #copy()} to get an instance that owns its bytes.
+ */
+public final class ByteSlice implements CharSequence, Comparable<ByteSlice> {
+  private byte[] array;
+  private ByteBuffer buffer;
+  private int offset;
+  private int length;
+
+  public ByteSlice() {
+  }
+
+  public ByteSlice(final byte[] array, final int offset, final int length) {
+    set(array, offset, length);
+  }
+
+  /**
+   * Points this slice to [offset, offset + length) of the given array.
+   * @return this slice
+   */
+  public ByteSlice set(final byte[] array, final int offset, final int length) {
+    this.array = array;
+    this.buffer = null;
+    this.offset = offset;
+    this.length = length;
+    return this;
+  }
+
+  /**
+   * Points this slice to [offset, offset + length) of the given buffer,
+   * offsets being absolute positions in the buffer.
+   * @return this slice
+   */
+  public ByteSlice set(final ByteBuffer buffer, final int offset, final int length) {
+    if (buffer.hasArray()) {
+      return set(buffer.array(), buffer.arrayOffset() + offset, length);
+    }
+    this.array = null;
+    this.buffer = buffer;
+    this.offset = offset;
+    this.length = length;
+    return this;
+  }
+
+  public byte byteAt(final int index) {
+    return array != null ? array[offset + index] : buffer.get(offset + index);
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(final int index) {
+    return (char) (byteAt(index) & 0xFF);
+  }
+
+  /**
+   * Allocates a new slice that owns a copy of the given range.
+   */
+  @Override
+  public ByteSlice subSequence(final int start, final int end) {
+    if (start < 0 || end > length || start > end) {
+      throw new IndexOutOfBoundsException("[" + start + ", " + end + ") out of [0, " + length + ")");
+    }
+    final byte[] bytes = new byte[end - start];
+    copyTo(start, bytes, 0, bytes.length);
+    return new ByteSlice(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Allocates a new slice over [start, end) of this slice, that shares its
+   * bytes.
+   */
+  public ByteSlice slice(final int start, final int end) {
+    if (start < 0 || end > length || start > end) {
+      throw new IndexOutOfBoundsException("[" + start + ", " + end + ") out of [0, " + length + ")");
+    }
+    final ByteSlice slice = new ByteSlice();
+    slice.array = array;
+    slice.buffer = buffer;
+    slice.offset = offset + start;
+    slice.length = end - start;
+    return slice;
+  }
+
+  /**
+   * Points the given slice to [start, end) of this slice, without allocating.
+   * @return into
+   */
+  public ByteSlice slice(final int start, final int end, final ByteSlice into) {
+    if (start < 0 || end > length || start > end) {
+      throw new IndexOutOfBoundsException("[" + start + ", " + end + ") out of [0, " + length + ")");
+    }
+    into.array = array;
+    into.buffer = buffer;
+    into.offset = offset + start;
+    into.length = end - start;
+    return into;
+  }
+
+  /**
+   * @return whether this slice holds the bytes of other at index
+   */
+  public boolean regionMatches(final int index, final ByteSlice other) {
+    final int n = other.length;
+    if (index < 0 || index + n > length) {
+      return false;
+    }
+    if (array != null && other.array != null) {
+      final byte[] a = array;
+      final byte[] b = other.array;
+      for (int i = offset + index, j = other.offset, end = other.offset + n; j < end; i++, j++) {
+        if (a[i] != b[j]) {
+          return false;
+        }
+      }
+      return true;
+    }
+    for (int i = 0; i < n; i++) {
+      if (byteAt(index + i) != other.byteAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return index of the first occurrence of b in this slice, or -1
+   */
+  public int indexOf(final byte b) {
+    for (int i = 0; i < length; i++) {
+      if (byteAt(i) == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Copies length bytes of this slice starting at index into dst.
+   */
+  public void copyTo(final int index, final byte[] dst, final int dstOffset, final int length) {
+    if (array != null) {
+      System.arraycopy(array, offset + index, dst, dstOffset, length);
+    } else {
+      for (int i = 0; i < length; i++) {
+        dst[dstOffset + i] = buffer.get(offset + index + i);
+      }
+    }
+  }
+
+  /**
+   * Allocates a new slice that owns a copy of this slice's bytes.
+   */
+  public ByteSlice copy() {
+    return subSequence(0, length);
+  }
+
+  /**
+   * Compares the content of this slice with any char sequence, char by char.
+   */
+  public boolean contentEquals(final CharSequence cs) {
+    if (cs.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (charAt(i) != cs.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    int h = 0;
+    if (array != null) {
+      final byte[] a = array;
+      for (int i = offset, end = offset + length; i < end; i++) {
+        h = 31 * h + a[i];
+      }
+      return h;
+    }
+    for (int i = 0; i < length; i++) {
+      h = 31 * h + byteAt(i);
+    }
+    return h;
+  }
+
+  @Override
+  public boolean equals(final Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof ByteSlice)) {
+      return false;
+    }
+    final ByteSlice other = (ByteSlice) obj;
+    if (other.length != length) {
+      return false;
+    }
+    if (array != null && other.array != null) {
+      final byte[] a = array;
+      final byte[] b = other.array;
+      for (int i = offset, j = other.offset, end = offset + length; i < end; i++, j++) {
+        if (a[i] != b[j]) {
+          return false;
+        }
+      }
+      return true;
+    }
+    for (int i = 0; i < length; i++) {
+      if (byteAt(i) != other.byteAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int compareTo(final ByteSlice other) {
+    final int n = Math.min(length, other.length);
+    for (int i = 0; i < n; i++) {
+      final int c = (byteAt(i) & 0xFF) - (other.byteAt(i) & 0xFF);
+      if (c != 0) {
+        return c;
+      }
+    }
+    return length - other.length;
+  }
+
+  @Override
+  public String toString() {
+    if (array != null) {
+      return new String(array, offset, length, Charsets.UTF_8);
+    }
+    final byte[] bytes = new byte[length];
+    copyTo(0, bytes, 0, length);
+    return new String(bytes, Charsets.UTF_8);
+  }
+}
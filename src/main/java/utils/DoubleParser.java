@@ -0,0 +1,387 @@
+package utils;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * Parses decimal floating point values without allocating.
+ * <p>
+ * Accepts an optional sign, digits with an optional decimal point and an
+ * optional exponent, e.g. "-3", "1.5", ".5", "2e10" or "6.02E+23", as well as
+ * "NaN" and "Infinity". Results are correctly rounded, like
+ * {@link Double#parseDouble(String)}:
+ * <ul>
+ * <li>values whose significand fits in 53 bits and whose power of ten is
+ * within [-22, 22] are computed exactly with a single multiplication or
+ * division (Clinger's fast path),
+ * <li>other values use the Eisel-Lemire algorithm, which multiplies the
+ * significand by a 128-bit approximation of the power of ten,
+ * <li>the rare inputs where that approximation is too close to call, where
+ * more than 19 significant digits are given, or where the result is
+ * subnormal, fall back to {@link Double#parseDouble(String)}.
+ * </ul>
+ */
+public final class DoubleParser {
+  static final int SMALLEST_POWER = -342;
+  private static final int LARGEST_POWER = 308;
+  private static final int MAX_DIGITS = 19;
+
+  /** high and low 64 bits of 10^q, normalized to [2^127, 2^128), also used by {@link DoubleWriter} */
+  static final long[] MANTISSA_HIGH = new long[LARGEST_POWER - SMALLEST_POWER + 1];
+  static final long[] MANTISSA_LOW = new long[LARGEST_POWER - SMALLEST_POWER + 1];
+
+  private static final double[] POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+
+  static {
+    final BigInteger five = BigInteger.valueOf(5);
+    for (int q = SMALLEST_POWER; q <= LARGEST_POWER; q++) {
+      final BigInteger c;
+      if (q >= 0) {
+        // 10^q and 5^q only differ by a power of two: truncate 5^q to 128 bits
+        final BigInteger power = five.pow(q);
+        final int bits = power.bitLength();
+        c = bits > 128 ? power.shiftRight(bits - 128) : power.shiftLeft(128 - bits);
+      } else {
+        // 2^b / 5^-q rounded up, with b such that it has 128 bits
+        final BigInteger power = five.pow(-q);
+        c = BigInteger.ONE.shiftLeft(power.bitLength() + 127).divide(power).add(BigInteger.ONE);
+      }
+      MANTISSA_HIGH[q - SMALLEST_POWER] = c.shiftRight(64).longValue();
+      MANTISSA_LOW[q - SMALLEST_POWER] = c.longValue();
+    }
+  }
+
+  private DoubleParser() {
+  }
+
+  /**
+   * Parses a double from the given character sequence.
+   * @throws NumberFormatException if the value is malformed.
+   */
+  public static double parseDouble(final CharSequence s) {
+    final double d = tryParseDouble(s);
+    if (Double.isNaN(d) && !isNaN(s)) {
+      throw new NumberFormatException("Not a number: " + s);
+    }
+    return d;
+  }
+
+  /**
+   * Parses a double from the given character sequence, without throwing an
+   * exception if it's malformed.
+   * @return the value, or NaN if it's malformed, which callers accepting
+   * "NaN" tell apart with {@link #isNaN(CharSequence)}
+   */
+  public static double tryParseDouble(final CharSequence s) {
+    final int n = s.length();  // Will NPE if necessary.
+    if (n == 0) {
+      return Double.NaN;
+    }
+    int i = 0;
+    char c = s.charAt(0);
+    final boolean negative = c == '-';
+    if (negative || c == '+') {
+      if (n == 1) {
+        return Double.NaN;
+      }
+      i = 1;
+    }
+
+    long significand = 0;  // unsigned, up to MAX_DIGITS digits
+    int digits = 0;        // significant digits in significand
+    int power = 0;
+    boolean sawDigit = false;
+    boolean truncated = false;
+    for (; i < n && (c = s.charAt(i)) >= '0' && c <= '9'; i++) {
+      sawDigit = true;
+      if (digits < MAX_DIGITS) {
+        significand = 10 * significand + (c - '0');
+        if (significand != 0) {
+          digits++;
+        }
+      } else {
+        power++;
+        truncated |= c != '0';
+      }
+    }
+    if (i < n && s.charAt(i) == '.') {
+      for (i++; i < n && (c = s.charAt(i)) >= '0' && c <= '9'; i++) {
+        sawDigit = true;
+        if (digits < MAX_DIGITS) {
+          significand = 10 * significand + (c - '0');
+          if (significand != 0) {
+            digits++;
+          }
+          power--;
+        } else {
+          truncated |= c != '0';
+        }
+      }
+    }
+    if (!sawDigit) {
+      return parseSpecial(s, negative, i);
+    }
+    if (i < n && ((c = s.charAt(i)) == 'e' || c == 'E')) {
+      i++;
+      boolean negativeExponent = false;
+      if (i < n && ((c = s.charAt(i)) == '-' || c == '+')) {
+        negativeExponent = c == '-';
+        i++;
+      }
+      if (i == n) {
+        return Double.NaN;
+      }
+      int exponent = 0;
+      for (; i < n && (c = s.charAt(i)) >= '0' && c <= '9'; i++) {
+        if (exponent < 100_000) {  // anything larger underflows or overflows
+          exponent = 10 * exponent + (c - '0');
+        }
+      }
+      power += negativeExponent ? -exponent : exponent;
+    }
+    if (i != n) {
+      return Double.NaN;
+    }
+
+    if (!truncated) {
+      final double d = toDouble(negative, significand, power);
+      if (!Double.isNaN(d)) {
+        return d;
+      }
+    }
+    return Double.parseDouble(s.toString());
+  }
+
+  /**
+   * Parses a double from length bytes of the buffer starting at the absolute
+   * offset.
+   * @throws NumberFormatException if the value is malformed.
+   */
+  public static double parseDouble(final ByteBuffer buf, final int offset, final int length) {
+    if (buf.hasArray()) {
+      return parseDouble(buf.array(), buf.arrayOffset() + offset, length);
+    }
+    return parseDouble(new ByteSlice().set(buf, offset, length));
+  }
+
+  /**
+   * Parses a double from length bytes of the array starting at offset.
+   * @throws NumberFormatException if the value is malformed.
+   */
+  public static double parseDouble(final byte[] bytes, final int offset, final int length) {
+    final double d = tryParseDouble(bytes, offset, length);
+    if (Double.isNaN(d) && !isNaN(new ByteSlice(bytes, offset, length))) {
+      throw new NumberFormatException("Not a number: " + new ByteSlice(bytes, offset, length));
+    }
+    return d;
+  }
+
+  /**
+   * Parses a double from length bytes of the array starting at offset,
+   * without throwing an exception if it's malformed.
+   * @return the value, or NaN if it's malformed
+   */
+  public static double tryParseDouble(final byte[] bytes, final int offset, final int length) {
+    final int n = offset + length;
+    if (length == 0) {
+      return Double.NaN;
+    }
+    int i = offset;
+    byte c = bytes[i];
+    final boolean negative = c == '-';
+    if (negative || c == '+') {
+      if (length == 1) {
+        return Double.NaN;
+      }
+      i++;
+    }
+
+    long significand = 0;  // unsigned, up to MAX_DIGITS digits
+    int digits = 0;        // significant digits in significand
+    int power = 0;
+    boolean sawDigit = false;
+    boolean truncated = false;
+    for (; i < n && (c = bytes[i]) >= '0' && c <= '9'; i++) {
+      sawDigit = true;
+      if (digits < MAX_DIGITS) {
+        significand = 10 * significand + (c - '0');
+        if (significand != 0) {
+          digits++;
+        }
+      } else {
+        power++;
+        truncated |= c != '0';
+      }
+    }
+    if (i < n && bytes[i] == '.') {
+      for (i++; i < n && (c = bytes[i]) >= '0' && c <= '9'; i++) {
+        sawDigit = true;
+        if (digits < MAX_DIGITS) {
+          significand = 10 * significand + (c - '0');
+          if (significand != 0) {
+            digits++;
+          }
+          power--;
+        } else {
+          truncated |= c != '0';
+        }
+      }
+    }
+    if (!sawDigit) {
+      return parseSpecial(new ByteSlice(bytes, offset, length), negative, i - offset);
+    }
+    if (i < n && ((c = bytes[i]) == 'e' || c == 'E')) {
+      i++;
+      boolean negativeExponent = false;
+      if (i < n && ((c = bytes[i]) == '-' || c == '+')) {
+        negativeExponent = c == '-';
+        i++;
+      }
+      if (i == n) {
+        return Double.NaN;
+      }
+      int exponent = 0;
+      for (; i < n && (c = bytes[i]) >= '0' && c <= '9'; i++) {
+        if (exponent < 100_000) {  // anything larger underflows or overflows
+          exponent = 10 * exponent + (c - '0');
+        }
+      }
+      power += negativeExponent ? -exponent : exponent;
+    }
+    if (i != n) {
+      return Double.NaN;
+    }
+
+    if (!truncated) {
+      final double d = toDouble(negative, significand, power);
+      if (!Double.isNaN(d)) {
+        return d;
+      }
+    }
+    return Double.parseDouble(new ByteSlice(bytes, offset, length).toString());
+  }
+
+  /**
+   * Parses "NaN" and "Infinity", the only accepted values without digits.
+   * @param i index of the first char after the sign
+   * @return the value, or NaN if it's neither
+   */
+  private static double parseSpecial(final CharSequence s, final boolean negative, final int i) {
+    if (matches(s, i, "Infinity")) {
+      return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+    }
+    return Double.NaN;
+  }
+
+  /**
+   * Tells a parsed "NaN" from a malformed value, for the callers of the try
+   * methods.
+   * @return true if s is "NaN", with an optional sign
+   */
+  public static boolean isNaN(final CharSequence s) {
+    final int i = s.length() > 0 && (s.charAt(0) == '-' || s.charAt(0) == '+') ? 1 : 0;
+    return matches(s, i, "NaN");
+  }
+
+  private static boolean matches(final CharSequence s, final int offset, final String expected) {
+    if (s.length() - offset != expected.length()) {
+      return false;
+    }
+    for (int i = 0; i < expected.length(); i++) {
+      if (s.charAt(offset + i) != expected.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param significand unsigned significand
+   * @return significand * 10^power correctly rounded, or NaN if it can't be
+   * decided here, see {@link DoubleWriter}
+   */
+  static double toDouble(final boolean negative, final long significand, final int power) {
+    if (significand == 0 || power < SMALLEST_POWER) {
+      return negative ? -0.0 : 0.0;
+    }
+    if (power > LARGEST_POWER) {
+      return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+    }
+    if (-22 <= power && power <= 22 && Long.compareUnsigned(significand, 1L << 53) <= 0) {
+      // both the significand and the power of ten are exact doubles
+      double d = significand;
+      d = power < 0 ? d / POWERS_OF_TEN[-power] : d * POWERS_OF_TEN[power];
+      return negative ? -d : d;
+    }
+    return eiselLemire(negative, significand, power);
+  }
+
+  /**
+   * The Eisel-Lemire algorithm, as described in "Number Parsing at a
+   * Gigabyte per Second" by Daniel Lemire.
+   * @return the double, or NaN when the result can't be decided from the
+   * 128-bit approximation of 10^power or is subnormal
+   */
+  private static double eiselLemire(final boolean negative, final long significand, final int power) {
+    final int index = power - SMALLEST_POWER;
+    // floor(log2(10) * power) + bias + 63
+    final long exponent = (((152170L + 65536L) * power) >> 16) + 1024 + 63;
+    int lz = Long.numberOfLeadingZeros(significand);
+    final long w = significand << lz;
+
+    long upper = unsignedMultiplyHigh(w, MANTISSA_HIGH[index]);
+    long lower = w * MANTISSA_HIGH[index];
+    if ((upper & 0x1FF) == 0x1FF && Long.compareUnsigned(lower + w, lower) < 0) {
+      // the first 64 bits of the approximation might not be precise enough
+      final long productLow = w * MANTISSA_LOW[index];
+      final long productMiddle = lower + unsignedMultiplyHigh(w, MANTISSA_LOW[index]);
+      long productHigh = upper;
+      if (Long.compareUnsigned(productMiddle, lower) < 0) {
+        productHigh++;
+      }
+      if (productMiddle + 1 == 0 && (productHigh & 0x1FF) == 0x1FF
+        && Long.compareUnsigned(productLow + w, productLow) < 0) {
+        return Double.NaN;
+      }
+      upper = productHigh;
+      lower = productMiddle;
+    }
+
+    final long upperBit = upper >>> 63;
+    long mantissa = upper >>> (upperBit + 9);
+    lz += (int) (1 ^ upperBit);
+    if (lower == 0 && (upper & 0x1FF) == 0 && (mantissa & 3) == 1) {
+      // exactly halfway between two doubles
+      return Double.NaN;
+    }
+    mantissa += mantissa & 1;
+    mantissa >>>= 1;
+    if (mantissa >= (1L << 53)) {
+      // rounding overflowed into the next power of two
+      mantissa = 1L << 52;
+      lz--;
+    }
+    mantissa &= ~(1L << 52);
+    final long realExponent = exponent - lz;
+    if (realExponent < 1 || realExponent > 2046) {
+      return Double.NaN;
+    }
+    return Double.longBitsToDouble(mantissa | realExponent << 52 | (negative ? 1L << 63 : 0L));
+  }
+
+  /**
+   * @return the high 64 bits of the unsigned 128-bit product of x and y
+   */
+  static long unsignedMultiplyHigh(final long x, final long y) {
+    final long x0 = x & 0xFFFFFFFFL;
+    final long x1 = x >>> 32;
+    final long y0 = y & 0xFFFFFFFFL;
+    final long y1 = y >>> 32;
+    final long p01 = x0 * y1;
+    final long middle = x1 * y0 + ((x0 * y0) >>> 32) + (p01 & 0xFFFFFFFFL);
+    return x1 * y1 + (middle >>> 32) + (p01 >>> 32);
+  }
+}
@@ -0,0 +1,208 @@
+package utils;
+
+/**
+ * Writes doubles as ASCII decimals without allocating, in the format of
+ * {@link Double#toString(double)}: plain for magnitudes in [1e-3, 1e7),
+ * like "12.5" or "0.001", and in scientific notation otherwise, like
+ * "1.0E10".
+ * <p>
+ * The digits are the fewest that parse back to the same double. The value
+ * is rounded to a number of significant digits found by a binary search
+ * between 1 and 17, and each candidate is checked with the correctly
+ * rounded conversion of {@link DoubleParser}. Subnormal values, which that
+ * conversion doesn't decide, and values for which no candidate could be
+ * checked, are written by {@link Double#toString(double)}, which allocates.
+ */
+public final class DoubleWriter {
+  /** number of characters of the longest double, like "-2.2250738585072014E-308" */
+  public static final int MAX_LENGTH = 24;
+
+  /** number of significant digits that always identify a double */
+  private static final int MAX_DIGITS = 17;
+
+  private DoubleWriter() {
+  }
+
+  /**
+   * Writes a finite double, in at most {@link #MAX_LENGTH} bytes.
+   * @return offset of the byte after the last one written
+   * @throws IllegalArgumentException if d is NaN or infinite
+   */
+  public static int write(final double d, final byte[] bytes, int offset) {
+    if (Double.isNaN(d) || Double.isInfinite(d)) {
+      throw new IllegalArgumentException("can't write " + d);
+    }
+    if (Double.doubleToRawLongBits(d) < 0) {
+      bytes[offset++] = '-';
+    }
+    final double v = Math.abs(d);
+    if (v == 0) {
+      bytes[offset++] = '0';
+      bytes[offset++] = '.';
+      bytes[offset++] = '0';
+      return offset;
+    }
+    if (v < Double.MIN_NORMAL) {
+      return putString(v, bytes, offset);
+    }
+
+    // power of ten of the first digit, maybe off by one, which only costs a
+    // digit to the first candidates
+    final int first = (int) Math.floor(Math.log10(v));
+    long significand = 0;
+    int power = 0;
+    int low = 1;
+    int high = MAX_DIGITS + 1;
+    while (low < high) {
+      final int digits = (low + high) >>> 1;
+      final long m = round(v, first - digits + 1);
+      if (m > 0) {
+        significand = m;
+        power = first - digits + 1;
+        high = digits;
+      } else {
+        low = digits + 1;
+      }
+    }
+    if (significand == 0) {
+      // no candidate could be checked, which the tests never saw happen
+      return putString(v, bytes, offset);
+    }
+    while (significand % 10 == 0) {
+      significand /= 10;
+      power++;
+    }
+    return format(significand, power, bytes, offset);
+  }
+
+  /**
+   * Rounds v to a multiple of 10^power.
+   * @return the multiple of 10^power that parses back to v, or 0 if there's
+   * none
+   */
+  private static long round(final double v, final int power) {
+    final long m = scaleAndRound(v, -power);
+    if (parsesBack(v, m, power)) {
+      return m;
+    }
+    // the scaling may have rounded the wrong way for values within 2^-64 of
+    // a half
+    if (parsesBack(v, m + 1, power)) {
+      return m + 1;
+    }
+    return parsesBack(v, m - 1, power) ? m - 1 : 0;
+  }
+
+  private static boolean parsesBack(final double v, final long significand, final int power) {
+    return significand > 0 && DoubleParser.toDouble(false, significand, power) == v;
+  }
+
+  /**
+   * Multiplies a normal positive double by 10^q, like the Eisel-Lemire
+   * algorithm of {@link DoubleParser} does: its 53-bit significand is
+   * multiplied by the 128-bit approximation of 10^q.
+   * @return v * 10^q rounded to the nearest integer, which must be less
+   * than 2^62, or 0 if it's out of range
+   */
+  private static long scaleAndRound(final double v, final int q) {
+    final long bits = Double.doubleToRawLongBits(v);
+    final long f = bits & ((1L << 52) - 1) | 1L << 52;
+    final int e = (int) (bits >>> 52) - 1075;
+    final int index = q - DoubleParser.SMALLEST_POWER;
+    if (index < 0 || index >= DoubleParser.MANTISSA_HIGH.length) {
+      return 0;
+    }
+    final long high = DoubleParser.MANTISSA_HIGH[index];
+    // upper 128 bits of the 192-bit product f * (high, low)
+    final long middle = f * high;
+    final long w1 = middle + DoubleParser.unsignedMultiplyHigh(f, DoubleParser.MANTISSA_LOW[index]);
+    final long w2 = DoubleParser.unsignedMultiplyHigh(f, high) + (Long.compareUnsigned(w1, middle) < 0 ? 1 : 0);
+    // 10^q is about (high, low) * 2^(floor(log2(10) * q) - 127), and the
+    // product is shifted by the exponent of v and of 10^q
+    final int shift = 127 - e - (int) (((152170L + 65536L) * q) >> 16);
+    if (shift <= 64 || shift >= 192) {
+      return 0;
+    }
+    final long integer = shift >= 128 ? w2 >>> (shift - 128) : w2 << (128 - shift) | w1 >>> (shift - 64);
+    final long half = shift > 128 ? w2 >>> (shift - 129) : w1 >>> (shift - 65);
+    return integer + (half & 1);
+  }
+
+  /**
+   * Writes significand * 10^power like {@link Double#toString(double)}.
+   */
+  private static int format(final long significand, final int power, final byte[] bytes, int offset) {
+    final int digits = LineWriter.digits(significand);
+    // power of ten of the first digit
+    final int exponent = power + digits - 1;
+    if (exponent >= 0 && exponent < 7) {
+      final int integers = exponent + 1;
+      if (digits <= integers) {
+        offset = putDigits(significand, digits, bytes, offset);
+        for (int i = digits; i < integers; i++) {
+          bytes[offset++] = '0';
+        }
+        bytes[offset++] = '.';
+        bytes[offset++] = '0';
+        return offset;
+      }
+      return putDigits(significand, digits, integers, bytes, offset);
+    }
+    if (exponent < 0 && exponent >= -3) {
+      bytes[offset++] = '0';
+      bytes[offset++] = '.';
+      for (int i = -1; i > exponent; i--) {
+        bytes[offset++] = '0';
+      }
+      return putDigits(significand, digits, bytes, offset);
+    }
+    if (digits == 1) {
+      bytes[offset++] = (byte) ('0' + significand);
+      bytes[offset++] = '.';
+      bytes[offset++] = '0';
+    } else {
+      offset = putDigits(significand, digits, 1, bytes, offset);
+    }
+    bytes[offset++] = 'E';
+    int e = exponent;
+    if (e < 0) {
+      bytes[offset++] = '-';
+      e = -e;
+    }
+    return putDigits(e, LineWriter.digits(e), bytes, offset);
+  }
+
+  private static int putString(final double v, final byte[] bytes, int offset) {
+    final String s = Double.toString(v);
+    for (int i = 0; i < s.length(); i++) {
+      bytes[offset++] = (byte) s.charAt(i);
+    }
+    return offset;
+  }
+
+  private static int putDigits(long v, final int digits, final byte[] bytes, final int offset) {
+    // digits are written backwards from the end of the number
+    final int end = offset + digits;
+    for (int i = end - 1; i >= offset; i--) {
+      bytes[i] = (byte) ('0' + v % 10);
+      v /= 10;
+    }
+    return end;
+  }
+
+  /**
+   * Writes the digits of v with a decimal point after the first integers
+   * ones.
+   */
+  private static int putDigits(long v, final int digits, final int integers, final byte[] bytes,
+                               final int offset) {
+    final int end = offset + digits + 1;
+    for (int i = end - 1; i > offset + integers; i--) {
+      bytes[i] = (byte) ('0' + v % 10);
+      v /= 10;
+    }
+    bytes[offset + integers] = '.';
+    putDigits(v, integers, bytes, offset);
+    return end;
+  }
+}
@@ -1,76 +1,231 @@
 package utils;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.ints.IntArrays;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 
+/**
+ * Field offsets of a single line of text held in a {@link ByteBuffer}.
+ * <p>
+ * Instances are meant to be reused: {@link #readFrom(ByteBuffer)} and
+ * {@link #tokenize(ByteBuffer, int, int)} replace the previous content of the
+ * line, and the offset tables only grow when a line has more fields than any
+ * line seen before, so the steady state doesn't allocate.
+ * <p>
+ * Lines are scanned 8 bytes at a time with {@link Swar}, looking for the line
+ * end, the field separators and the '=' of each field, so tag fields don't
+ * need to be scanned again to be split, see
+ * {@link TagSet#tryAdd(ByteSlice, int)}.
+ */
 public final class FastLine {
-  private static final int MAX_IDX = 1000;
+  private static final int INITIAL_FIELDS = 16;
   public static final int SEPARATOR_CHAR = ' ';
+  public static final int TAG_SEPARATOR_CHAR = '=';
 
-  private final ByteBuffer base;
-  private final int[] start = new int[MAX_IDX];
-  private final int[] length = new int[MAX_IDX];
+  private static final long NEWLINES = Swar.broadcast('\n');
+  private static final long SEPARATORS = Swar.broadcast(SEPARATOR_CHAR);
+  private static final long TAG_SEPARATORS = Swar.broadcast(TAG_SEPARATOR_CHAR);
+  private static final int NO_SPLIT = -1;
+  private static final int SEVERAL_SPLITS = -2;
+
+  private ByteBuffer base;
+  /** array backing base, or null if base is direct */
+  private byte[] array;
+  private int arrayOffset;
+  private int[] start = new int[INITIAL_FIELDS];
+  private int[] length = new int[INITIAL_FIELDS];
+  /** index in each field of its only '=', NO_SPLIT or SEVERAL_SPLITS */
+  private int[] split = new int[INITIAL_FIELDS];
   private int count;
 
-  private FastLine(ByteBuffer base) {
-    this.base = base;
+  // field being scanned
+  private int fieldStart;
+  private int fieldSplit;
+
+  /**
+   * Creates an empty line, to be filled by {@link #readFrom(ByteBuffer)}.
+   */
+  public FastLine() {
   }
 
+  /**
+   * @return number of fields in the line
+   */
   public int getSize() {
     return count;
   }
 
+  /**
+   * @return index in the field of its only '=', or -1 if it has none or more
+   * than one
+   */
+  public int getTagSeparator(int field) {
+    return split[field] < 0 ? -1 : split[field];
+  }
+
+  /**
+   * Reads the next line from the buffer into a new instance.
+   * <p>
+   * Allocates a new line for every call, use {@link #readFrom(ByteBuffer)} on
+   * a reused instance instead.
+   * @throws IllegalArgumentException if the buffer doesn't contain a full line
+   */
   public static FastLine read(ByteBuffer buf) {
-    FastLine r = new FastLine(buf);
-    r.start[r.count] = buf.position();
-    int offset = buf.position();
-    while (offset < buf.limit()) {
-      int ch = buf.get();
-      offset = buf.position();
-      switch (ch) {
+    final FastLine r = new FastLine();
+    if (!r.readFrom(buf)) {
+      throw new IllegalArgumentException("Not enough bytes in buffer");
+    }
+    return r;
+  }
+
+  /**
+   * Tokenizes the line that starts at the buffer's position into this
+   * instance, replacing its previous content.
+   * @return true if a full line was found, in which case the buffer position
+   * is moved past its '\n'. false if the buffer ends before the end of the
+   * line, the buffer position is left untouched and this line is empty.
+   */
+  public boolean readFrom(ByteBuffer buf) {
+    final int end = scan(buf, buf.position(), buf.limit());
+    if (end < 0) {
+      count = 0;
+      return false;
+    }
+    addField(end);
+    buf.position(end + 1);
+    return true;
+  }
+
+  /**
+   * Tokenizes a line already known to span [from, to) of the given buffer,
+   * without its line terminator. The buffer position is left untouched.
+   */
+  public void tokenize(ByteBuffer buf, int from, int to) {
+    final int end = scan(buf, from, to);
+    addField(end < 0 ? to : end);
+  }
+
+  /**
+   * Adds to this line all the fields of [from, to) that end before the
+   * first '\n', leaving the last field open.
+   * @return offset of the first '\n', or -1 if there is none
+   */
+  private int scan(ByteBuffer buf, int from, int to) {
+    if (buf != base) {
+      base = buf;
+      array = buf.hasArray() ? buf.array() : null;
+      arrayOffset = array == null ? 0 : buf.arrayOffset();
+    }
+    count = 0;
+    fieldStart = from;
+    fieldSplit = NO_SPLIT;
+    int offset = from;
+    for (; offset + Long.BYTES <= to; offset += Long.BYTES) {
+      final long word = Swar.wordAt(buf, offset);
+      final long newlines = Swar.matches(word, NEWLINES);
+      final long separators = Swar.matches(word, SEPARATORS);
+      long stops = newlines | separators | Swar.matches(word, TAG_SEPARATORS);
+      while (stops != 0) {
+        final long bit = stops & -stops;
+        final int index = offset + Swar.firstIndex(bit);
+        if ((newlines & bit) != 0) {
+          return index;
+        } else if ((separators & bit) != 0) {
+          addField(index);
+        } else {
+          fieldSplit = fieldSplit == NO_SPLIT ? index - fieldStart : SEVERAL_SPLITS;
+        }
+        stops ^= bit;
+      }
+    }
+    for (; offset < to; offset++) {
+      switch (buf.get(offset)) {
         case '\n':
-          r.length[r.count] = offset - r.start[r.count] - 1;
-          return r;
+          return offset;
         case SEPARATOR_CHAR:
-          r.length[r.count] = offset - r.start[r.count] - 1;
-          r.start[++r.count] = offset;
+          addField(offset);
+          break;
+        case TAG_SEPARATOR_CHAR:
+          fieldSplit = fieldSplit == NO_SPLIT ? offset - fieldStart : SEVERAL_SPLITS;
           break;
         default:
           // nothing to do for now
       }
     }
-    throw new IllegalArgumentException("Not enough bytes in buffer");
+    return -1;
   }
 
+  /**
+   * Closes the field being scanned at the given offset and opens the next one
+   * right after it.
+   */
+  private void addField(int end) {
+    if (count == start.length) {
+      start = IntArrays.grow(start, count + 1);
+      length = IntArrays.grow(length, count + 1);
+      split = IntArrays.grow(split, count + 1);
+    }
+    start[count] = fieldStart;
+    length[count] = end - fieldStart;
+    split[count] = fieldSplit;
+    count++;
+    fieldStart = end + 1;
+    fieldSplit = NO_SPLIT;
+  }
+
+  /**
+   * Parses a field as a long, see {@link Tags#parseLong(CharSequence)}.
+   * @throws NumberFormatException if the value is malformed or overflows.
+   */
   public long getLong(int field) {
-    final int n = length[field];  // Will NPE if necessary.
+    final long v = tryGetLong(field, Long.MIN_VALUE);
+    if (v == Long.MIN_VALUE && !Tags.isLongMinValue(getSlice(field, new ByteSlice()))) {
+      throw new NumberFormatException("Not a long: " + getString(field));
+    }
+    return v;
+  }
+
+  /**
+   * Parses a field as a long without throwing an exception, see
+   * {@link Tags#tryParseLong(CharSequence, long)}.
+   * @return the value, or invalid if it's malformed or overflows
+   */
+  public long tryGetLong(int field, long invalid) {
+    final int n = length[field];
     final int offset = start[field];
+    if (array != null) {
+      // plain array accesses, without the checks of ByteBuffer.get
+      return Tags.tryParseLong(array, arrayOffset + offset, n, invalid);
+    }
     if (n == 0) {
-      throw new NumberFormatException("Empty string");
+      return invalid;
     }
     byte c = base.get(offset);  // Current character.
-    int i = 1;  // index in `s'.
+    int i = 1;  // index in the field.
     if (c < '0' && (c == '+' || c == '-')) {  // Only 1 test in common case.
-      if (n == 1) {
-        throw new NumberFormatException("Just a sign, no value: " + getString(field));
-      } else if (n > 20) {  // "+9223372036854775807" or "-9223372036854775808"
-        throw new NumberFormatException("Value too long: " + getString(field));
+      if (n == 1 || n > 20) {  // "+9223372036854775807" or "-9223372036854775808"
+        return invalid;
       }
       c = base.get(offset + 1);
       i = 2;  // Skip over the sign.
     } else if (n > 19) {  // "9223372036854775807"
-      throw new NumberFormatException("Value too long: " + getString(field));
+      return invalid;
     }
     long v = 0;  // The result (negated to easily handle MIN_VALUE).
     do {
       if ('0' <= c && c <= '9') {
         v -= c - '0';
       } else {
-        throw new NumberFormatException("Invalid character '" + c + "' in " + getString(field));
+        return invalid;
       }
       if (i == n) {
         break;
@@ -79,71 +234,267 @@ public final class FastLine {
       c = base.get(offset + i++);
     } while (true);
     if (v > 0) {
-      throw new NumberFormatException("Overflow in " + getString(field));
+      return invalid;  // Overflow.
     } else if (base.get(offset) == '-') {
       return v;  // Value is already negative, return unchanged.
     } else if (v == Long.MIN_VALUE) {
-      throw new NumberFormatException("Overflow in " + getString(field));
+      return invalid;  // Overflow.
     } else {
       return -v;  // Positive value, need to fix the sign.
     }
   }
 
+  /**
+   * Parses a field as a double, see {@link DoubleParser}.
+   * @throws NumberFormatException if the value is malformed.
+   */
   public double getDouble(int field) {
-    int offset = start[field];
-    int size = length[field];
-    switch (size) {
-      case 1:
-        return base.get(offset) - '0';
-      case 2:
-        return (base.get(offset) - '0') * 10 + base.get(offset + 1) - '0';
-      default:
-        double r = 0;
-        for (int i = 0; i < size; i++) {
-          r = 10 * r + base.get(offset + i) - '0';
-        }
-        return r;
-    }
+    return DoubleParser.parseDouble(base, start[field], length[field]);
+  }
+
+  /**
+   * Points the given slice to a field of this line, without copying it.
+   * @return the slice
+   */
+  public ByteSlice getSlice(int field, ByteSlice into) {
+    return into.set(base, start[field], length[field]);
+  }
+
+  /**
+   * Points the given slice to the whole line, from its first field to the
+   * end of its last one, without its line terminator.
+   * @return the slice
+   */
+  public ByteSlice getLine(ByteSlice into) {
+    final int last = count - 1;
+    return into.set(base, start[0], start[last] + length[last] - start[0]);
   }
 
   public String getString(int field) {
-    return new String(base.array(), start[field], length[field], Charsets.UTF_8);
+    if (base.hasArray()) {
+      return new String(base.array(), base.arrayOffset() + start[field], length[field], Charsets.UTF_8);
+    }
+    final byte[] bytes = new byte[length[field]];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = base.get(start[field] + i);
+    }
+    return new String(bytes, Charsets.UTF_8);
   }
 
+  /**
+   * Reads the lines of a stream, or a channel, into a buffer they are
+   * tokenized in place from.
+   * <p>
+   * The buffer is refilled when the next line doesn't fit in what is left of
+   * it, and grows when a line doesn't fit in the whole buffer, up to
+   * maxLineLength. With a direct buffer filled from a {@link FileChannel},
+   * the bytes of the file aren't copied from the kernel to a heap array.
+   * Fields of lines in a heap buffer are parsed straight from its array.
+   */
   public static final class FastLineReader implements Closeable {
-    private final InputStream in;
-    private final ByteBuffer buf = ByteBuffer.allocate(100000);
+    public static final int DEFAULT_BUFFER_SIZE = 128 * 1024;
+    public static final int DEFAULT_MAX_LINE_LENGTH = 1024 * 1024;
+
+    private InputStream in;
+    private ReadableByteChannel channel;
+    private final int maxLineLength;
+    private final boolean direct;
+    private ByteBuffer buf;
+    private final FastLine line = new FastLine();
+    private long limit;
+    /** number of bytes of the stream that were compacted out of the buffer */
+    private long consumed;
+    private boolean eof;
+    /** whether the last line read was cut at maxLineLength */
+    private boolean truncated;
 
     public FastLineReader(InputStream in) throws IOException {
+      this(in, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a reader that only returns the lines starting in the first
+     * limit bytes of the stream. The last line is still read up to its end.
+     */
+    public FastLineReader(InputStream in, long limit) throws IOException {
+      this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_LINE_LENGTH, false);
+      reset(in, limit);
+    }
+
+    /**
+     * Creates a reader without input, see the reset methods.
+     * @param bufferSize initial size of the buffer
+     * @param maxLineLength length of the longest line that can be read, the
+     *                      buffer is never larger than it and its '\n'
+     * @param direct true to read in a direct buffer, best used with
+     *               {@link #reset(ReadableByteChannel, long)}
+     */
+    public FastLineReader(int bufferSize, int maxLineLength, boolean direct) {
+      Preconditions.checkArgument(bufferSize > 0, "bufferSize must be positive");
+      Preconditions.checkArgument(maxLineLength > 0, "maxLineLength must be positive");
+      this.maxLineLength = maxLineLength;
+      this.direct = direct;
+      this.buf = allocate((int) Math.min(bufferSize, maxLineLength + 1L));
+    }
+
+    private ByteBuffer allocate(int size) {
+      return (direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size)).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Starts reading another stream, keeping the buffer of this reader.
+     * @see #FastLineReader(InputStream, long)
+     */
+    public void reset(InputStream in, long limit) throws IOException {
       this.in = in;
-      buf.limit(0);
-      fillBuffer();
+      this.channel = direct ? Channels.newChannel(in) : null;
+      reset(limit);
+    }
+
+    /**
+     * Starts reading a channel, like a {@link FileChannel} at the position
+     * of the first line, keeping the buffer of this reader.
+     * @see #FastLineReader(InputStream, long)
+     */
+    public void reset(ReadableByteChannel channel, long limit) throws IOException {
+      this.in = null;
+      this.channel = channel;
+      reset(limit);
+    }
+
+    private void reset(long limit) {
+      this.limit = limit;
+      consumed = 0;
+      eof = false;
+      truncated = false;
+      buf.clear().limit(0);
+    }
+
+    /**
+     * Skips the bytes up to and including the next '\n'.
+     */
+    public void skipLine() throws IOException {
+      read(line);
     }
 
+    /**
+     * Reads the next line into an instance owned by this reader. The returned
+     * line is overwritten by the next call.
+     * @return the line, or null at the end of the stream
+     */
     public FastLine read() throws IOException {
-      fillBuffer();
-      if (buf.remaining() > 0) {
-        return FastLine.read(buf);
-      } else {
-        return null;
+      return read(line) ? line : null;
+    }
+
+    /**
+     * Reads the next line into the given instance. A line longer than
+     * maxLineLength is cut to its first maxLineLength bytes, see
+     * {@link #isTruncated()}, and the rest of it is skipped by the next call.
+     * @return false at the end of the stream
+     */
+    public boolean read(FastLine into) throws IOException {
+      if (truncated) {
+        truncated = false;
+        if (!skipRestOfLine()) {
+          return false;
+        }
+      }
+      while (consumed + buf.position() < limit) {
+        if (into.readFrom(buf)) {
+          return true;
+        }
+        if (buf.remaining() > maxLineLength) {
+          into.tokenize(buf, buf.position(), buf.position() + maxLineLength);
+          buf.position(buf.limit());
+          truncated = true;
+          return true;
+        }
+        if (eof) {
+          if (!buf.hasRemaining()) {
+            return false;
+          }
+          // last line of the stream isn't terminated by a '\n'
+          into.tokenize(buf, buf.position(), buf.limit());
+          buf.position(buf.limit());
+          return true;
+        }
+        fillBuffer();
+      }
+      return false;
+    }
+
+    /**
+     * @return whether the last line read was longer than maxLineLength, in
+     * which case it only holds its first maxLineLength bytes
+     */
+    public boolean isTruncated() {
+      return truncated;
+    }
+
+    /**
+     * Drops the bytes up to and including the next '\n', without keeping
+     * them in the buffer.
+     * @return false if the stream ends first
+     */
+    private boolean skipRestOfLine() throws IOException {
+      while (true) {
+        for (int i = buf.position(); i < buf.limit(); i++) {
+          if (buf.get(i) == '\n') {
+            buf.position(i + 1);
+            return true;
+          }
+        }
+        buf.position(buf.limit());
+        if (eof) {
+          return false;
+        }
+        fillBuffer();
       }
     }
 
+    /**
+     * Moves the start of the current line to the beginning of the buffer,
+     * growing it if the line fills it, and reads as many bytes as fit after
+     * it. The buffer doesn't grow past maxLineLength + 1 bytes since
+     * {@link #read(FastLine)} cuts the lines that fill it.
+     */
     private void fillBuffer() throws IOException {
-      if (buf.remaining() < 10000) {
-        buf.compact();
-        int n = in.read(buf.array(), buf.position(), buf.remaining());
-        if (n == -1) {
-          buf.flip();
+      consumed += buf.position();
+      buf.compact();
+      if (!buf.hasRemaining()) {
+        final ByteBuffer grown = allocate((int) Math.min(2L * buf.capacity(), maxLineLength + 1L));
+        buf.flip();
+        grown.put(buf);
+        buf = grown;
+      }
+      while (buf.hasRemaining()) {
+        final int n;
+        if (channel != null) {
+          n = channel.read(buf);
         } else {
-          buf.limit(buf.position() + n);
-          buf.position(0);
+          n = in.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+          if (n > 0) {
+            buf.position(buf.position() + n);
+          }
+        }
+        if (n == -1) {
+          eof = true;
+          break;
         }
       }
+      buf.flip();
     }
 
     @Override
     public void close() throws IOException {
-      in.close();
+      if (channel != null) {
+        channel.close();
+        channel = null;
+      }
+      if (in != null) {
+        in.close();
+        in = null;
+      }
     }
-  }}
\ No newline at end of file
+  }
+}
@@ -0,0 +1,200 @@
+package utils;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and stage latencies of an import, shared by all its threads.
+ * <p>
+ * Counters are {@link LongAdder}s, that the import loops update in bulk
+ * every few thousand lines rather than on every line. Stage latencies are
+ * only measured on one line out of {@link #sample(long)} sampleInterval,
+ * and recorded in {@link LatencyHistogram}s. Nothing here formats strings
+ * on the import threads: the metrics are read through JMX, see
+ * {@link #register()}, or logged by the thread started by
+ * {@link #startReporter(long)}.
+ */
+public final class ImportMetrics implements ImportMetricsMBean {
+  private static final Logger LOG = LoggerFactory.getLogger(ImportMetrics.class);
+
+  public static final String OBJECT_NAME = "parse-lines:type=ImportMetrics";
+  public static final int DEFAULT_SAMPLE_INTERVAL = 1024;
+
+  /** Stages of the import whose latencies are measured. */
+  public enum Stage {
+    /** reads of the input file by the parsing thread */
+    IO_WAIT,
+    /** reads of a compressed input by the parsing thread, including inflating it */
+    INFLATE,
+    /** finding and splitting a line in readln() */
+    TOKENIZE,
+    /** parsing the timestamp and the value of a line */
+    NUMBERS,
+    /** interning the metric and validating the tags of a line */
+    TAGS,
+    /** reading a whole batch of points with readBatch() */
+    BATCH,
+    /** handing a point to the sink, including waiting for the sink to accept it */
+    SINK
+  }
+
+  private final LongAdder lines = new LongAdder();
+  private final LongAdder bytes = new LongAdder();
+  private final LongAdder fields = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final LatencyHistogram[] stages = new LatencyHistogram[Stage.values().length];
+  private final long sampleMask;
+  private final long startNanos = System.nanoTime();
+
+  public ImportMetrics() {
+    this(DEFAULT_SAMPLE_INTERVAL);
+  }
+
+  /**
+   * @param sampleInterval a power of 2, latencies are measured on one line
+   *                       out of sampleInterval
+   */
+  public ImportMetrics(final int sampleInterval) {
+    Preconditions.checkArgument(sampleInterval > 0 && Integer.bitCount(sampleInterval) == 1,
+      "sampleInterval must be a power of 2");
+    this.sampleMask = sampleInterval - 1;
+    for (int i = 0; i < stages.length; i++) {
+      stages[i] = new LatencyHistogram();
+    }
+  }
+
+  /**
+   * @return true if the latencies of the given line should be measured
+   */
+  public boolean sample(final long line) {
+    return (line & sampleMask) == 0;
+  }
+
+  public void addLines(final long n) {
+    lines.add(n);
+  }
+
+  public void addFields(final long n) {
+    fields.add(n);
+  }
+
+  public void addError() {
+    errors.increment();
+  }
+
+  /**
+   * @return the counter of the bytes read from the input files
+   */
+  public LongAdder bytes() {
+    return bytes;
+  }
+
+  public LatencyHistogram stage(final Stage stage) {
+    return stages[stage.ordinal()];
+  }
+
+  public void record(final Stage stage, final long nanos) {
+    stages[stage.ordinal()].record(nanos);
+  }
+
+  @Override
+  public long getLines() {
+    return lines.sum();
+  }
+
+  @Override
+  public long getBytes() {
+    return bytes.sum();
+  }
+
+  @Override
+  public long getFields() {
+    return fields.sum();
+  }
+
+  @Override
+  public long getErrors() {
+    return errors.sum();
+  }
+
+  @Override
+  public double getElapsedSeconds() {
+    return (System.nanoTime() - startNanos) / 1e9;
+  }
+
+  @Override
+  public double getLinesPerSecond() {
+    return getLines() / getElapsedSeconds();
+  }
+
+  @Override
+  public String[] getStageLatencies() {
+    final String[] result = new String[stages.length];
+    for (Stage stage : Stage.values()) {
+      result[stage.ordinal()] = stage + ": " + stage(stage);
+    }
+    return result;
+  }
+
+  @Override
+  public long stagePercentile(final String stage, final double percentile) {
+    return stage(Stage.valueOf(stage)).percentile(percentile);
+  }
+
+  /**
+   * Registers these metrics in the platform MBean server, replacing the
+   * ones of a previous import.
+   */
+  public void register() {
+    try {
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      final ObjectName name = new ObjectName(OBJECT_NAME);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(this, name);
+    } catch (JMException e) {
+      LOG.warn("can't register the import metrics in JMX", e);
+    }
+  }
+
+  /**
+   * Starts a daemon thread that logs the counters every period, and the
+   * stage latencies measured so far.
+   * @return closing it stops the thread
+   */
+  public Closeable startReporter(final long periodSeconds) {
+    Preconditions.checkArgument(periodSeconds > 0, "periodSeconds must be positive");
+    final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+      final Thread t = new Thread(r, "metrics-reporter");
+      t.setDaemon(true);
+      return t;
+    });
+    executor.scheduleAtFixedRate(this::log, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    return executor::shutdownNow;
+  }
+
+  /**
+   * Logs the counters and the latencies of the stages measured so far.
+   */
+  public void log() {
+    LOG.info(String.format("lines=%d (%.0f/s) bytes=%d fields=%d errors=%d in %.3fs",
+      getLines(), getLinesPerSecond(), getBytes(), getFields(), getErrors(), getElapsedSeconds()));
+    for (Stage stage : Stage.values()) {
+      if (stage(stage).count() > 0) {
+        LOG.info("  {}: {}", stage, stage(stage));
+      }
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package utils;
+
+/**
+ * JMX view of the {@link ImportMetrics} of a running import.
+ */
+public interface ImportMetricsMBean {
+  long getLines();
+
+  long getBytes();
+
+  long getFields();
+
+  long getErrors();
+
+  double getElapsedSeconds();
+
+  double getLinesPerSecond();
+
+  /**
+   * @return one line per stage with its sampled latencies
+   */
+  String[] getStageLatencies();
+
+  /**
+   * @param stage name of a {@link ImportMetrics.Stage}
+   * @param percentile in [0, 100]
+   * @return the percentile of the sampled latencies of the stage, in ns
+   */
+  long stagePercentile(String stage, double percentile);
+}
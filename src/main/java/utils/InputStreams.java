@@ -0,0 +1,151 @@
+package utils;
+
+import com.google.common.base.Preconditions;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens the input files of the readers, decompressing ".gz" files.
+ * <p>
+ * Compressed files are inflated by a {@link ParallelGzipInputStream} on
+ * background threads, unless inflateThreads is 0, in which case a plain
+ * {@link GZIPInputStream} inflates them on the reading thread. With
+ * readAhead, files that aren't already read by an inflating thread are read
+ * by a {@link ReadAheadInputStream}.
+ * <p>
+ * With {@link ImportMetrics}, the bytes read from the files are counted and
+ * the time the reading thread spends in each read is recorded in the
+ * {@link ImportMetrics.Stage#IO_WAIT} stage, or
+ * {@link ImportMetrics.Stage#INFLATE} for compressed files.
+ */
+public final class InputStreams {
+  public static final int DEFAULT_INFLATE_THREADS = 1;
+  public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+  public static final int DEFAULT_DEPTH = 4;
+
+  /** inflates on one background thread, without read-ahead */
+  public static final InputStreams DEFAULT =
+    new InputStreams(DEFAULT_INFLATE_THREADS, false, DEFAULT_BUFFER_SIZE, DEFAULT_DEPTH, null);
+
+  private final int inflateThreads;
+  private final boolean readAhead;
+  private final int bufferSize;
+  private final int depth;
+  private final ImportMetrics metrics;
+
+  /**
+   * @param inflateThreads number of threads inflating compressed files, 0 to
+   *                       inflate them on the reading thread
+   * @param readAhead true to read files on a background thread
+   * @param bufferSize size of the buffers filled in the background
+   * @param depth number of buffers filled ahead of the reader
+   * @param metrics metrics of the import, or null
+   */
+  public InputStreams(final int inflateThreads, final boolean readAhead, final int bufferSize, final int depth,
+                      final ImportMetrics metrics) {
+    Preconditions.checkArgument(inflateThreads >= 0, "inflateThreads cannot be negative");
+    Preconditions.checkArgument(bufferSize > 0, "bufferSize must be positive");
+    Preconditions.checkArgument(depth > 0, "depth must be positive");
+    this.inflateThreads = inflateThreads;
+    this.readAhead = readAhead;
+    this.bufferSize = bufferSize;
+    this.depth = depth;
+    this.metrics = metrics;
+  }
+
+  /**
+   * @return true if the file is decompressed by {@link #open(String)}
+   */
+  public static boolean isCompressed(final String fileName) {
+    return fileName.endsWith(".gz");
+  }
+
+  /**
+   * Opens a file, decompressing it if needed.
+   */
+  public InputStream open(final String fileName) throws IOException {
+    return open(fileName, 0, Long.MAX_VALUE);
+  }
+
+  /**
+   * Opens a file to read the lines that start in [start, end). The stream
+   * starts on the byte before start, if start isn't 0, so that a line
+   * starting exactly at start isn't mistaken for the end of the previous one.
+   * <p>
+   * Only the bytes of [start, end) are counted in the metrics: the reader of
+   * a range reads past its end to finish its last line, which is counted by
+   * the reader of the next range.
+   * @throws UnsupportedOperationException if the file is compressed and
+   * start isn't 0
+   */
+  public InputStream open(final String fileName, final long start, final long end) throws IOException {
+    final boolean compressed = isCompressed(fileName);
+    if (compressed && start > 0) {
+      throw new UnsupportedOperationException("Can't read a compressed file from byte " + start);
+    }
+    final long position = start > 0 ? start - 1 : 0;
+    final FileInputStream file = new FileInputStream(fileName);
+    InputStream in = file;
+    try {
+      file.getChannel().position(position);
+      if (metrics != null) {
+        in = new MeteredInputStream(in, metrics.bytes(), null, start - position, end - position);
+      }
+      if (readAhead && !(compressed && inflateThreads > 0)) {
+        in = new ReadAheadInputStream(in, depth, bufferSize);
+      }
+      if (compressed) {
+        in = inflateThreads == 0 ? new GZIPInputStream(in, bufferSize)
+          : new ParallelGzipInputStream(in, inflateThreads, bufferSize, depth);
+      }
+      if (metrics != null) {
+        final ImportMetrics.Stage stage = compressed ? ImportMetrics.Stage.INFLATE : ImportMetrics.Stage.IO_WAIT;
+        in = new MeteredInputStream(in, null, metrics.stage(stage));
+      }
+      return in;
+    } catch (IOException | RuntimeException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Opens an uncompressed file as a channel to read the lines that start in
+   * [start, end), like {@link #open(String, long, long)}, for readers filling
+   * direct buffers without the copy of a stream.
+   * @return the channel, or null if the file is compressed or read ahead,
+   * in which case it is opened with {@link #open(String, long, long)}
+   */
+  public ReadableByteChannel openChannel(final String fileName, final long start, final long end)
+    throws IOException {
+    if (isCompressed(fileName) || readAhead) {
+      return null;
+    }
+    final long position = start > 0 ? start - 1 : 0;
+    final FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+    try {
+      channel.position(position);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+    return metrics == null ? channel
+      : new MeteredChannel(channel, metrics.bytes(), metrics.stage(ImportMetrics.Stage.IO_WAIT), start - position,
+        end - position);
+  }
+
+  /**
+   * @return the metrics of the import, for the readers that don't read
+   * through the streams of this instance, or null
+   */
+  public ImportMetrics metrics() {
+    return metrics;
+  }
+}
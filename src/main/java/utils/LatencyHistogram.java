@@ -0,0 +1,109 @@
+package utils;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds, with logarithmic buckets in the
+ * style of HdrHistogram.
+ * <p>
+ * Values below 32 have their own bucket. Above, each power of 2 is split in
+ * 16 sub-buckets, so a percentile is reported within 1/16 of its value with
+ * a fixed array of 960 counters covering the whole range of a long. Values
+ * can be recorded by several threads, and read while they are.
+ */
+public final class LatencyHistogram {
+  private static final int SUB_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  /** values below this have their own bucket */
+  private static final int LINEAR = SUB_BUCKETS * 2;
+  private static final int BUCKETS = LINEAR + (Long.SIZE - 1 - (SUB_BITS + 1)) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records a value, negative values are recorded as 0.
+   */
+  public void record(final long nanos) {
+    final long v = Math.max(0, nanos);
+    counts.incrementAndGet(bucket(v));
+    count.increment();
+    sum.add(v);
+    if (v > max.get()) {
+      max.accumulateAndGet(v, Math::max);
+    }
+  }
+
+  static int bucket(final long v) {
+    if (v < LINEAR) {
+      return (int) v;
+    }
+    final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(v);
+    final int sub = (int) (v >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return LINEAR + (exponent - SUB_BITS - 1) * SUB_BUCKETS + sub;
+  }
+
+  /**
+   * @return the highest value of a bucket
+   */
+  static long highestValue(final int bucket) {
+    if (bucket < LINEAR) {
+      return bucket;
+    }
+    final int exponent = (bucket - LINEAR) / SUB_BUCKETS + SUB_BITS + 1;
+    final long sub = (bucket - LINEAR) % SUB_BUCKETS;
+    final long lowest = (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    return lowest + (1L << (exponent - SUB_BITS)) - 1;
+  }
+
+  public long count() {
+    return count.sum();
+  }
+
+  public long max() {
+    return max.get();
+  }
+
+  public double mean() {
+    final long n = count.sum();
+    return n == 0 ? 0 : (double) sum.sum() / n;
+  }
+
+  /**
+   * @param percentile in [0, 100]
+   * @return the value below which the given percentage of the recorded
+   * values fall, within the precision of the buckets, or 0 if nothing was
+   * recorded
+   */
+  public long percentile(final double percentile) {
+    Preconditions.checkArgument(percentile >= 0 && percentile <= 100, "percentile must be in [0, 100]");
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      total += counts.get(i);
+    }
+    if (total == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(highestValue(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("count=%d mean=%.0fns p50=%dns p99=%dns p99.9=%dns max=%dns",
+      count(), mean(), percentile(50), percentile(99), percentile(99.9), max());
+  }
+}
@@ -0,0 +1,129 @@
+package utils;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.bytes.ByteArrays;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What to do with the lines that can't be imported, shared by the readers of
+ * all the threads of an import: fail on the first one, or skip them, counted
+ * by reason, and optionally copy them to a quarantine file.
+ * <p>
+ * Lines are validated without exceptions, see {@link Status}, so skipping a
+ * bad line only costs counting it, and writing its raw bytes when it's
+ * quarantined. The exception of the {@link Mode#FAIL} mode is only built for
+ * the line that stops the import.
+ */
+public final class LineErrors implements Closeable {
+  /** fails on the first bad line, the default of the readers */
+  public static final LineErrors FAIL = new LineErrors(Mode.FAIL, null, null);
+
+  public enum Mode {
+    /** stop the import on the first bad line */
+    FAIL,
+    /** leave bad lines out, only counting them */
+    SKIP,
+    /** leave bad lines out and copy them to a file */
+    QUARANTINE
+  }
+
+  private final Mode mode;
+  private final OutputStream quarantine;
+  private final ImportMetrics metrics;
+  /** longest part of a line quoted in the message of the exception */
+  private static final int MAX_QUOTED_LENGTH = 200;
+
+  private final LongAdder[] counts = new LongAdder[Status.values().length];
+  /** bytes of the line being quarantined, guarded by this */
+  private byte[] bytes = new byte[256];
+
+  /**
+   * @param quarantine where bad lines are copied, one per line, in the
+   *                   {@link Mode#QUARANTINE} mode. Closed with this instance.
+   * @param metrics    counts the skipped lines as errors, may be null
+   */
+  public LineErrors(final Mode mode, final OutputStream quarantine, final ImportMetrics metrics) {
+    Preconditions.checkArgument(mode != Mode.QUARANTINE || quarantine != null, "no quarantine file");
+    this.mode = mode;
+    this.quarantine = quarantine;
+    this.metrics = metrics;
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = new LongAdder();
+    }
+  }
+
+  public Mode mode() {
+    return mode;
+  }
+
+  /**
+   * Handles a line that failed to parse.
+   * @param line the raw line, or null if the reader doesn't keep it, in which
+   *             case it is counted but not quarantined
+   * @throws IllegalArgumentException in the {@link Mode#FAIL} mode
+   */
+  public void reject(final Status status, final CharSequence line) throws IOException {
+    if (mode == Mode.FAIL) {
+      if (line == null) {
+        throw new IllegalArgumentException(status.message());
+      }
+      final String quoted = line.length() > MAX_QUOTED_LENGTH
+        ? line.subSequence(0, MAX_QUOTED_LENGTH) + "..." : line.toString();
+      throw new IllegalArgumentException(status.message() + ": " + quoted);
+    }
+    counts[status.ordinal()].increment();
+    if (metrics != null) {
+      metrics.addError();
+    }
+    if (mode == Mode.QUARANTINE && line != null) {
+      write(line);
+    }
+  }
+
+  private synchronized void write(final CharSequence line) throws IOException {
+    if (line instanceof ByteSlice) {
+      final ByteSlice slice = (ByteSlice) line;
+      final int n = slice.length();
+      bytes = ByteArrays.grow(bytes, n + 1);
+      slice.copyTo(0, bytes, 0, n);
+      bytes[n] = '\n';
+      quarantine.write(bytes, 0, n + 1);
+    } else {
+      quarantine.write(line.toString().getBytes(Charsets.UTF_8));
+      quarantine.write('\n');
+    }
+  }
+
+  /**
+   * @return number of lines left out for the given reason
+   */
+  public long count(final Status status) {
+    return counts[status.ordinal()].sum();
+  }
+
+  /**
+   * @return number of lines left out
+   */
+  public long total() {
+    long total = 0;
+    for (LongAdder count : counts) {
+      total += count.sum();
+    }
+    return total;
+  }
+
+  /**
+   * Flushes and closes the quarantine file.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (quarantine != null) {
+      quarantine.close();
+    }
+  }
+}
@@ -0,0 +1,193 @@
+package utils;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes ASCII text to a channel or a stream through a reusable buffer,
+ * without creating any object per line: numbers are formatted straight into
+ * the buffer, and constant parts of the lines are written from pre-encoded
+ * byte arrays.
+ * <p>
+ * The buffer is written out whenever the next write doesn't fit in it, so
+ * lines may be split between two writes of the channel.
+ */
+public final class LineWriter implements Closeable {
+  /** number of characters of the longest long, Long.MIN_VALUE */
+  private static final int MAX_LONG_LENGTH = 20;
+  private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(Charsets.UTF_8);
+
+  private final WritableByteChannel channel;
+  private final OutputStream stream;
+  private final ByteBuffer buffer;
+  private long written;
+
+  /**
+   * @param direct true to use a direct buffer, written to file channels
+   *               without an extra copy
+   */
+  public LineWriter(final WritableByteChannel channel, final int bufferSize, final boolean direct) {
+    this(channel, null, bufferSize, direct);
+  }
+
+  /**
+   * Writes to a stream, like a compressing one, from a heap buffer.
+   */
+  public LineWriter(final OutputStream stream, final int bufferSize) {
+    this(null, stream, bufferSize, false);
+  }
+
+  private LineWriter(final WritableByteChannel channel, final OutputStream stream, final int bufferSize,
+                     final boolean direct) {
+    Preconditions.checkArgument(bufferSize >= MAX_LONG_LENGTH, "bufferSize must be at least %s", MAX_LONG_LENGTH);
+    this.channel = channel;
+    this.stream = stream;
+    this.buffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+  }
+
+  private void ensureRoom(final int n) throws IOException {
+    if (buffer.remaining() < n) {
+      flush();
+    }
+  }
+
+  public LineWriter put(final byte b) throws IOException {
+    ensureRoom(1);
+    buffer.put(b);
+    return this;
+  }
+
+  public LineWriter put(final byte[] bytes) throws IOException {
+    return put(bytes, 0, bytes.length);
+  }
+
+  public LineWriter put(final byte[] bytes, final int offset, final int length) throws IOException {
+    if (length > buffer.remaining()) {
+      flush();
+      if (length > buffer.capacity()) {
+        written += length;
+        writeFully(ByteBuffer.wrap(bytes, offset, length));
+        return this;
+      }
+    }
+    buffer.put(bytes, offset, length);
+    return this;
+  }
+
+  /**
+   * Writes the decimal representation of a long.
+   */
+  public LineWriter putLong(long v) throws IOException {
+    if (v == Long.MIN_VALUE) {
+      return put(MIN_LONG);
+    }
+    ensureRoom(MAX_LONG_LENGTH);
+    if (v < 0) {
+      buffer.put((byte) '-');
+      v = -v;
+    }
+    // digits are written backwards from the end of the number
+    final int end = buffer.position() + digits(v);
+    int i = end;
+    do {
+      buffer.put(--i, (byte) ('0' + v % 10));
+      v /= 10;
+    } while (v != 0);
+    buffer.position(end);
+    return this;
+  }
+
+  /**
+   * Writes unscaled / 10^scale with exactly scale decimals, like
+   * {@link java.math.BigDecimal#toPlainString()}.
+   */
+  public LineWriter putDecimal(final long unscaled, final int scale) throws IOException {
+    Preconditions.checkArgument(scale >= 0 && scale < 19, "scale must be in [0, 18]");
+    if (scale == 0) {
+      return putLong(unscaled);
+    }
+    long pow = 1;
+    for (int i = 0; i < scale; i++) {
+      pow *= 10;
+    }
+    long fraction = Math.abs(unscaled % pow);
+    if (unscaled < 0 && unscaled > -pow) {
+      // the integer part is -0
+      put((byte) '-');
+    }
+    putLong(unscaled / pow);
+    ensureRoom(scale + 1);
+    buffer.put((byte) '.');
+    final int end = buffer.position() + scale;
+    for (int i = end - 1; i >= end - scale; i--) {
+      buffer.put(i, (byte) ('0' + fraction % 10));
+      fraction /= 10;
+    }
+    buffer.position(end);
+    return this;
+  }
+
+  /**
+   * @return number of digits of a positive long
+   */
+  static int digits(final long v) {
+    long limit = 10;
+    for (int n = 1; n < 19; n++) {
+      if (v < limit) {
+        return n;
+      }
+      limit *= 10;
+    }
+    return 19;
+  }
+
+  /**
+   * @return number of bytes written so far, flushed or not
+   */
+  public long written() {
+    return written + buffer.position();
+  }
+
+  /**
+   * Writes the content of the buffer to the channel.
+   */
+  public void flush() throws IOException {
+    buffer.flip();
+    written += buffer.remaining();
+    writeFully(buffer);
+    buffer.clear();
+  }
+
+  private void writeFully(final ByteBuffer bytes) throws IOException {
+    if (stream != null) {
+      stream.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+      bytes.position(bytes.limit());
+      return;
+    }
+    while (bytes.hasRemaining()) {
+      channel.write(bytes);
+    }
+  }
+
+  /**
+   * Flushes the buffer and closes the channel or stream.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      if (stream != null) {
+        stream.close();
+      } else {
+        channel.close();
+      }
+    }
+  }
+}
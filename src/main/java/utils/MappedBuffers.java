@@ -0,0 +1,85 @@
+package utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Releases mapped buffers without waiting for the garbage collector.
+ * <p>
+ * The JDK only unmaps a {@link MappedByteBuffer} once it is collected, so a
+ * reader walking a large file through windows keeps all of them mapped
+ * until the next GC. This class calls the buffer's cleaner directly, through
+ * {@code sun.misc.Unsafe.invokeCleaner} on Java 9+ and through
+ * {@code DirectBuffer.cleaner()} on Java 8. If neither is reachable
+ * {@link #unmap(MappedByteBuffer)} does nothing and the GC unmaps buffers as
+ * usual.
+ * <p>
+ * <strong>Warning:</strong> any access to an unmapped buffer, or to a view of
+ * it, crashes the JVM.
+ */
+public final class MappedBuffers {
+  private static final Logger LOG = LoggerFactory.getLogger(MappedBuffers.class);
+
+  private static final Object UNSAFE;
+  private static final Method INVOKE_CLEANER;
+  private static final Method CLEANER;
+  private static final Method CLEAN;
+
+  static {
+    Object unsafe = null;
+    Method invokeCleaner = null;
+    Method cleaner = null;
+    Method clean = null;
+    try {
+      final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      unsafe = theUnsafe.get(null);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      invokeCleaner = null;
+      try {
+        cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+        clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+      } catch (ReflectiveOperationException | RuntimeException e2) {
+        LOG.info("mapped buffers will be unmapped by the garbage collector: {}", e2.toString());
+        cleaner = null;
+        clean = null;
+      }
+    }
+    UNSAFE = unsafe;
+    INVOKE_CLEANER = invokeCleaner;
+    CLEANER = cleaner;
+    CLEAN = clean;
+  }
+
+  private MappedBuffers() {
+  }
+
+  /**
+   * Unmaps the given buffer right away, if the runtime allows it. The buffer
+   * must not be used afterwards.
+   */
+  public static void unmap(final MappedByteBuffer buffer) {
+    if (buffer == null) {
+      return;
+    }
+    try {
+      if (INVOKE_CLEANER != null) {
+        INVOKE_CLEANER.invoke(UNSAFE, buffer);
+      } else if (CLEANER != null) {
+        final Object cleaner = CLEANER.invoke(buffer);
+        if (cleaner != null) {
+          CLEAN.invoke(cleaner);
+        }
+      }
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      LOG.debug("couldn't unmap buffer", e);
+    }
+  }
+}
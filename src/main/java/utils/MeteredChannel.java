@@ -0,0 +1,65 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the bytes read from a channel and records how long each read
+ * blocks, like {@link MeteredInputStream}.
+ */
+public final class MeteredChannel implements ReadableByteChannel {
+  private final ReadableByteChannel channel;
+  private final LongAdder bytes;
+  private final LatencyHistogram latencies;
+  // part of the channel whose bytes are counted
+  private final long from;
+  private final long to;
+  /** number of bytes read so far */
+  private long offset;
+
+  /**
+   * @param bytes counter of the bytes read, or null
+   * @param latencies histogram of the time spent in each read, or null
+   */
+  public MeteredChannel(final ReadableByteChannel channel, final LongAdder bytes, final LatencyHistogram latencies) {
+    this(channel, bytes, latencies, 0, Long.MAX_VALUE);
+  }
+
+  /**
+   * @param from offset in the channel of the first byte counted
+   * @param to offset in the channel of the byte after the last one counted
+   */
+  public MeteredChannel(final ReadableByteChannel channel, final LongAdder bytes, final LatencyHistogram latencies,
+                        final long from, final long to) {
+    this.channel = channel;
+    this.bytes = bytes;
+    this.latencies = latencies;
+    this.from = from;
+    this.to = to;
+  }
+
+  @Override
+  public int read(final ByteBuffer dst) throws IOException {
+    final long start = latencies == null ? 0 : System.nanoTime();
+    final int n = channel.read(dst);
+    if (latencies != null) {
+      latencies.record(System.nanoTime() - start);
+    }
+    if (n > 0) {
+      offset = MeteredInputStream.count(bytes, offset, n, from, to);
+    }
+    return n;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return channel.isOpen();
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,94 @@
+package utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the bytes read from a stream and records how long each read blocks.
+ * <p>
+ * Both are measured per call to read, that is per buffer refill of the
+ * readers, not per byte. Only the bytes of a given part of the stream can be
+ * counted, like the range of a file read by a reader that reads past the end
+ * of the range to finish its last line.
+ */
+public final class MeteredInputStream extends FilterInputStream {
+  private final LongAdder bytes;
+  private final LatencyHistogram latencies;
+  // part of the stream whose bytes are counted
+  private final long from;
+  private final long to;
+  /** number of bytes read so far */
+  private long offset;
+
+  /**
+   * @param bytes counter of the bytes read, or null
+   * @param latencies histogram of the time spent in each read, or null
+   */
+  public MeteredInputStream(final InputStream in, final LongAdder bytes, final LatencyHistogram latencies) {
+    this(in, bytes, latencies, 0, Long.MAX_VALUE);
+  }
+
+  /**
+   * @param from offset in the stream of the first byte counted
+   * @param to offset in the stream of the byte after the last one counted
+   */
+  public MeteredInputStream(final InputStream in, final LongAdder bytes, final LatencyHistogram latencies,
+                            final long from, final long to) {
+    super(in);
+    this.bytes = bytes;
+    this.latencies = latencies;
+    this.from = from;
+    this.to = to;
+  }
+
+  /**
+   * Counts n bytes read after offset, if they are in [from, to).
+   * @return the offset after them
+   */
+  static long count(final LongAdder bytes, final long offset, final long n, final long from, final long to) {
+    if (bytes != null) {
+      final long counted = Math.min(offset + n, to) - Math.max(offset, from);
+      if (counted > 0) {
+        bytes.add(counted);
+      }
+    }
+    return offset + n;
+  }
+
+  @Override
+  public int read() throws IOException {
+    final long start = latencies == null ? 0 : System.nanoTime();
+    final int b = in.read();
+    if (latencies != null) {
+      latencies.record(System.nanoTime() - start);
+    }
+    if (b >= 0) {
+      offset = count(bytes, offset, 1, from, to);
+    }
+    return b;
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len) throws IOException {
+    final long start = latencies == null ? 0 : System.nanoTime();
+    final int n = in.read(b, off, len);
+    if (latencies != null) {
+      latencies.record(System.nanoTime() - start);
+    }
+    if (n > 0) {
+      offset = count(bytes, offset, n, from, to);
+    }
+    return n;
+  }
+
+  @Override
+  public long skip(final long n) throws IOException {
+    final long skipped = in.skip(n);
+    if (skipped > 0) {
+      offset = count(bytes, offset, skipped, from, to);
+    }
+    return skipped;
+  }
+}
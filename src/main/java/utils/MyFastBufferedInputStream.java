@@ -114,6 +114,9 @@ public class MyFastBufferedInputStream extends MeasurableInputStream implements
   /** The number of buffer bytes available starting from {@link #pos}. */
   protected int avail;
 
+  /** The offset in the buffer of the line found by {@link #nextLine(EnumSet)}. */
+  private int lineStart;
+
   /** The cached file channel underlying {@link #is}, if any. */
   private FileChannel fileChannel;
 
@@ -406,6 +409,86 @@ public class MyFastBufferedInputStream extends MeasurableInputStream implements
     }
   }
 
+  /** Returns the internal buffer, which holds the line found by the last call to {@link #nextLine(EnumSet)}.
+   *
+   * <p>The buffer given to the constructor is replaced by a larger one when a line does not fit in it.
+   *
+   * @return the internal buffer.
+   */
+  public byte[] buffer() {
+    return buffer;
+  }
+
+  /** Returns the offset in the {@linkplain #buffer() internal buffer} of the line found by the last
+   * call to {@link #nextLine(EnumSet)}.
+   *
+   * @return the offset of the first byte of the line.
+   */
+  public int lineStart() {
+    return lineStart;
+  }
+
+  /** Finds the next line in the internal buffer, without copying it.
+   *
+   * <p>Unlike {@link #readLine(byte[], int, int, EnumSet)}, the line is left in place: when it starts in the
+   * buffer and ends after it, the bytes still available are moved to the beginning of the buffer, which
+   * is then refilled with a single read of the underlying stream. If the line is longer than the buffer, the
+   * buffer is grown. As a result, the whole line is always contiguous in the {@linkplain #buffer() buffer},
+   * starting at {@link #lineStart()}, until the next call to this method or to any read method.
+   *
+   * <p>Terminators are detected with the same maximisation criterion as {@link #readLine(byte[], int, int, EnumSet)}
+   * and are not part of the line. The last line of the stream does not need a terminator.
+   *
+   * @param terminators a set containing the line termination sequences that we want
+   * to consider as valid.
+   * @return the length of the line, or -1 at end of file.
+   */
+  public int nextLine( final EnumSet<LineTerminator> terminators ) throws IOException {
+    final boolean lf = terminators.contains( LineTerminator.LF );
+    final boolean cr = terminators.contains( LineTerminator.CR );
+    final boolean crLf = terminators.contains( LineTerminator.CR_LF );
+    int i = 0; // The number of bytes of the line scanned so far, starting at pos
+    for(;;) {
+      for( ; i < avail; i++ ) {
+        final byte k = buffer[ pos + i ];
+        if ( k == '\n' ) {
+          if ( lf ) return consumeLine( i, 1 );
+        }
+        else if ( k == '\r' ) {
+          if ( crLf && i + 1 == avail ) refill(); // We must look for the LF
+          if ( crLf && i + 1 < avail && buffer[ pos + i + 1 ] == '\n' ) return consumeLine( i, 2 );
+          if ( cr ) return consumeLine( i, 1 );
+        }
+      }
+      if ( ! refill() ) return avail == 0 ? -1 : consumeLine( avail, 0 );
+    }
+  }
+
+  /** Moves the available bytes to the beginning of the buffer, growing it if it is full, and reads
+   * the underlying stream after them.
+   *
+   * @return false if the end of file was reached.
+   */
+  private boolean refill() throws IOException {
+    if ( pos > 0 ) {
+      System.arraycopy( buffer, pos, buffer, 0, avail );
+      pos = 0;
+    }
+    if ( avail == buffer.length ) buffer = ByteArrays.grow( buffer, avail + 1 );
+    final int result = is.read( buffer, avail, buffer.length - avail );
+    if ( result <= 0 ) return false;
+    avail += result;
+    return true;
+  }
+
+  private int consumeLine( final int length, final int terminator ) {
+    lineStart = pos;
+    pos += length + terminator;
+    avail -= length + terminator;
+    readBytes += length + terminator;
+    return length;
+  }
+
 
 
   public void position( long newPosition ) throws IOException {
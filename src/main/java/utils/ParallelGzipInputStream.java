@@ -0,0 +1,315 @@
+package utils;
+
+import com.google.common.base.Preconditions;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses a gzip stream on background threads, so that inflating and
+ * parsing run at the same time.
+ * <p>
+ * Inflated bytes are written to a ring of reusable chunks, handed to the
+ * reading thread in order through a bounded queue. Two modes are used,
+ * depending on the first member of the stream:
+ * <ul>
+ * <li>BGZF streams (written by bgzip, or GenerateData), made of members of at
+ * most 64 KB that record their compressed size in a "BC" extra field: a
+ * thread reads the members and several threads inflate them in parallel.
+ * <li>any other gzip stream, with one or more members: a single thread
+ * inflates it with a {@link GZIPInputStream}.
+ * </ul>
+ */
+public final class ParallelGzipInputStream extends InputStream {
+
+  private static final int GZIP_MAGIC = 0x8b1f;
+  private static final int FEXTRA = 4;
+  /** size of a gzip header with a BGZF extra field */
+  private static final int BGZF_HEADER = 18;
+  private static final int BGZF_MAX_BLOCK = 1 << 16;
+  private static final int TRAILER = 8;
+
+  private static final AtomicInteger THREAD_ID = new AtomicInteger();
+  private static final Chunk END = new Chunk(0, false);
+
+  private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+  /** a buffer of inflated bytes, and the compressed member it comes from in BGZF mode */
+  private static final class Chunk {
+    final byte[] data;
+    int length;
+    final byte[] compressed;
+    int compressedLength;
+
+    Chunk(final int size, final boolean bgzf) {
+      data = new byte[size];
+      compressed = bgzf ? new byte[BGZF_MAX_BLOCK] : null;
+    }
+  }
+
+  private final BufferedInputStream in;
+  private final BlockingQueue<Future<Chunk>> ready;
+  private final BlockingQueue<Chunk> free;
+  private final ExecutorService inflaters;
+  private final Thread producer;
+
+  private Chunk current;
+  private int pos;
+  /** first error of the producer or the inflaters, thrown by all the reads after it */
+  private IOException failure;
+
+  /**
+   * @param in the compressed stream
+   * @param threads number of threads inflating BGZF members, other streams
+   *                are always inflated by a single thread
+   * @param bufferSize size of the chunks of inflated bytes
+   * @param depth number of chunks that can be inflated ahead of the reader
+   */
+  public ParallelGzipInputStream(final InputStream in, final int threads, final int bufferSize, final int depth)
+    throws IOException {
+    Preconditions.checkArgument(threads > 0, "threads must be positive");
+    Preconditions.checkArgument(depth > 0, "depth must be positive");
+    this.in = new BufferedInputStream(in, BGZF_MAX_BLOCK);
+    this.ready = new ArrayBlockingQueue<>(depth);
+
+    final boolean bgzf = isBgzf();
+    final int chunkSize = bgzf ? BGZF_MAX_BLOCK : bufferSize;
+    // chunks are either queued, being read, or held by the producer or the inflaters
+    final int chunks = depth + threads + 2;
+    this.free = new ArrayBlockingQueue<>(chunks);
+    for (int i = 0; i < chunks; i++) {
+      free.add(new Chunk(chunkSize, bgzf));
+    }
+
+    final ThreadFactory factory = r -> {
+      final Thread t = new Thread(r, "gzip-" + THREAD_ID.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
+    if (bgzf) {
+      inflaters = Executors.newFixedThreadPool(threads, factory);
+      producer = factory.newThread(this::splitMembers);
+    } else {
+      inflaters = null;
+      producer = factory.newThread(this::inflateSequentially);
+    }
+    producer.start();
+  }
+
+  /**
+   * Peeks at the header of the first member.
+   */
+  private boolean isBgzf() throws IOException {
+    final byte[] header = new byte[BGZF_HEADER];
+    in.mark(BGZF_HEADER);
+    final int n = readFully(in, header, BGZF_HEADER);
+    in.reset();
+    return n == BGZF_HEADER && hasBgzfHeader(header);
+  }
+
+  private static boolean hasBgzfHeader(final byte[] h) {
+    return readShort(h, 0) == GZIP_MAGIC && h[2] == 8 && (h[3] & FEXTRA) != 0
+      && readShort(h, 10) == 6 && h[12] == 'B' && h[13] == 'C' && readShort(h, 14) == 2;
+  }
+
+  private static int readShort(final byte[] b, final int offset) {
+    return (b[offset] & 0xFF) | (b[offset + 1] & 0xFF) << 8;
+  }
+
+  private static int readInt(final byte[] b, final int offset) {
+    return readShort(b, offset) | readShort(b, offset + 2) << 16;
+  }
+
+  private static int readFully(final InputStream in, final byte[] b, final int length) throws IOException {
+    int n = 0;
+    while (n < length) {
+      final int r = in.read(b, n, length - n);
+      if (r < 0) {
+        break;
+      }
+      n += r;
+    }
+    return n;
+  }
+
+  /**
+   * Producer of the sequential mode: inflates the whole stream.
+   */
+  private void inflateSequentially() {
+    try (GZIPInputStream gz = new GZIPInputStream(in, BGZF_MAX_BLOCK)) {
+      while (true) {
+        final Chunk chunk = free.take();
+        chunk.length = readFully(gz, chunk.data, chunk.data.length);
+        if (chunk.length == 0) {
+          ready.put(CompletableFuture.completedFuture(END));
+          return;
+        }
+        ready.put(CompletableFuture.completedFuture(chunk));
+      }
+    } catch (InterruptedException e) {
+      // closed
+    } catch (IOException | RuntimeException e) {
+      fail(e);
+    }
+  }
+
+  /**
+   * Producer of the BGZF mode: reads members and submits them to the
+   * inflaters, in order.
+   */
+  private void splitMembers() {
+    try {
+      while (true) {
+        final Chunk chunk = free.take();
+        if (!readMember(chunk)) {
+          ready.put(CompletableFuture.completedFuture(END));
+          return;
+        }
+        ready.put(inflaters.submit(() -> inflateMember(chunk)));
+      }
+    } catch (InterruptedException e) {
+      // closed
+    } catch (IOException | RuntimeException e) {
+      fail(e);
+    }
+  }
+
+  private void fail(final Exception e) {
+    final CompletableFuture<Chunk> failed = new CompletableFuture<>();
+    failed.completeExceptionally(e);
+    try {
+      ready.put(failed);
+    } catch (InterruptedException ignored) {
+      // closed
+    }
+  }
+
+  /**
+   * Reads the next BGZF member in the chunk.
+   * @return false at the end of the stream
+   */
+  private boolean readMember(final Chunk chunk) throws IOException {
+    final byte[] b = chunk.compressed;
+    final int n = readFully(in, b, BGZF_HEADER);
+    if (n == 0) {
+      return false;
+    }
+    if (n < BGZF_HEADER || !hasBgzfHeader(b)) {
+      throw new IOException("Not a BGZF member");
+    }
+    final int size = readShort(b, 16) + 1;
+    if (readFully(in, b, size - BGZF_HEADER) != size - BGZF_HEADER) {
+      throw new EOFException("Truncated BGZF member");
+    }
+    chunk.compressedLength = size - BGZF_HEADER;
+    return true;
+  }
+
+  private static Chunk inflateMember(final Chunk chunk) throws IOException {
+    final byte[] b = chunk.compressed;
+    final int deflated = chunk.compressedLength - TRAILER;
+    final int crc = readInt(b, deflated);
+    final int size = readInt(b, deflated + 4);
+
+    final Inflater inflater = INFLATER.get();
+    inflater.reset();
+    inflater.setInput(b, 0, deflated);
+    try {
+      chunk.length = 0;
+      while (chunk.length < size && !inflater.finished()) {
+        final int n = inflater.inflate(chunk.data, chunk.length, size - chunk.length);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new EOFException("Truncated BGZF member");
+        }
+        chunk.length += n;
+      }
+    } catch (DataFormatException e) {
+      throw new IOException(e);
+    }
+    final CRC32 checksum = new CRC32();
+    checksum.update(chunk.data, 0, chunk.length);
+    if (chunk.length != size || (int) checksum.getValue() != crc) {
+      throw new IOException("Corrupt BGZF member");
+    }
+    return chunk;
+  }
+
+  /**
+   * Makes sure current has bytes left to read.
+   * @return false at the end of the stream
+   * @throws IOException if the stream can't be inflated, on this read and all
+   * the following ones
+   */
+  private boolean fill() throws IOException {
+    if (failure != null) {
+      throw failure;
+    }
+    while (current == null || pos == current.length) {
+      if (current == END) {
+        return false;
+      }
+      if (current != null) {
+        free.add(current);
+      }
+      current = null;
+      try {
+        current = ready.take().get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      } catch (ExecutionException e) {
+        failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        throw failure;
+      }
+      pos = 0;
+    }
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!fill()) {
+      return -1;
+    }
+    return current.data[pos++] & 0xFF;
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!fill()) {
+      return -1;
+    }
+    final int n = Math.min(len, current.length - pos);
+    System.arraycopy(current.data, pos, b, off, n);
+    pos += n;
+    return n;
+  }
+
+  @Override
+  public void close() throws IOException {
+    producer.interrupt();
+    if (inflaters != null) {
+      inflaters.shutdownNow();
+    }
+    in.close();
+  }
+}
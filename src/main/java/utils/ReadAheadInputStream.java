@@ -0,0 +1,200 @@
+package utils;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads a stream on a background thread, ahead of the thread consuming it.
+ * <p>
+ * The background thread fills a ring of depth buffers with large reads while
+ * the reading thread parses the previous ones, so I/O and parsing overlap.
+ * Buffers are handed over through a lock-free single-producer single-consumer
+ * queue: two counters of produced and consumed buffers, each written by one
+ * thread only. A thread that finds the ring full, or empty, spins for a while
+ * before parking until the other side publishes a buffer.
+ * <p>
+ * Like any {@link InputStream} this class is meant to be used by a single
+ * reading thread.
+ */
+public final class ReadAheadInputStream extends InputStream {
+  private static final AtomicInteger THREAD_ID = new AtomicInteger();
+  private static final int SPINS = 100;
+  private static final long PARK_NANOS = 100_000;
+
+  private final InputStream in;
+  private final byte[][] buffers;
+  /** number of bytes in each buffer, -1 for the end of the stream */
+  private final int[] lengths;
+  private final Thread producer;
+
+  /** buffers filled by the producer, only written by the producer */
+  private final AtomicLong produced = new AtomicLong();
+  /** buffers released by the consumer, only written by the consumer */
+  private final AtomicLong consumed = new AtomicLong();
+  private volatile Thread consumer;
+  private volatile boolean closed;
+  /** error of the producer, published before the end of the stream */
+  private volatile IOException error;
+
+  private byte[] current;
+  private int pos;
+  private int avail;
+  private boolean eof;
+
+  /**
+   * @param in the stream to read
+   * @param depth number of buffers read ahead
+   * @param bufferSize size of each buffer, that is of each read of in
+   */
+  public ReadAheadInputStream(final InputStream in, final int depth, final int bufferSize) {
+    Preconditions.checkArgument(depth > 0, "depth must be positive");
+    Preconditions.checkArgument(bufferSize > 0, "bufferSize must be positive");
+    this.in = in;
+    this.buffers = new byte[depth][bufferSize];
+    this.lengths = new int[depth];
+    this.producer = new Thread(this::readAhead, "read-ahead-" + THREAD_ID.incrementAndGet());
+    producer.setDaemon(true);
+    producer.start();
+  }
+
+  /**
+   * Producer loop: fills the free buffers in order until the end of the stream.
+   */
+  private void readAhead() {
+    long index = 0;
+    try {
+      while (!closed) {
+        int spins = 0;
+        while (index - consumed.get() == buffers.length) {
+          if (closed) {
+            return;
+          }
+          spins = idle(spins);
+        }
+        final int slot = (int) (index % buffers.length);
+        final int n = fill(buffers[slot]);
+        lengths[slot] = n == 0 ? -1 : n;
+        produced.lazySet(++index);
+        LockSupport.unpark(consumer);
+        if (n == 0) {
+          return;
+        }
+      }
+    } catch (IOException e) {
+      if (!closed) {
+        error = e;
+        final int slot = (int) (index % buffers.length);
+        lengths[slot] = -1;
+        produced.lazySet(index + 1);
+        LockSupport.unpark(consumer);
+      }
+    }
+  }
+
+  /**
+   * Reads until the buffer is full or the end of the stream.
+   * @return number of bytes read
+   */
+  private int fill(final byte[] buffer) throws IOException {
+    int n = 0;
+    while (n < buffer.length) {
+      final int r = in.read(buffer, n, buffer.length - n);
+      if (r < 0) {
+        break;
+      }
+      n += r;
+    }
+    return n;
+  }
+
+  /**
+   * Waits for the other thread, spinning first and then parking.
+   * @return the updated number of spins
+   */
+  private int idle(final int spins) {
+    if (spins < SPINS) {
+      Thread.yield();
+    } else {
+      LockSupport.parkNanos(this, PARK_NANOS);
+    }
+    return spins + 1;
+  }
+
+  /**
+   * Makes sure the current buffer has bytes left, releasing it to the
+   * producer and taking the next one when it's exhausted.
+   * @return false at the end of the stream
+   */
+  private boolean next() throws IOException {
+    if (avail > 0) {
+      return true;
+    }
+    if (eof) {
+      return false;
+    }
+    long index = consumed.get();
+    if (current != null) {
+      consumed.lazySet(++index);
+      LockSupport.unpark(producer);
+      current = null;
+    }
+    consumer = Thread.currentThread();
+    int spins = 0;
+    while (produced.get() == index) {
+      spins = idle(spins);
+    }
+    final int slot = (int) (index % buffers.length);
+    if (lengths[slot] < 0) {
+      eof = true;
+      if (error != null) {
+        throw error;
+      }
+      return false;
+    }
+    current = buffers[slot];
+    pos = 0;
+    avail = lengths[slot];
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!next()) {
+      return -1;
+    }
+    avail--;
+    return current[pos++] & 0xFF;
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!next()) {
+      return -1;
+    }
+    final int n = Math.min(len, avail);
+    System.arraycopy(current, pos, b, off, n);
+    pos += n;
+    avail -= n;
+    return n;
+  }
+
+  @Override
+  public int available() {
+    return avail;
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    LockSupport.unpark(producer);
+    in.close();
+  }
+}
@@ -0,0 +1,33 @@
+package utils;
+
+/**
+ * Outcome of parsing a line, or a part of it, returned by the try methods
+ * of the parsers instead of throwing an exception on malformed input.
+ * <p>
+ * Returning a constant doesn't allocate, so a file with many bad lines costs
+ * about as much to parse as a clean one, see {@link LineErrors}.
+ */
+public enum Status {
+  OK("ok"),
+  MALFORMED_LINE("malformed line"),
+  LINE_TOO_LONG("line too long"),
+  MISSING_FIELDS("missing fields"),
+  INVALID_METRIC("invalid metric"),
+  INVALID_TIMESTAMP("invalid timestamp"),
+  INVALID_VALUE("invalid value"),
+  INVALID_TAG("invalid tag"),
+  DUPLICATE_TAG("duplicate tag");
+
+  private final String message;
+
+  Status(final String message) {
+    this.message = message;
+  }
+
+  /**
+   * @return what is wrong with the line, like "invalid timestamp"
+   */
+  public String message() {
+    return message;
+  }
+}
@@ -0,0 +1,56 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * SIMD within a register: helpers to look for bytes 8 at a time in a long.
+ * <p>
+ * Words are read with {@link #wordAt(ByteBuffer, int)} so that the byte at
+ * the lowest offset is the least significant byte of the word whatever the
+ * order of the buffer. The masks returned by {@link #matches(long, long)}
+ * then have their lowest set bit on the first matching byte, and
+ * {@link #firstIndex(long)} returns its index in the word.
+ */
+public final class Swar {
+  private static final long ONES = 0x0101010101010101L;
+  private static final long LOWS = 0x7F7F7F7F7F7F7F7FL;
+
+  private Swar() {
+  }
+
+  /**
+   * @return a word with all its bytes set to b
+   */
+  public static long broadcast(final int b) {
+    return ONES * (b & 0xFF);
+  }
+
+  /**
+   * Reads 8 bytes at the given absolute offset, the first one in the least
+   * significant byte of the result.
+   */
+  public static long wordAt(final ByteBuffer buf, final int offset) {
+    final long word = buf.getLong(offset);
+    return buf.order() == ByteOrder.LITTLE_ENDIAN ? word : Long.reverseBytes(word);
+  }
+
+  /**
+   * @param pattern a {@linkplain #broadcast(int) broadcast} byte
+   * @return a mask with the high bit of each byte of word equal to the
+   * pattern's byte set, and all other bits cleared. Unlike the usual
+   * {@code (x - 0x01..) & ~x & 0x80..} trick there are no false positives,
+   * so all the matches of a word can be iterated.
+   */
+  public static long matches(final long word, final long pattern) {
+    final long x = word ^ pattern;
+    return ~(((x & LOWS) + LOWS) | x | LOWS);
+  }
+
+  /**
+   * @return index in the word of the first byte flagged in a non zero mask
+   */
+  public static int firstIndex(final long mask) {
+    return Long.numberOfTrailingZeros(mask) >>> 3;
+  }
+}
@@ -0,0 +1,120 @@
+package utils;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.bytes.ByteArrays;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrays;
+
+/**
+ * Maps symbols, like metric names and tag keys or values, to dense int ids.
+ * <p>
+ * Lookups are done with the {@link ByteSlice} returned by the readers, so a
+ * symbol already in the table is found without allocating anything. Only new
+ * symbols are copied.
+ * <p>
+ * Symbols are never evicted: their ids are kept for a whole file, in the
+ * dictionary of a {@link readers.PointCache} or in the batches read from it,
+ * so a table only grows with the distinct symbols of the files it sees.
+ * <p>
+ * This class is not thread-safe, use one table per reader.
+ */
+public final class SymbolTable {
+  public static final int UNKNOWN = -1;
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final Object2IntOpenHashMap<ByteSlice> ids = new Object2IntOpenHashMap<>(INITIAL_CAPACITY);
+  private ByteSlice[] symbols = new ByteSlice[INITIAL_CAPACITY];
+  private String[] strings = new String[INITIAL_CAPACITY];
+  private int size;
+
+  // used to look up char sequences that are not byte slices
+  private final ByteSlice probe = new ByteSlice();
+  private byte[] scratch = new byte[64];
+
+  public SymbolTable() {
+    ids.defaultReturnValue(UNKNOWN);
+  }
+
+  /**
+   * @return the id of the symbol, adding it to the table if needed
+   */
+  public int intern(final ByteSlice symbol) {
+    final int id = ids.getInt(symbol);
+    return id != UNKNOWN ? id : add(symbol.copy());
+  }
+
+  /**
+   * @return the id of the symbol, adding it to the table if needed
+   */
+  public int intern(final CharSequence symbol) {
+    if (symbol instanceof ByteSlice) {
+      return intern((ByteSlice) symbol);
+    }
+    return intern(encode(symbol));
+  }
+
+  /**
+   * @return the id of the symbol, or {@link #UNKNOWN} if it isn't in the table
+   */
+  public int lookup(final CharSequence symbol) {
+    return ids.getInt(symbol instanceof ByteSlice ? symbol : encode(symbol));
+  }
+
+  /**
+   * @return the bytes of the symbol with the given id
+   */
+  public ByteSlice symbol(final int id) {
+    Preconditions.checkElementIndex(id, size);
+    return symbols[id];
+  }
+
+  /**
+   * @return the symbol with the given id, decoded once and cached
+   */
+  public String toString(final int id) {
+    Preconditions.checkElementIndex(id, size);
+    String s = strings[id];
+    if (s == null) {
+      s = symbols[id].toString();
+      strings[id] = s;
+    }
+    return s;
+  }
+
+  /**
+   * @return number of symbols in the table
+   */
+  public int size() {
+    return size;
+  }
+
+  private int add(final ByteSlice symbol) {
+    final int id = size++;
+    if (id == symbols.length) {
+      symbols = ObjectArrays.grow(symbols, size);
+      strings = ObjectArrays.grow(strings, size);
+    }
+    symbols[id] = symbol;
+    ids.put(symbol, id);
+    return id;
+  }
+
+  /**
+   * Encodes the symbol as UTF-8 in a scratch buffer.
+   */
+  private ByteSlice encode(final CharSequence symbol) {
+    final int n = symbol.length();
+    scratch = ByteArrays.ensureCapacity(scratch, n);
+    for (int i = 0; i < n; i++) {
+      final char c = symbol.charAt(i);
+      if (c >= 0x80) {
+        final byte[] bytes = symbol.toString().getBytes(Charsets.UTF_8);
+        return probe.set(bytes, 0, bytes.length);
+      }
+      scratch[i] = (byte) c;
+    }
+    return probe.set(scratch, 0, n);
+  }
+}
@@ -0,0 +1,255 @@
+package utils;
+
+import com.google.common.base.Charsets;
+import it.unimi.dsi.fastutil.bytes.ByteArrays;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+
+import java.util.Map;
+
+/**
+ * The tags of a line, kept sorted by key in flat arrays that are reused from
+ * one line to the next.
+ * <p>
+ * {@link #add(CharSequence)} copies the bytes of a "key=value" field in a
+ * buffer owned by the set and records the offsets of its key and value, so
+ * the fields read from a reader don't need to be kept. Once the buffers are
+ * large enough for the lines being read, {@link #clear()} and
+ * {@link #tryAdd(CharSequence)} don't allocate, nor does
+ * {@link #add(CharSequence)} except to build error messages.
+ * <p>
+ * This replaces a {@code HashMap<String, String>} filled with
+ * {@link Tags#parse(java.util.HashMap, String)}, with the same validation.
+ */
+public final class TagSet {
+  private static final int INITIAL_TAGS = 8;
+
+  /** key and value bytes of all the tags, in the order they were added */
+  private byte[] bytes = new byte[256];
+  private int used;
+
+  // offsets of each tag in bytes, sorted by key
+  private int[] start = new int[INITIAL_TAGS];
+  private int[] keyLength = new int[INITIAL_TAGS];
+  private int[] valueLength = new int[INITIAL_TAGS];
+  private int size;
+
+  /**
+   * Removes all the tags, keeping the buffers.
+   */
+  public void clear() {
+    used = 0;
+    size = 0;
+  }
+
+  /**
+   * @return number of tags in the set
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Adds a tag to the set.
+   * @param tag A sequence of the form "tag=value".
+   * @throws IllegalArgumentException if the tag is malformed.
+   * @throws IllegalArgumentException if the tag was already in the set with a
+   * different value.
+   */
+  public void add(final CharSequence tag) {
+    final Status status = tryAdd(tag);
+    if (status == Status.INVALID_TAG) {
+      throw new IllegalArgumentException("invalid tag: " + tag);
+    } else if (status == Status.DUPLICATE_TAG) {
+      throw new IllegalArgumentException("duplicate tag: " + tag + ", tags=" + this);
+    }
+  }
+
+  /**
+   * Adds a tag to the set, without throwing an exception if it's malformed.
+   * @param tag A sequence of the form "tag=value".
+   * @return {@link Status#OK}, {@link Status#INVALID_TAG} or
+   * {@link Status#DUPLICATE_TAG} if the tag was already in the set with a
+   * different value, in which case the set is left unchanged.
+   */
+  public Status tryAdd(final CharSequence tag) {
+    final int tagStart = used;
+    append(tag);
+
+    int separator = -1;
+    for (int i = tagStart; i < used; i++) {
+      if (bytes[i] == '=') {
+        if (separator >= 0) {
+          separator = -1;  // more than one '='
+          break;
+        }
+        separator = i;
+      }
+    }
+    return tryInsert(tagStart, separator);
+  }
+
+  /**
+   * Adds a tag whose '=' was already found, like by
+   * {@link FastLine#getTagSeparator(int)}, without scanning it again.
+   * @param tag A sequence of the form "tag=value".
+   * @param separator index in tag of its only '=', or -1 if it has none or
+   *                  more than one
+   * @see #tryAdd(CharSequence)
+   */
+  public Status tryAdd(final ByteSlice tag, final int separator) {
+    final int tagStart = used;
+    append(tag);
+    return tryInsert(tagStart, separator < 0 ? -1 : tagStart + separator);
+  }
+
+  /**
+   * Inserts the tag appended at tagStart, unless it's malformed or already
+   * in the set.
+   * @param separator offset in bytes of its only '=', or -1
+   */
+  private Status tryInsert(final int tagStart, final int separator) {
+    if (separator <= tagStart || separator == used - 1) {
+      used = tagStart;
+      return Status.INVALID_TAG;
+    }
+    final int kLength = separator - tagStart;
+    final int vLength = used - separator - 1;
+
+    // tags usually come sorted, like the ones of a series key
+    final int index = size > 0 && compare(start[size - 1], keyLength[size - 1], tagStart, kLength) < 0
+      ? -size - 1 : search(tagStart, kLength);
+    if (index >= 0) {
+      used = tagStart;
+      return compare(start[index] + keyLength[index] + 1, valueLength[index], separator + 1, vLength) == 0
+        ? Status.OK : Status.DUPLICATE_TAG;
+    }
+
+    insert(-index - 1, tagStart, kLength, vLength);
+    return Status.OK;
+  }
+
+  /**
+   * @return index of the tag with the given key, or -1
+   */
+  public int indexOf(final CharSequence key) {
+    final int keyStart = used;
+    final int n = append(key);
+    final int index = search(keyStart, n);
+    used = keyStart;
+    return index < 0 ? -1 : index;
+  }
+
+  /**
+   * Points the given slice to the key of the i-th tag, in key order.
+   * @return the slice
+   */
+  public ByteSlice key(final int i, final ByteSlice into) {
+    return into.set(bytes, start[i], keyLength[i]);
+  }
+
+  /**
+   * Points the given slice to the value of the i-th tag, in key order.
+   * @return the slice
+   */
+  public ByteSlice value(final int i, final ByteSlice into) {
+    return into.set(bytes, start[i] + keyLength[i] + 1, valueLength[i]);
+  }
+
+  /**
+   * Copies all the tags in the given map.
+   */
+  public void putAll(final Map<String, String> tags) {
+    for (int i = 0; i < size; i++) {
+      tags.put(new String(bytes, start[i], keyLength[i], Charsets.UTF_8),
+        new String(bytes, start[i] + keyLength[i] + 1, valueLength[i], Charsets.UTF_8));
+    }
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder("{");
+    for (int i = 0; i < size; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(new String(bytes, start[i], keyLength[i] + 1 + valueLength[i], Charsets.UTF_8));
+    }
+    return sb.append('}').toString();
+  }
+
+  /**
+   * Copies the bytes of the sequence at the end of the buffer, encoding it
+   * as UTF-8 unless it's a {@link ByteSlice}.
+   * @return number of bytes appended
+   */
+  private int append(final CharSequence cs) {
+    final int n = cs.length();
+    bytes = ByteArrays.grow(bytes, used + n);
+    if (cs instanceof ByteSlice) {
+      ((ByteSlice) cs).copyTo(0, bytes, used, n);
+      used += n;
+      return n;
+    }
+    for (int i = 0; i < n; i++) {
+      final char c = cs.charAt(i);
+      if (c >= 0x80) {
+        final byte[] encoded = cs.toString().getBytes(Charsets.UTF_8);
+        bytes = ByteArrays.grow(bytes, used + encoded.length);
+        System.arraycopy(encoded, 0, bytes, used, encoded.length);
+        used += encoded.length;
+        return encoded.length;
+      }
+      bytes[used + i] = (byte) c;
+    }
+    used += n;
+    return n;
+  }
+
+  /**
+   * Binary search of a key among the tags.
+   * @return index of the key, or (-(insertion point) - 1) if it isn't there
+   */
+  private int search(final int keyStart, final int length) {
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      final int c = compare(start[mid], keyLength[mid], keyStart, length);
+      if (c < 0) {
+        low = mid + 1;
+      } else if (c > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  private int compare(final int offset1, final int length1, final int offset2, final int length2) {
+    final int n = Math.min(length1, length2);
+    for (int i = 0; i < n; i++) {
+      final int c = (bytes[offset1 + i] & 0xFF) - (bytes[offset2 + i] & 0xFF);
+      if (c != 0) {
+        return c;
+      }
+    }
+    return length1 - length2;
+  }
+
+  private void insert(final int index, final int tagStart, final int kLength, final int vLength) {
+    if (size == start.length) {
+      start = IntArrays.grow(start, size + 1);
+      keyLength = IntArrays.grow(keyLength, size + 1);
+      valueLength = IntArrays.grow(valueLength, size + 1);
+    }
+    final int tail = size - index;
+    System.arraycopy(start, index, start, index + 1, tail);
+    System.arraycopy(keyLength, index, keyLength, index + 1, tail);
+    System.arraycopy(valueLength, index, valueLength, index + 1, tail);
+    start[index] = tagStart;
+    keyLength[index] = kLength;
+    valueLength[index] = vLength;
+    size++;
+  }
+}
@@ -3,6 +3,8 @@ package utils;
 import java.util.HashMap;
 
 public class Tags {
+  private static final String LONG_MIN_VALUE = Long.toString(Long.MIN_VALUE);
+
   /**
    * Optimized version of {@code String#split} that doesn't use regexps.
    * This function works in O(5n) where n is the length of the string to
@@ -46,30 +48,44 @@ public class Tags {
    * @throws NumberFormatException if the value is malformed or overflows.
    */
   public static long parseLong(final CharSequence s) {
+    final long v = tryParseLong(s, Long.MIN_VALUE);
+    if (v == Long.MIN_VALUE && !isLongMinValue(s)) {
+      throw new NumberFormatException("Not a long: " + s);
+    }
+    return v;
+  }
+
+  /**
+   * Parses an integer value like {@link #parseLong(CharSequence)}, without
+   * throwing an exception if it's malformed.
+   * @param s The character sequence containing the integer value to parse.
+   * @param invalid The value returned if s is malformed or overflows, like
+   * 0 for a timestamp. If it can be a valid value too, the caller tells them
+   * apart, see {@link #isLongMinValue(CharSequence)}.
+   * @return The value parsed, or invalid.
+   */
+  public static long tryParseLong(final CharSequence s, final long invalid) {
     final int n = s.length();  // Will NPE if necessary.
     if (n == 0) {
-      throw new NumberFormatException("Empty string");
+      return invalid;
     }
     char c = s.charAt(0);  // Current character.
     int i = 1;  // index in `s'.
     if (c < '0' && (c == '+' || c == '-')) {  // Only 1 test in common case.
-      if (n == 1) {
-        throw new NumberFormatException("Just a sign, no value: " + s);
-      } else if (n > 20) {  // "+9223372036854775807" or "-9223372036854775808"
-        throw new NumberFormatException("Value too long: " + s);
+      if (n == 1 || n > 20) {  // "+9223372036854775807" or "-9223372036854775808"
+        return invalid;
       }
       c = s.charAt(1);
       i = 2;  // Skip over the sign.
     } else if (n > 19) {  // "9223372036854775807"
-      throw new NumberFormatException("Value too long: " + s);
+      return invalid;
     }
     long v = 0;  // The result (negated to easily handle MIN_VALUE).
     do {
       if ('0' <= c && c <= '9') {
         v -= c - '0';
       } else {
-        throw new NumberFormatException("Invalid character '" + c
-          + "' in " + s);
+        return invalid;
       }
       if (i == n) {
         break;
@@ -78,16 +94,91 @@ public class Tags {
       c = s.charAt(i++);
     } while (true);
     if (v > 0) {
-      throw new NumberFormatException("Overflow in " + s);
+      return invalid;  // Overflow.
     } else if (s.charAt(0) == '-') {
       return v;  // Value is already negative, return unchanged.
     } else if (v == Long.MIN_VALUE) {
-      throw new NumberFormatException("Overflow in " + s);
+      return invalid;  // Overflow.
     } else {
       return -v;  // Positive value, need to fix the sign.
     }
   }
 
+  /**
+   * Parses length bytes of the array starting at offset like
+   * {@link #tryParseLong(CharSequence, long)}, with plain array accesses.
+   * @return The value parsed, or invalid.
+   */
+  public static long tryParseLong(final byte[] bytes, final int offset, final int length, final long invalid) {
+    if (length == 0) {
+      return invalid;
+    }
+    final int end = offset + length;
+    byte c = bytes[offset];  // Current character.
+    int i = offset + 1;  // index in bytes.
+    if (c < '0' && (c == '+' || c == '-')) {  // Only 1 test in common case.
+      if (length == 1 || length > 20) {  // "+9223372036854775807" or "-9223372036854775808"
+        return invalid;
+      }
+      c = bytes[i++];  // Skip over the sign.
+    } else if (length > 19) {  // "9223372036854775807"
+      return invalid;
+    }
+    long v = 0;  // The result (negated to easily handle MIN_VALUE).
+    do {
+      if ('0' <= c && c <= '9') {
+        v -= c - '0';
+      } else {
+        return invalid;
+      }
+      if (i == end) {
+        break;
+      }
+      v *= 10;
+      c = bytes[i++];
+    } while (true);
+    if (v > 0) {
+      return invalid;  // Overflow.
+    } else if (bytes[offset] == '-') {
+      return v;  // Value is already negative, return unchanged.
+    } else if (v == Long.MIN_VALUE) {
+      return invalid;  // Overflow.
+    } else {
+      return -v;  // Positive value, need to fix the sign.
+    }
+  }
+
+  /**
+   * Tells a parsed {@link Long#MIN_VALUE} from a malformed value, for the
+   * callers of {@link #tryParseLong(CharSequence, long)} that use it as the
+   * invalid value.
+   * @return true if s is the decimal form of {@link Long#MIN_VALUE}.
+   */
+  public static boolean isLongMinValue(final CharSequence s) {
+    return LONG_MIN_VALUE.contentEquals(s);
+  }
+
+
+  /**
+   * Returns true if the given value looks like an integer.
+   * <p>
+   * This function doesn't do any checking on the value, it only looks for
+   * characters that can only appear in a floating point value.
+   * @param value The value to check.
+   * @return true if the value looks like an integer, false if it looks like a
+   * floating point value.
+   */
+  public static boolean looksLikeInteger(final CharSequence value) {
+    final int n = value.length();
+    for (int i = 0; i < n; i++) {
+      final char c = value.charAt(i);
+      if (c == '.' || c == 'e' || c == 'E') {
+        return false;
+      }
+    }
+    return true;
+  }
+
 
   /**
    * Parses a tag into a HashMap.
@@ -99,16 +190,35 @@ public class Tags {
    */
   public static void parse(final HashMap<String, String> tags,
                            final String tag) {
-    final String[] kv = splitString(tag, '=');
-    if (kv.length != 2 || kv[0].length() <= 0 || kv[1].length() <= 0) {
+    final Status status = tryParse(tags, tag);
+    if (status == Status.INVALID_TAG) {
       throw new IllegalArgumentException("invalid tag: " + tag);
+    } else if (status == Status.DUPLICATE_TAG) {
+      throw new IllegalArgumentException("duplicate tag: " + tag + ", tags=" + tags);
     }
-    if (kv[1].equals(tags.get(kv[0]))) {
-      return;
+  }
+
+  /**
+   * Parses a tag into a HashMap, without throwing an exception if it's
+   * malformed.
+   * @param tags The HashMap into which to store the tag.
+   * @param tag A String of the form "tag=value".
+   * @return {@link Status#OK}, {@link Status#INVALID_TAG} or
+   * {@link Status#DUPLICATE_TAG} if the tag was already in tags with a
+   * different value, in which case tags is left unchanged.
+   */
+  public static Status tryParse(final HashMap<String, String> tags,
+                                final String tag) {
+    final String[] kv = splitString(tag, '=');
+    if (kv.length != 2 || kv[0].length() <= 0 || kv[1].length() <= 0) {
+      return Status.INVALID_TAG;
     }
-    if (tags.get(kv[0]) != null) {
-      throw new IllegalArgumentException("duplicate tag: " + tag + ", tags=" + tags);
+    final String previous = tags.get(kv[0]);
+    if (previous == null) {
+      tags.put(kv[0], kv[1]);
+    } else if (!previous.equals(kv[1])) {
+      return Status.DUPLICATE_TAG;
     }
-    tags.put(kv[0], kv[1]);
+    return Status.OK;
   }
 }
@@ -0,0 +1,102 @@
+package readers;
+
+import com.google.common.base.Charsets;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads several files with the same reader, like the workers of a
+ * multi-file import do, and checks that each file is read whole.
+ */
+@RunWith(Parameterized.class)
+public class FileReaderReuseTest {
+  private static final int FILES = 3;
+  private static final int LINES = 1000;
+
+  @Parameters(name = "{0}")
+  public static Collection<Object[]> readers() {
+    return Arrays.asList(new Object[][] {
+      { "BUFFERED", (Supplier<FileReader>) () -> new BufferedFileReader(8192), false },
+      { "CHAR_BUFFER", (Supplier<FileReader>) CharBufferFileReader::new, false },
+      { "FAST_LINE", (Supplier<FileReader>) () -> new FastLineReader(256, 1 << 16, false), false },
+      { "FAST_LINE direct", (Supplier<FileReader>) () -> new FastLineReader(256, 1 << 16, true), false },
+      { "BUFFERED_OLD", (Supplier<FileReader>) () -> new BufferedOldReader(8192), false },
+      { "FAST_BUFFER", (Supplier<FileReader>) () -> new FastBufferedReader(8192), false },
+      { "MAPPED", (Supplier<FileReader>) () -> new MappedFileReader(4096), false },
+      { "CSV", (Supplier<FileReader>) () -> new CsvFileReader(256), true },
+    });
+  }
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final Supplier<FileReader> factory;
+  private final boolean csv;
+
+  public FileReaderReuseTest(final String name, final Supplier<FileReader> factory, final boolean csv) {
+    this.factory = factory;
+    this.csv = csv;
+  }
+
+  @Test
+  public void readsEveryFile() throws IOException {
+    final File[] files = new File[FILES];
+    for (int f = 0; f < FILES; f++) {
+      files[f] = write(f);
+    }
+    try (FileReader reader = factory.get()) {
+      for (int f = 0; f < FILES; f++) {
+        reader.readFile(files[f].getPath());
+        for (int i = 0; i < LINES; i++) {
+          assertTrue(reader.readln());
+          assertEquals("metric." + f, reader.next());
+          assertEquals(1_400_000_000L + i, reader.nextLong());
+          assertEquals(i, reader.nextDouble(), 0);
+          assertEquals("host=h" + i % 10, reader.next());
+          assertFalse(reader.hasNext());
+        }
+        assertFalse("file " + f, reader.readln());
+        reader.close();
+      }
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void missingFileThrows() throws IOException {
+    try (FileReader reader = factory.get()) {
+      reader.readFile(write(0).getPath());
+      reader.readFile(new File(folder.getRoot(), "missing").getPath());
+    }
+  }
+
+  private File write(final int f) throws IOException {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < LINES; i++) {
+      if (csv) {
+        sb.append("\"metric.").append(f).append("\", ").append(1_400_000_000L + i).append(", ").append(i)
+          .append(", \"host=h").append(i % 10).append("\"\n");
+      } else {
+        sb.append("metric.").append(f).append(' ').append(1_400_000_000L + i).append(' ').append(i)
+          .append(" host=h").append(i % 10).append('\n');
+      }
+    }
+    final File file = folder.newFile("file" + f + (csv ? ".csv" : ".tsd"));
+    Files.write(file.toPath(), sb.toString().getBytes(Charsets.UTF_8));
+    return file;
+  }
+}
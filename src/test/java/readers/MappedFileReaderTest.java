@@ -0,0 +1,110 @@
+package readers;
+
+import com.google.common.base.Charsets;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import utils.LineErrors;
+import utils.Status;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Reads lines longer than the window of a {@link MappedFileReader}, whole
+ * and split in ranges.
+ */
+public class MappedFileReaderTest {
+  private static final int WINDOW = 128;
+  private static final int LINES = 500;
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void longLinesAreRejected() throws IOException {
+    final File file = write();
+    final LineErrors errors = new LineErrors(LineErrors.Mode.SKIP, null, null);
+    assertEquals(expected(), read(file, errors, 0, Long.MAX_VALUE));
+    assertEquals(longLines(), errors.count(Status.LINE_TOO_LONG));
+  }
+
+  @Test
+  public void rangesRejectEachLongLineOnce() throws IOException {
+    final File file = write();
+    final long size = file.length();
+    for (int ranges = 2; ranges < 40; ranges += 7) {
+      final LineErrors errors = new LineErrors(LineErrors.Mode.SKIP, null, null);
+      final List<Long> timestamps = new ArrayList<>();
+      for (int i = 0; i < ranges; i++) {
+        timestamps.addAll(read(file, errors, size * i / ranges, size * (i + 1) / ranges));
+      }
+      assertEquals(expected(), timestamps);
+      assertEquals(longLines(), errors.count(Status.LINE_TOO_LONG));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void longLineFailsByDefault() throws IOException {
+    read(write(), LineErrors.FAIL, 0, Long.MAX_VALUE);
+  }
+
+  private static List<Long> read(final File file, final LineErrors errors, final long start, final long end)
+    throws IOException {
+    final List<Long> timestamps = new ArrayList<>();
+    try (MappedFileReader reader = new MappedFileReader(WINDOW)) {
+      reader.setLineErrors(errors);
+      reader.readFile(file.getPath(), start, end);
+      while (reader.readln()) {
+        assertEquals("m", reader.next());
+        timestamps.add(reader.nextLong());
+      }
+    }
+    return timestamps;
+  }
+
+  /**
+   * Every third line, and the last one which has no '\n', is longer than the
+   * window, some by several windows.
+   */
+  private File write() throws IOException {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < LINES; i++) {
+      sb.append("m ").append(i).append(" 1 host=h");
+      if (isLong(i)) {
+        for (int j = 0; j < WINDOW * (i % 4 + 1) / 4; j++) {
+          sb.append(" k").append(j).append("=v");
+        }
+      }
+      if (i < LINES - 1) {
+        sb.append('\n');
+      }
+    }
+    final File file = folder.newFile("long.tsd");
+    Files.write(file.toPath(), sb.toString().getBytes(Charsets.UTF_8));
+    return file;
+  }
+
+  private static boolean isLong(final int i) {
+    return i % 3 == 0 || i == LINES - 1;
+  }
+
+  private static List<Long> expected() {
+    final List<Long> timestamps = new ArrayList<>();
+    for (int i = 0; i < LINES; i++) {
+      if (!isLong(i)) {
+        timestamps.add((long) i);
+      }
+    }
+    return timestamps;
+  }
+
+  private static long longLines() {
+    return LINES - expected().size();
+  }
+}
@@ -0,0 +1,354 @@
+package sinks;
+
+import com.google.common.base.Charsets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import readers.FastLineReader;
+import readers.PointBatch;
+import utils.ByteSlice;
+import utils.TagSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Sends points through a {@link BatchingSink} to a {@link LocalTsdbServer},
+ * and checks what the server received and what the transport sent.
+ */
+public class BatchingSinkTest {
+  private static final int POINTS = 100;
+  private static final int BATCH = 7;
+  /** tag values that must be escaped in JSON */
+  private static final String[] ODD_VALUES = { "a\"b", "back\\slash", "tab\there", "caf\u00e9", "plain" };
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private LocalTsdbServer server;
+  private Recording transport;
+
+  /** Keeps a copy of the payloads sent by another transport. */
+  private static final class Recording implements Transport {
+    final Transport transport;
+    final List<String> payloads = Collections.synchronizedList(new ArrayList<>());
+
+    Recording(final Transport transport) {
+      this.transport = transport;
+    }
+
+    @Override
+    public void send(final byte[] payload, final int length) throws IOException {
+      payloads.add(new String(payload, 0, length, Charsets.UTF_8));
+      transport.send(payload, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+      transport.close();
+    }
+  }
+
+  @Before
+  public void startServer() throws IOException {
+    server = new LocalTsdbServer(0);
+  }
+
+  @After
+  public void stopServer() throws IOException {
+    server.close();
+  }
+
+  @Test
+  public void json() throws IOException {
+    transport = new Recording(new HttpTransport(server.host(), server.port()));
+    try (BatchingSink sink = new BatchingSink(transport, BatchingSink.Format.JSON, BATCH, 2)) {
+      addPoints(sink);
+    }
+    // the last, partial, payload is sent on close
+    assertEquals(POINTS, server.points());
+    assertEquals((POINTS + BATCH - 1) / BATCH, server.requests());
+    assertEquals(server.requests(), transport.payloads.size());
+
+    final List<Object> points = new ArrayList<>();
+    for (String payload : transport.payloads) {
+      final List<?> array = (List<?>) new Json(payload).parse();
+      assertTrue(array.size() <= BATCH);
+      points.addAll(array);
+    }
+    assertEquals(POINTS, points.size());
+    for (Object o : points) {
+      final Map<?, ?> point = (Map<?, ?>) o;
+      final int i = Integer.parseInt((String) point.get("timestamp")) - 1_400_000_000;
+      assertEquals("sys.cpu", point.get("metric"));
+      assertEquals(expectedValue(i), point.get("value"));
+      final Map<String, String> tags = new LinkedHashMap<>();
+      tags.put("host", "web" + i % 3);
+      tags.put("odd", ODD_VALUES[i % ODD_VALUES.length]);
+      assertEquals(tags, point.get("tags"));
+    }
+  }
+
+  @Test
+  public void telnet() throws IOException, InterruptedException {
+    transport = new Recording(new TelnetTransport(server.host(), server.port()));
+    try (BatchingSink sink = new BatchingSink(transport, BatchingSink.Format.TELNET, BATCH, 3)) {
+      addPoints(sink);
+    }
+    final List<String> lines = new ArrayList<>();
+    for (String payload : transport.payloads) {
+      assertTrue(payload.endsWith("\n"));
+      Collections.addAll(lines, payload.split("\n"));
+    }
+    assertEquals(POINTS, lines.size());
+    for (String line : lines) {
+      final String[] fields = line.split(" ");
+      final int i = Integer.parseInt(fields[2]) - 1_400_000_000;
+      assertEquals("put", fields[0]);
+      assertEquals("sys.cpu", fields[1]);
+      assertEquals(expectedValue(i), fields[3]);
+      assertEquals("host=web" + i % 3, fields[4]);
+    }
+    // telnet puts aren't acknowledged, the server may still be reading them
+    for (int i = 0; i < 100 && server.points() < POINTS; i++) {
+      Thread.sleep(50);
+    }
+    assertEquals(POINTS, server.points());
+  }
+
+  @Test
+  public void batches() throws IOException {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < POINTS; i++) {
+      sb.append("sys.mem ").append(1_400_000_000 + i).append(' ').append(i).append(" host=web").append(i % 3)
+        .append(" dc=\"q\"\n");
+    }
+    final File file = folder.newFile("points.tsd");
+    Files.write(file.toPath(), sb.toString().getBytes(Charsets.UTF_8));
+
+    transport = new Recording(new HttpTransport(server.host(), server.port()));
+    try (BatchingSink sink = new BatchingSink(transport, BatchingSink.Format.JSON, BATCH, 2);
+         FastLineReader reader = new FastLineReader()) {
+      reader.readFile(file.getPath());
+      final PointBatch batch = new PointBatch(10);
+      while (reader.readBatch(batch) > 0) {
+        sink.add(batch);
+      }
+    }
+    assertEquals(POINTS, server.points());
+    int points = 0;
+    for (String payload : transport.payloads) {
+      for (Object o : (List<?>) new Json(payload).parse()) {
+        final Map<?, ?> tags = (Map<?, ?>) ((Map<?, ?>) o).get("tags");
+        assertEquals("\"q\"", tags.get("dc"));
+        points++;
+      }
+    }
+    assertEquals(POINTS, points);
+  }
+
+  @Test
+  public void nonFiniteValuesAreRejected() throws IOException {
+    transport = new Recording(new HttpTransport(server.host(), server.port()));
+    final ByteSlice metric = slice("sys.cpu");
+    final TagSet tags = new TagSet();
+    tags.add("host=web");
+    try (BatchingSink sink = new BatchingSink(transport, BatchingSink.Format.JSON, BATCH, 2)) {
+      sink.add(metric, 1_400_000_000, false, 0, 1.5, tags);
+      try {
+        sink.add(metric, 1_400_000_001, false, 0, Double.POSITIVE_INFINITY, tags);
+        fail("sent Infinity");
+      } catch (IllegalArgumentException expected) {
+        // expected
+      }
+      sink.add(metric, 1_400_000_002, false, 0, 2.5, tags);
+    }
+    assertEquals(2, server.points());
+    assertEquals(2, ((List<?>) new Json(transport.payloads.get(0)).parse()).size());
+  }
+
+  @Test
+  public void nullSinkDiscards() throws IOException {
+    final TagSet tags = new TagSet();
+    tags.add("host=web");
+    try (PointSink sink = NullSink.INSTANCE) {
+      sink.add(slice("sys.cpu"), 1_400_000_000, true, 1, 0, tags);
+      sink.add(new PointBatch(1));
+      sink.flush();
+    }
+    assertEquals(0, server.points());
+  }
+
+  private static void addPoints(final PointSink sink) throws IOException {
+    final ByteSlice metric = slice("sys.cpu");
+    final TagSet tags = new TagSet();
+    for (int i = 0; i < POINTS; i++) {
+      tags.clear();
+      tags.add("host=web" + i % 3);
+      tags.add("odd=" + ODD_VALUES[i % ODD_VALUES.length]);
+      if (i % 2 == 0) {
+        sink.add(metric, 1_400_000_000 + i, true, i == 0 ? Long.MIN_VALUE : i, 0, tags);
+      } else {
+        sink.add(metric, 1_400_000_000 + i, false, 0, -i / 4.0, tags);
+      }
+    }
+  }
+
+  private static String expectedValue(final int i) {
+    if (i % 2 == 0) {
+      return Long.toString(i == 0 ? Long.MIN_VALUE : i);
+    }
+    return Double.toString(-i / 4.0);
+  }
+
+  private static ByteSlice slice(final String s) {
+    final byte[] bytes = s.getBytes(Charsets.UTF_8);
+    return new ByteSlice(bytes, 0, bytes.length);
+  }
+
+  /**
+   * A strict parser of the JSON the sink writes: objects become maps,
+   * arrays lists, and strings and numbers strings.
+   */
+  private static final class Json {
+    private final String s;
+    private int i;
+
+    Json(final String s) {
+      this.s = s;
+    }
+
+    Object parse() {
+      final Object value = value();
+      if (i != s.length()) {
+        throw error("trailing characters");
+      }
+      return value;
+    }
+
+    private Object value() {
+      if (i == s.length()) {
+        throw error("unexpected end");
+      }
+      final char c = s.charAt(i);
+      if (c == '{') {
+        final Map<String, Object> map = new LinkedHashMap<>();
+        i++;
+        if (!consume('}')) {
+          do {
+            final String key = string();
+            expect(':');
+            if (map.put(key, value()) != null) {
+              throw error("duplicate key " + key);
+            }
+          } while (consume(','));
+          expect('}');
+        }
+        return map;
+      }
+      if (c == '[') {
+        final List<Object> list = new ArrayList<>();
+        i++;
+        if (!consume(']')) {
+          do {
+            list.add(value());
+          } while (consume(','));
+          expect(']');
+        }
+        return list;
+      }
+      if (c == '"') {
+        return string();
+      }
+      return number();
+    }
+
+    private String string() {
+      expect('"');
+      final StringBuilder sb = new StringBuilder();
+      while (true) {
+        if (i == s.length()) {
+          throw error("unterminated string");
+        }
+        final char c = s.charAt(i++);
+        if (c == '"') {
+          return sb.toString();
+        }
+        if (c < 0x20) {
+          throw error("unescaped control character");
+        }
+        if (c != '\\') {
+          sb.append(c);
+          continue;
+        }
+        final char e = s.charAt(i++);
+        switch (e) {
+          case '"':
+          case '\\':
+          case '/':
+            sb.append(e);
+            break;
+          case 't':
+            sb.append('\t');
+            break;
+          case 'n':
+            sb.append('\n');
+            break;
+          case 'u':
+            sb.append((char) Integer.parseInt(s.substring(i, i + 4), 16));
+            i += 4;
+            break;
+          default:
+            throw error("bad escape \\" + e);
+        }
+      }
+    }
+
+    private String number() {
+      final int start = i;
+      if (i < s.length() && s.charAt(i) == '-') {
+        i++;
+      }
+      final int digits = i;
+      while (i < s.length() && "0123456789.eE+-".indexOf(s.charAt(i)) >= 0) {
+        i++;
+      }
+      if (i == digits || !Character.isDigit(s.charAt(digits))) {
+        throw error("not a number");
+      }
+      final String number = s.substring(start, i);
+      Double.parseDouble(number);
+      return number;
+    }
+
+    private boolean consume(final char c) {
+      if (i < s.length() && s.charAt(i) == c) {
+        i++;
+        return true;
+      }
+      return false;
+    }
+
+    private void expect(final char c) {
+      if (!consume(c)) {
+        throw error("expected " + c);
+      }
+    }
+
+    private IllegalArgumentException error(final String message) {
+      return new IllegalArgumentException(message + " at " + i + " of " + s);
+    }
+  }
+}
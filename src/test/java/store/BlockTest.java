@@ -0,0 +1,162 @@
+package store;
+
+import it.unimi.dsi.fastutil.booleans.BooleanArrayList;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips of points through a {@link BlockEncoder} and
+ * {@link Block#scan}.
+ */
+public class BlockTest {
+
+  /** Collects the points of a scan. */
+  private static final class Points implements PointVisitor {
+    final LongArrayList timestamps = new LongArrayList();
+    final BooleanArrayList integers = new BooleanArrayList();
+    final LongArrayList longValues = new LongArrayList();
+    final DoubleArrayList doubleValues = new DoubleArrayList();
+
+    @Override
+    public void point(final long timestamp, final boolean isInteger, final long longValue,
+                      final double doubleValue) {
+      timestamps.add(timestamp);
+      integers.add(isInteger);
+      longValues.add(longValue);
+      doubleValues.add(doubleValue);
+    }
+  }
+
+  @Test
+  public void doubles() {
+    final long[] timestamps = { 1000, 1010, 1020, 1030, 1040, 1050, 1060, 1070, 1080, 1090, 1100, 1110 };
+    final double[] values = { 1.5, Double.NaN, -0.0, 0.0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+      Double.MIN_VALUE, Double.MAX_VALUE, 0.0, 0.0, -1e-300, Double.longBitsToDouble(0x7ff8000000000123L) };
+    roundTrip(timestamps, values);
+  }
+
+  @Test
+  public void integers() {
+    final long[] timestamps = { 1, 2, 3, 4, 5, 6, 7, 8 };
+    final long[] values = { 0, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, -1, 1, Long.MAX_VALUE, 0 };
+    roundTrip(timestamps, values);
+  }
+
+  @Test
+  public void timestampsGoingBackwards() {
+    final long[] timestamps = { 1_400_000_000, 1_399_999_990, 1_400_000_050, 1_400_000_050, 0, Long.MAX_VALUE,
+      Long.MIN_VALUE, 1_400_000_000 };
+    final long[] values = { 1, 2, 3, 4, 5, 6, 7, 8 };
+    roundTrip(timestamps, values);
+  }
+
+  @Test
+  public void singlePoint() {
+    roundTrip(new long[] { Long.MIN_VALUE }, new long[] { Long.MIN_VALUE });
+    roundTrip(new long[] { 42 }, new double[] { -0.0 });
+  }
+
+  @Test
+  public void randomPoints() {
+    final Random random = new Random(1);
+    for (int run = 0; run < 100; run++) {
+      final int n = 1 + random.nextInt(2000);
+      final long[] timestamps = new long[n];
+      final long[] longs = new long[n];
+      final double[] doubles = new double[n];
+      long t = random.nextLong();
+      for (int i = 0; i < n; i++) {
+        t += random.nextInt(4) == 0 ? random.nextLong() : random.nextInt(100) - 10;
+        timestamps[i] = t;
+        longs[i] = random.nextBoolean() ? random.nextLong() : random.nextInt(10);
+        doubles[i] = random.nextBoolean() ? Double.longBitsToDouble(random.nextLong()) : random.nextInt(10) / 4.0;
+      }
+      roundTrip(timestamps, longs);
+      roundTrip(timestamps, doubles);
+    }
+  }
+
+  @Test
+  public void scanRange() {
+    final BlockEncoder encoder = new BlockEncoder();
+    final long[] timestamps = { 50, 10, 30, 20, 40 };
+    for (int i = 0; i < timestamps.length; i++) {
+      encoder.add(timestamps[i], true, i, 0);
+    }
+    final Block block = encoder.seal();
+    assertEquals(10, block.minTimestamp());
+    assertEquals(50, block.maxTimestamp());
+
+    final Points points = new Points();
+    assertEquals(3, block.scan(20, 40, points));
+    assertEquals(LongArrayList.wrap(new long[] { 30, 20, 40 }), points.timestamps);
+    assertEquals(LongArrayList.wrap(new long[] { 2, 3, 4 }), points.longValues);
+    assertEquals(0, block.scan(51, 100, new Points()));
+    assertEquals(0, block.scan(0, 9, new Points()));
+  }
+
+  @Test
+  public void encoderIsReusedAfterSeal() {
+    final BlockEncoder encoder = new BlockEncoder();
+    encoder.add(1, true, 5, 0);
+    encoder.add(2, true, 6, 0);
+    encoder.seal();
+    assertTrue(encoder.accepts(false));
+    encoder.add(100, false, 0, 2.5);
+    assertFalse(encoder.accepts(true));
+    final Block block = encoder.seal();
+    final Points points = new Points();
+    block.scan(Long.MIN_VALUE, Long.MAX_VALUE, points);
+    assertEquals(1, block.count());
+    assertFalse(block.integers());
+    assertEquals(LongArrayList.wrap(new long[] { 100 }), points.timestamps);
+    assertEquals(2.5, points.doubleValues.getDouble(0), 0);
+  }
+
+  private static void roundTrip(final long[] timestamps, final long[] values) {
+    final BlockEncoder encoder = new BlockEncoder();
+    for (int i = 0; i < timestamps.length; i++) {
+      encoder.add(timestamps[i], true, values[i], 0);
+    }
+    final Block block = encoder.seal();
+    assertTrue(block.integers());
+    final Points points = scanAll(block, timestamps.length);
+    for (int i = 0; i < timestamps.length; i++) {
+      assertEquals("timestamp " + i, timestamps[i], points.timestamps.getLong(i));
+      assertTrue(points.integers.getBoolean(i));
+      assertEquals("value " + i, values[i], points.longValues.getLong(i));
+    }
+  }
+
+  private static void roundTrip(final long[] timestamps, final double[] values) {
+    final BlockEncoder encoder = new BlockEncoder();
+    for (int i = 0; i < timestamps.length; i++) {
+      encoder.add(timestamps[i], false, 0, values[i]);
+    }
+    final Block block = encoder.seal();
+    assertFalse(block.integers());
+    final Points points = scanAll(block, timestamps.length);
+    for (int i = 0; i < timestamps.length; i++) {
+      assertEquals("timestamp " + i, timestamps[i], points.timestamps.getLong(i));
+      assertFalse(points.integers.getBoolean(i));
+      // raw bits, so -0.0 and the payload of NaNs are checked too
+      assertEquals("value " + i, Double.doubleToRawLongBits(values[i]),
+        Double.doubleToRawLongBits(points.doubleValues.getDouble(i)));
+    }
+  }
+
+  private static Points scanAll(final Block block, final int count) {
+    assertEquals(count, block.count());
+    final Points points = new Points();
+    assertEquals(count, block.scan(Long.MIN_VALUE, Long.MAX_VALUE, points));
+    assertEquals(count, points.timestamps.size());
+    return points;
+  }
+}
@@ -0,0 +1,108 @@
+package store;
+
+import com.google.common.base.Charsets;
+import org.junit.Test;
+import utils.ByteSlice;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the posting lists of {@link TagIndex} and how queries combine them.
+ */
+public class TagIndexTest {
+  private static final int[] NONE = {};
+
+  @Test
+  public void and() {
+    assertArrayEquals(NONE, TagIndex.and(NONE, NONE));
+    assertArrayEquals(NONE, TagIndex.and(new int[] { 1, 2 }, NONE));
+    assertArrayEquals(NONE, TagIndex.and(new int[] { 1, 3 }, new int[] { 2, 4 }));
+    assertArrayEquals(new int[] { 1, 2, 3 }, TagIndex.and(new int[] { 1, 2, 3 }, new int[] { 1, 2, 3 }));
+    assertArrayEquals(new int[] { 3, 7 }, TagIndex.and(new int[] { 1, 3, 5, 7 }, new int[] { 0, 3, 7, 9 }));
+    // a small list galloping through a large one, both ways round
+    final int[] large = range(0, 10_000);
+    assertArrayEquals(new int[] { 0, 4_095, 9_999 }, TagIndex.and(new int[] { 0, 4_095, 9_999, 10_000 }, large));
+    assertArrayEquals(new int[] { 0, 4_095, 9_999 }, TagIndex.and(large, new int[] { -1, 0, 4_095, 9_999 }));
+  }
+
+  @Test
+  public void or() {
+    assertArrayEquals(NONE, TagIndex.or(NONE, NONE));
+    assertArrayEquals(new int[] { 1, 2 }, TagIndex.or(new int[] { 1, 2 }, NONE));
+    assertArrayEquals(new int[] { 1, 2 }, TagIndex.or(NONE, new int[] { 1, 2 }));
+    assertArrayEquals(new int[] { 1, 2, 3, 4 }, TagIndex.or(new int[] { 1, 3 }, new int[] { 2, 4 }));
+    assertArrayEquals(new int[] { 1, 2, 3 }, TagIndex.or(new int[] { 1, 2, 3 }, new int[] { 1, 2, 3 }));
+    assertArrayEquals(new int[] { 0, 1, 3, 5, 7, 9 }, TagIndex.or(new int[] { 1, 3, 5, 7 }, new int[] { 0, 3, 7, 9 }));
+  }
+
+  @Test
+  public void randomListsSameAsSets() {
+    final Random random = new Random(3);
+    for (int run = 0; run < 1_000; run++) {
+      final TreeSet<Integer> a = randomSet(random);
+      final TreeSet<Integer> b = randomSet(random);
+      final TreeSet<Integer> and = new TreeSet<>(a);
+      and.retainAll(b);
+      final TreeSet<Integer> or = new TreeSet<>(a);
+      or.addAll(b);
+      assertArrayEquals(toArray(and), TagIndex.and(toArray(a), toArray(b)));
+      assertArrayEquals(toArray(or), TagIndex.or(toArray(a), toArray(b)));
+    }
+  }
+
+  @Test
+  public void find() {
+    final TagIndex index = new TagIndex();
+    index.add(key("cpu", "host=a", "dc=1"));
+    index.add(key("cpu", "host=b", "dc=1"));
+    index.add(key("mem", "host=a", "dc=2"));
+    index.add(key("cpu.idle", "host=c"));
+
+    assertEquals(4, index.size());
+    assertEquals(3, index.metrics());
+    assertArrayEquals(new int[] { 0, 2 }, index.get("host", "a"));
+    assertArrayEquals(new int[] { 3 }, index.get("host", "c"));
+    assertArrayEquals(NONE, index.get("host", "d"));
+    assertArrayEquals(new int[] { 0 }, index.find("host=a", "dc=1"));
+    assertArrayEquals(new int[] { 0, 1 }, index.find("dc=1"));
+    assertArrayEquals(NONE, index.find("host=c", "dc=1"));
+    assertArrayEquals(NONE, index.find("host=a", "dc=3"));
+    assertArrayEquals(new int[] { 0, 1 }, index.metric("cpu"));
+    assertArrayEquals(new int[] { 0, 1, 3 }, index.metricPrefix("cpu"));
+    assertArrayEquals(NONE, index.metricPrefix("disk"));
+  }
+
+  private static ByteSlice key(final String metric, final String... tags) {
+    final StringBuilder sb = new StringBuilder(metric);
+    for (String tag : tags) {
+      sb.append((char) Series.SEPARATOR).append(tag);
+    }
+    final byte[] bytes = sb.toString().getBytes(Charsets.UTF_8);
+    return new ByteSlice(bytes, 0, bytes.length);
+  }
+
+  private static TreeSet<Integer> randomSet(final Random random) {
+    final TreeSet<Integer> set = new TreeSet<>();
+    final int n = random.nextInt(4) == 0 ? random.nextInt(3) : random.nextInt(500);
+    final int bound = 1 + random.nextInt(1_000);
+    for (int i = 0; i < n; i++) {
+      set.add(random.nextInt(bound));
+    }
+    return set;
+  }
+
+  private static int[] toArray(final TreeSet<Integer> set) {
+    return set.stream().mapToInt(Integer::intValue).toArray();
+  }
+
+  private static int[] range(final int from, final int to) {
+    final int[] ids = new int[to - from];
+    Arrays.setAll(ids, i -> from + i);
+    return ids;
+  }
+}
@@ -0,0 +1,118 @@
+package utils;
+
+import com.google.common.base.Charsets;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link DoubleParser} returns the same bits as
+ * {@link Double#parseDouble(String)}, on both its fast paths and its
+ * fallback.
+ */
+public class DoubleParserTest {
+
+  private static final String[] VALUES = {
+    "0", "-0", "+0", "0.0", "-0.0", "1", "-1", "+1", "1.", ".5", "-.5", "1.5", "3.14159",
+    "1e0", "1E10", "2e-10", "6.02E+23", "1e22", "1e23", "1e-22", "1e-23",
+    // largest and smallest normal and subnormal values
+    "1.7976931348623157e308", "2.2250738585072014e-308", "2.2250738585072011e-308", "4.9e-324",
+    "1e308", "1e-307", "1e-320", "1e309", "1e-400", "-1e309",
+    // halfway between two doubles, and just around
+    "9007199254740993", "9007199254740992", "9007199254740994", "9007199254740993.0000000001",
+    "0.1", "0.2", "0.3", "123456789012345678", "1234567890123456789", "12345678901234567890",
+    "0.000000000000000000000000000001", "100000000000000000000000000000000",
+    "179769313486231580793728971405303415079934132710037826936173778980444968292764750946649017977587207096"
+      + "330286416692887910946555547851940402630657488671505820681908902000708383676273854845817711531764475730"
+      + "270069855571366959622842914819860834936475292719074168444365510704342711559699508093042880177904174497792",
+    "NaN", "Infinity", "-Infinity", "+Infinity",
+    "007", "1e007", "12.34e-5", "4503599627370496.5", "4503599627370497.5"
+  };
+
+  private static final String[] MALFORMED = {
+    "", "-", "+", ".", "e5", "1e", "1e+", "1.2.3", "1,5", "abc", "1x", "--1", " 1", "1 ", "0x10", "Inf", "nan"
+  };
+
+  @Test
+  public void sameAsParseDouble() {
+    for (String value : VALUES) {
+      check(value);
+    }
+  }
+
+  @Test
+  public void randomValuesSameAsParseDouble() {
+    final Random random = new Random(42);
+    for (int i = 0; i < 100_000; i++) {
+      final double d;
+      switch (i % 3) {
+        case 0:
+          d = Double.longBitsToDouble(random.nextLong());
+          break;
+        case 1:
+          d = random.nextDouble() * Math.pow(10, random.nextInt(40) - 20);
+          break;
+        default:
+          d = random.nextInt(1_000_000) / 100.0;
+      }
+      check(Double.toString(d));
+    }
+  }
+
+  @Test
+  public void randomDigitsSameAsParseDouble() {
+    final Random random = new Random(7);
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100_000; i++) {
+      sb.setLength(0);
+      if (random.nextBoolean()) {
+        sb.append('-');
+      }
+      final int digits = 1 + random.nextInt(25);
+      final int point = random.nextInt(digits + 1);
+      for (int d = 0; d < digits; d++) {
+        if (d == point) {
+          sb.append('.');
+        }
+        sb.append((char) ('0' + random.nextInt(10)));
+      }
+      if (random.nextBoolean()) {
+        sb.append('e').append(random.nextInt(700) - 350);
+      }
+      check(sb.toString());
+    }
+  }
+
+  @Test
+  public void malformed() {
+    for (String value : MALFORMED) {
+      assertTrue(value, Double.isNaN(DoubleParser.tryParseDouble(value)));
+      final byte[] bytes = value.getBytes(Charsets.UTF_8);
+      assertTrue(value, Double.isNaN(DoubleParser.tryParseDouble(bytes, 0, bytes.length)));
+      try {
+        DoubleParser.parseDouble(value);
+        fail("parsed " + value);
+      } catch (NumberFormatException expected) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void partOfArray() {
+    final byte[] bytes = "x 12.5e3 y".getBytes(Charsets.UTF_8);
+    assertEquals(12.5e3, DoubleParser.parseDouble(bytes, 2, 6), 0);
+  }
+
+  private static void check(final String value) {
+    final long expected = Double.doubleToLongBits(Double.parseDouble(value));
+    assertEquals(value, expected, Double.doubleToLongBits(DoubleParser.parseDouble(value)));
+    assertEquals(value, expected, Double.doubleToLongBits(DoubleParser.parseDouble(new StringBuilder(value))));
+    final byte[] bytes = ("  " + value + "  ").getBytes(Charsets.UTF_8);
+    assertEquals(value, expected, Double.doubleToLongBits(DoubleParser.parseDouble(bytes, 2, bytes.length - 4)));
+  }
+}
@@ -0,0 +1,92 @@
+package utils;
+
+import com.google.common.base.Charsets;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link DoubleWriter} writes doubles that parse back to
+ * themselves, in the format of {@link Double#toString(double)}.
+ */
+public class DoubleWriterTest {
+
+  private static final double[] VALUES = {
+    0.0, -0.0, 1.0, -1.0, 0.1, 0.2, 0.3, 1.5, 12.5, 100.0, 123.456, 0.001, 0.00123, 9.99e-4, 1234567.0,
+    9999999.0, 1e7, 1.0E10, 6.02e23, 1e-5, 1e22, 3.14159, 2.0 / 3, 1e100, 1e-100,
+    Long.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, Double.MIN_NORMAL, Double.MIN_VALUE, 4.9e-322,
+    Math.PI, Math.E, 9007199254740993.0, 0.1 + 0.2
+  };
+
+  @Test
+  public void sameAsToString() {
+    for (double d : VALUES) {
+      assertEquals(Double.toString(d), write(d));
+    }
+  }
+
+  @Test
+  public void randomValuesParseBack() {
+    final Random random = new Random(11);
+    for (int i = 0; i < 200_000; i++) {
+      final double d;
+      switch (i % 4) {
+        case 0:
+          d = Double.longBitsToDouble(random.nextLong());
+          break;
+        case 1:
+          d = random.nextDouble() * Math.pow(10, random.nextInt(40) - 20);
+          break;
+        case 2:
+          d = (random.nextInt(2_000_000) - 1_000_000) / 100.0;
+          break;
+        default:
+          d = random.nextGaussian();
+      }
+      if (Double.isNaN(d) || Double.isInfinite(d)) {
+        continue;
+      }
+      final String written = write(d);
+      final String expected = Double.toString(d);
+      assertEquals(written, Double.doubleToRawLongBits(d), Double.doubleToRawLongBits(Double.parseDouble(written)));
+      // Double.toString of JDK 8 to 18 sometimes writes a digit too many
+      assertTrue(written + " longer than " + expected, written.length() <= expected.length());
+      assertEquals(written, expected.indexOf('E') >= 0, written.indexOf('E') >= 0);
+    }
+  }
+
+  @Test
+  public void shorterThanToString() {
+    // Double.toString of JDK 8 to 18 writes 9.999999999999999E22
+    assertEquals("1.0E23", write(1e23));
+    assertEquals("0.002", write(2e-3));
+  }
+
+  @Test
+  public void shortDecimalsAreShort() {
+    for (int i = -100_000; i <= 100_000; i += 7) {
+      final double d = i / 1000.0;
+      assertEquals(Double.toString(d), write(d));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void nan() {
+    write(Double.NaN);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void infinity() {
+    write(Double.NEGATIVE_INFINITY);
+  }
+
+  private static String write(final double d) {
+    final byte[] bytes = new byte[DoubleWriter.MAX_LENGTH + 2];
+    final int end = DoubleWriter.write(d, bytes, 1);
+    assertTrue(end - 1 <= DoubleWriter.MAX_LENGTH);
+    return new String(bytes, 1, end - 1, Charsets.UTF_8);
+  }
+}